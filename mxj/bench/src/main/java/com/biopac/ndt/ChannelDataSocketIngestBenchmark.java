@@ -0,0 +1,68 @@
+/*
+ * ChannelDataSocketIngestBenchmark.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how many samples per second a ChannelDataSocket can take in
+ * from a loopback TCP data connection: reading, decoding and buffering.
+ * Each invocation writes a batch of big endian doubles and waits until the
+ * receive thread has buffered all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ChannelDataSocketIngestBenchmark {
+    private static final int kPort=17800;
+    private static final int kBatchSamples=8192;
+
+    private ChannelDataSocket socket;
+    private Socket feeder;
+    private OutputStream out;
+    private byte[] batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        socket=new ChannelDataSocket(kPort);
+        socket.startProcessing();
+        feeder=new Socket(InetAddress.getLoopbackAddress(), kPort);
+        feeder.setTcpNoDelay(true);
+        out=feeder.getOutputStream();
+
+        ByteBuffer b=ByteBuffer.allocate(kBatchSamples*8);
+        for(int i=0; i<kBatchSamples; i++)
+            b.putDouble(Math.sin(i*0.01));
+        batch=b.array();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        feeder.close();
+        socket.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(kBatchSamples)
+    public int ingest() throws Exception {
+        out.write(batch);
+        SampleBuffer buffer=socket.getSampleBuffer();
+        while(buffer.numSamples() < kBatchSamples)
+            Thread.onSpinWait();
+        buffer.removeSamples(kBatchSamples);
+        return buffer.numSamples();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * ControlSetupBenchmark.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import com.biopac.ndt.sim.ACQServerSimulator;
+
+/**
+ * Measures XML-RPC control latency against an in-process simulator on the
+ * loopback interface: a single query, and the sequence of calls MaxAcq
+ * makes to configure one channel for streaming.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ControlSetupBenchmark {
+    private static final int kControlPort=15510;
+
+    private ACQServerSimulator simulator;
+    private ACQServer server;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        simulator=new ACQServerSimulator(kControlPort);
+        simulator.setDiscoveryEnabled(false);
+        simulator.start();
+        server=new ACQServer(new ACQServerAddress(InetAddress.getLoopbackAddress(), (short)kControlPort));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulator.close();
+    }
+
+    @Benchmark
+    public double singleCall() throws ProtocolException {
+        return server.getSamplingRate();
+    }
+
+    @Benchmark
+    public boolean streamSetup() throws ProtocolException {
+        String type=ACQServer.kAnalogChannelType;
+        short index=0;
+        boolean enabled=server.isChannelEnabled(type, index);
+        server.changeMostRecentSampleEnabled(type, index, true);
+        server.changeDataDeliveryEnabled(type, index, true);
+        server.changeConnectionPort(type, index, (short)17900);
+        server.changeBinaryEndian(type, index, ACQServer.kBigEndian);
+        server.changeBinaryType(type, index, ACQServer.kDoubleDataType);
+        return enabled;
+    }
+}
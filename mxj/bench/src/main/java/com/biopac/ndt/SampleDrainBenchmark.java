@@ -0,0 +1,70 @@
+/*
+ * SampleDrainBenchmark.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the cost of draining one output frame from a ChannelDataSocket
+ * as MaxAcq.bang() does, against the number of samples buffered behind it.
+ * Each invocation reads and removes a frame and then injects a frame so the
+ * buffer depth stays constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class SampleDrainBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int depth;
+
+    @Param({"20", "512"})
+    public int frame;
+
+    private ChannelDataSocket socket;
+    private double[] vec;
+    private double[] refill;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        socket=new ChannelDataSocket(0);
+        vec=new double[frame];
+        refill=new double[Math.max(frame, depth)];
+        for(int i=0; i<refill.length; i++)
+            refill[i]=i;
+        socket.injectSamples(refill, depth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        socket.close();
+    }
+
+    /** Bulk copy of a frame from the sample buffer */
+    @Benchmark
+    public double bulk() {
+        SampleBuffer buffer=socket.getSampleBuffer();
+        buffer.getSamples(0, vec, 0, frame);
+        buffer.removeSamples(frame);
+        socket.injectSamples(refill, frame);
+        return vec[frame-1];
+    }
+
+    /** Sample by sample copy through getSample() */
+    @Benchmark
+    public double perSample() {
+        for(int i=0; i<frame; i++)
+            vec[i]=socket.getSample(i);
+        socket.removeSamplesFromBuffer(frame);
+        socket.injectSamples(refill, frame);
+        return vec[frame-1];
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * SampleWaitBenchmark.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how quickly a consumer waiting in SampleBuffer.awaitSamples()
+ * sees appended samples with each wait strategy.  A sample is appended to
+ * one buffer, an echo thread waiting on it appends one to a second buffer,
+ * and the benchmark thread waits for that one, so an invocation is a round
+ * trip of two wake ups.  kSpin needs a spare core per waiting thread to be
+ * meaningful.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class SampleWaitBenchmark {
+    private static final long kTimeoutMillis=1000;
+
+    @Param({"block", "park", "spin"})
+    public String strategy;
+
+    private SampleBuffer ping;
+    private SampleBuffer pong;
+    private Thread echo;
+    private volatile boolean running;
+    private final double[] sample=new double[1];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ping=new SampleBuffer();
+        pong=new SampleBuffer();
+        ping.setWaitStrategy(WaitStrategy.forName(strategy));
+        pong.setWaitStrategy(WaitStrategy.forName(strategy));
+        running=true;
+        echo=new Thread("SampleWaitBenchmark echo") {
+            public void run() {
+                double[] s=new double[1];
+                try
+                {
+                    while(running)
+                    {
+                        if(!ping.awaitSamples(1, kTimeoutMillis))
+                            continue;
+                        ping.removeSamples(1);
+                        pong.append(s, 0, 1);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running=false;
+        echo.interrupt();
+        echo.join();
+    }
+
+    @Benchmark
+    public boolean roundTrip() throws InterruptedException {
+        ping.append(sample, 0, 1);
+        boolean arrived=pong.awaitSamples(1, kTimeoutMillis);
+        if(arrived)
+            pong.removeSamples(1);
+        return arrived;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * StreamReceiveBenchmark.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.*;
+
+import com.biopac.ndt.sim.ACQServerSimulator;
+
+/**
+ * Compares receiving many channels on platform threads and on virtual
+ * threads.  The in-process simulator streams every analog channel over its
+ * own TCP data connection in real time.  Each invocation waits until every
+ * channel has buffered 10 ms of new samples and then empties the buffers,
+ * so the time beyond 10 ms is how far the receive threads lag behind.
+ * On runtimes without virtual threads the virtual mode falls back to
+ * platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class StreamReceiveBenchmark {
+    private static final int kControlPort=15520;
+    private static final int kFirstDataPort=17000;
+    private static final double kSamplingRate=5000;
+    private static final int kBatchSamples=50;
+
+    @Param({"64", "256"})
+    public int channels;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    private ACQServerSimulator simulator;
+    private ACQServer server;
+    private ChannelDataSocket[] sockets;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        simulator=new ACQServerSimulator(kControlPort);
+        simulator.setDiscoveryEnabled(false);
+        simulator.setSamplingRate(kSamplingRate);
+        simulator.setChannelCount(ACQServer.kAnalogChannelType, channels);
+        simulator.start();
+        server=new ACQServer(new ACQServerAddress(InetAddress.getLoopbackAddress(), (short)kControlPort));
+        server.changeDataConnectionMethod(ACQServer.kMultipleConnectionDelivery);
+        server.changeTransportType(ACQServer.kTCPTransportType);
+
+        sockets=new ChannelDataSocket[channels];
+        for(int i=0; i<channels; i++)
+        {
+            String type=ACQServer.kAnalogChannelType;
+            short index=(short)i;
+            sockets[i]=new ChannelDataSocket(kFirstDataPort+i);
+            sockets[i].setVirtualThreads(threads.equals("virtual"));
+            sockets[i].startProcessing();
+            server.changeDataDeliveryEnabled(type, index, true);
+            server.changeConnectionPort(type, index, (short)(kFirstDataPort+i));
+            server.changeBinaryEndian(type, index, ACQServer.kBigEndian);
+            server.changeBinaryType(type, index, ACQServer.kDoubleDataType);
+        }
+        server.toggleAcquisition();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.toggleAcquisition();
+        for(int i=0; i<sockets.length; i++)
+            sockets[i].close();
+        simulator.close();
+    }
+
+    @Benchmark
+    public long receiveBatch() {
+        long total=0;
+        for(int i=0; i<sockets.length; i++)
+        {
+            SampleBuffer buffer=sockets[i].getSampleBuffer();
+            while(buffer.numSamples() < kBatchSamples)
+                LockSupport.parkNanos(100000);
+            total+=buffer.getEndIndex();
+            buffer.removeSamples(buffer.numSamples());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * UDPDecodeBenchmark.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures decoding of a full 512 byte UDP data packet, reported per
+ * sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class UDPDecodeBenchmark {
+    private static final int kPacketSize=512;
+    private static final int kPacketSamples=(kPacketSize-8)/8;
+
+    private ByteBuffer packet;
+    private double[] samples;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        packet=ByteBuffer.allocate(kPacketSize);
+        packet.putInt(0);
+        packet.putInt(kPacketSamples*8);
+        for(int i=0; i<kPacketSamples; i++)
+            packet.putDouble(i*0.5);
+        packet.flip();
+        samples=new double[kPacketSize/8];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(kPacketSamples)
+    public int decode() {
+        return UDPChannelDataSocket.decodePacket(packet, samples);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * XmlRpcDecodeBenchmark.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.parser.XmlRpcResponseParser;
+import org.apache.xmlrpc.util.SAXParsers;
+import org.openjdk.jmh.annotations.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ * Measures decoding of a canned getMostRecentSampleValueArray response for
+ * 64 analog channels into a MostRecentSnapshot, once with the SAX parser of
+ * the generic XML-RPC client followed by a walk of the boxed result, and
+ * once with the StAX decoder used by the fast path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class XmlRpcDecodeBenchmark {
+    private static final int kChannels=64;
+
+    private byte[] response;
+    private MostRecentSnapshot snapshot;
+    private XmlRpcClientConfigImpl config;
+    private TypeFactoryImpl typeFactory;
+    private StaxXmlRpcClient.ResultDecoder decoder;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder xml=new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<methodResponse><params><param><value><array><data>");
+        for(int i=0; i<kChannels; i++)
+        {
+            xml.append("<value><struct>");
+            xml.append("<member><name>channel</name><value><struct>");
+            xml.append("<member><name>type</name><value><string>analog</string></value></member>");
+            xml.append("<member><name>index</name><value><i4>").append(i).append("</i4></value></member>");
+            xml.append("</struct></value></member>");
+            xml.append("<member><name>value</name><value><double>").append(Math.sin(i)).append("</double></value></member>");
+            xml.append("</struct></value>");
+        }
+        xml.append("</data></array></value></param></params></methodResponse>");
+        response=xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        snapshot=new MostRecentSnapshot();
+        config=new XmlRpcClientConfigImpl();
+        typeFactory=new TypeFactoryImpl(new XmlRpcClient());
+        decoder=new StaxXmlRpcClient.ResultDecoder() {
+            public void decode(XmlRpcValueReader in) throws XMLStreamException, XmlRpcException {
+                ACQServer.decodeMostRecentValues(in, snapshot);
+            }
+        };
+    }
+
+    @Benchmark
+    public MostRecentSnapshot generic() throws Exception {
+        XmlRpcResponseParser parser=new XmlRpcResponseParser(config, typeFactory);
+        XMLReader reader=SAXParsers.newXMLReader();
+        reader.setContentHandler(parser);
+        reader.parse(new InputSource(new ByteArrayInputStream(response)));
+        Object[] values=(Object[])parser.getResult();
+
+        snapshot.clear();
+        for(int i=0; i<values.length; i++)
+        {
+            Map value=(Map)values[i];
+            Map channel=(Map)value.get("channel");
+            int row=MostRecentSnapshot.typeRow((String)channel.get("type"));
+            int index=((Integer)channel.get("index")).intValue();
+            snapshot.setValue(row, index, ((Double)value.get("value")).doubleValue());
+        }
+        return snapshot;
+    }
+
+    @Benchmark
+    public MostRecentSnapshot stax() throws Exception {
+        StaxXmlRpcClient.parseResponse(new ByteArrayInputStream(response), decoder);
+        return snapshot;
+    }
+}
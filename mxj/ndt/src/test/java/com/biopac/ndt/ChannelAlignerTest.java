@@ -0,0 +1,175 @@
+/*
+ * ChannelAlignerTest.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that channels of different rates and decimation delays come out
+ * of the aligner on one time base.  The channels carry ramps whose value is
+ * the time of the sample in acquisition samples, so an aligned window holds
+ * the same values on every channel.
+ */
+public class ChannelAlignerTest {
+    private static final double kTolerance=1e-9;
+
+    /**
+     * Fill a buffer with a ramp of n samples, one every divider
+     * acquisition samples
+     */
+    private static SampleBuffer ramp(int n, int divider) {
+        double[] values=new double[n];
+        for(int i=0; i<n; i++)
+            values[i]=i*divider;
+        SampleBuffer buf=new SampleBuffer();
+        buf.append(values, 0, n);
+        return buf;
+    }
+
+    @Test
+    public void copiesChannelsAtTheOutputRate() {
+        ChannelAligner aligner=new ChannelAligner(1000);
+        aligner.addChannel(ramp(100, 1), 1);
+        aligner.addChannel(ramp(100, 1), 1);
+
+        double[][] dst=new double[2][10];
+        assertTrue(aligner.next(10, dst));
+        for(int j=0; j<10; j++)
+        {
+            assertEquals(j, dst[0][j], kTolerance);
+            assertEquals(j, dst[1][j], kTolerance);
+        }
+        assertEquals(10/1000.0, aligner.getTime(), kTolerance);
+    }
+
+    @Test
+    public void interpolatesSlowerChannels() {
+        ChannelAligner aligner=new ChannelAligner(1000);
+        aligner.addChannel(ramp(400, 1), 1);
+        aligner.addChannel(ramp(100, 4), 4);
+        assertEquals(1000, aligner.getOutputRate(), kTolerance);
+
+        double[][] dst=new double[2][16];
+        assertTrue(aligner.next(16, dst));
+        for(int j=0; j<16; j++)
+            assertEquals(dst[0][j], dst[1][j], kTolerance);
+        // between the slow channel's samples at 0 and 4
+        assertEquals(1, dst[1][1], kTolerance);
+        assertEquals(3, dst[1][3], kTolerance);
+    }
+
+    @Test
+    public void stopsAtTheSlowestChannel() {
+        ChannelAligner aligner=new ChannelAligner(1000);
+        aligner.addChannel(ramp(400, 1), 1);
+        aligner.addChannel(ramp(10, 4), 4);
+
+        // samples 0..36 lie between the slow channel's first and last
+        assertEquals(37, aligner.available());
+        double[][] dst=new double[2][40];
+        assertFalse(aligner.next(40, dst));
+        assertTrue(aligner.next(37, dst));
+        assertEquals(0, aligner.available());
+    }
+
+    @Test
+    public void compensatesDecimatorDelay() {
+        String[] modes={Decimator.kFIRMode, Decimator.kBoxcarMode};
+        for(int m=0; m<modes.length; m++)
+        {
+            Decimator d=new Decimator(4, modes[m]);
+            SampleBuffer full=ramp(4000, 1);
+            double[] in=new double[4000];
+            full.getSamples(0, in, 0, in.length);
+            int n=d.process(in, 0, in.length);
+            SampleBuffer decimated=new SampleBuffer();
+            decimated.append(d.getOutput(), 0, n);
+
+            ChannelAligner aligner=new ChannelAligner(1000);
+            aligner.addChannel(full, 1);
+            aligner.addChannel(decimated, 4, d.getOutputOffset());
+            aligner.setOutputRate(250);
+
+            // past the filter's start up, the filtered ramp is the ramp
+            double[][] dst=new double[2][8];
+            for(int i=0; i<4; i++)
+                assertTrue(aligner.next(8, dst));
+            for(int j=0; j<8; j++)
+                assertEquals(dst[0][j], dst[1][j], 1e-6, modes[m]);
+        }
+    }
+
+    @Test
+    public void continuesAfterAGap() {
+        ChannelAligner aligner=new ChannelAligner(1000);
+        SampleBuffer buf=ramp(10, 1);
+        buf.jumpTo(20);
+        double[] later={20, 21, 22, 23, 24};
+        buf.append(later, 0, later.length);
+        aligner.addChannel(buf, 1);
+
+        double[][] dst=new double[1][10];
+        assertTrue(aligner.next(10, dst));
+        assertEquals(9, dst[0][9], kTolerance);
+        assertEquals(5, aligner.available());
+        assertTrue(aligner.next(5, dst));
+        assertEquals(20, dst[0][0], kTolerance);
+        assertEquals(0.025, aligner.getTime(), kTolerance);
+    }
+
+    @Test
+    public void followsABufferRestart() {
+        ChannelAligner aligner=new ChannelAligner(1000);
+        SampleBuffer fast=ramp(100, 1);
+        SampleBuffer slow=ramp(25, 4);
+        aligner.addChannel(fast, 1);
+        aligner.addChannel(slow, 4);
+        double[][] dst=new double[2][50];
+        assertTrue(aligner.next(50, dst));
+
+        // a new acquisition numbers both channels from 0 again, one
+        // channel at a time
+        double[] values=new double[20];
+        for(int i=0; i<values.length; i++)
+            values[i]=i;
+        fast.restartAt(0);
+        fast.append(values, 0, 20);
+        assertEquals(0, aligner.available());
+        for(int i=0; i<5; i++)
+            values[i]=i*4;
+        slow.restartAt(0);
+        slow.append(values, 0, 5);
+        assertEquals(17, aligner.available());
+        assertTrue(aligner.next(17, dst));
+        assertEquals(0, dst[0][0], kTolerance);
+        assertEquals(16, dst[1][16], kTolerance);
+        assertEquals(0.017, aligner.getTime(), kTolerance);
+    }
+
+    @Test
+    public void readsWithoutConsuming() {
+        ChannelAligner aligner=new ChannelAligner(1000);
+        SampleBuffer buf=ramp(100, 1);
+        aligner.addChannel(buf, 1);
+
+        double[][] dst=new double[1][5];
+        assertTrue(aligner.read(0.050, 5, dst));
+        assertEquals(50, dst[0][0], kTolerance);
+        assertEquals(100, buf.numSamples());
+        assertFalse(aligner.read(0.098, 5, dst));
+    }
+
+    @Test
+    public void rejectsInvalidOffsets() {
+        ChannelAligner aligner=new ChannelAligner(1000);
+        assertThrows(IllegalArgumentException.class, () -> aligner.addChannel(new SampleBuffer(), 1, Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> aligner.addChannel(new SampleBuffer(), 1, Double.POSITIVE_INFINITY));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * ChannelExportTest.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the seqlock reader of exported rings: stream boundaries, lost
+ * samples and a reader racing the writer.
+ */
+public class ChannelExportTest {
+    @TempDir
+    Path dir;
+
+    private ChannelExporter export(int capacity) throws IOException {
+        File f=ChannelExporter.exportFile(dir.toFile(), "analog", 2);
+        return new ChannelExporter(f, "analog", (short)2, 1000, 4, capacity);
+    }
+
+    private static double[] ramp(long first, int n) {
+        double[] values=new double[n];
+        for(int i=0; i<n; i++)
+            values[i]=first+i;
+        return values;
+    }
+
+    @Test
+    public void readsTheHeader() throws IOException {
+        try(ChannelExporter writer=export(64); ChannelExport reader=new ChannelExport(writer.getFile()))
+        {
+            assertEquals("analog", reader.getChannelType());
+            assertEquals(2, reader.getChannelIndex());
+            assertEquals(250, reader.getChannelRate());
+            assertEquals(64, reader.getCapacity());
+            assertTrue(reader.isOpen());
+            writer.close();
+            assertFalse(reader.isOpen());
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File f=dir.resolve("junk").toFile();
+        Files.write(f.toPath(), new byte[512]);
+        assertThrows(IOException.class, () -> new ChannelExport(f));
+    }
+
+    @Test
+    public void stopsAtStreamBoundaries() throws IOException {
+        try(ChannelExporter writer=export(64); ChannelExport reader=new ChannelExport(writer.getFile()))
+        {
+            writer.onSamples(ramp(0, 10), 0, 10, 0);
+            writer.onSamples(ramp(10, 5), 0, 5, 10);
+            writer.onSamples(ramp(500, 6), 0, 6, 500);
+
+            double[] dst=new double[64];
+            assertEquals(15, reader.read(dst, 0, dst.length));
+            assertEquals(0, reader.getIndex());
+            assertEquals(14, dst[14]);
+            assertEquals(6, reader.read(dst, 0, dst.length));
+            assertEquals(500, reader.getIndex());
+            assertEquals(505, dst[5]);
+            assertEquals(0, reader.read(dst, 0, dst.length));
+            assertEquals(0, reader.getLost());
+        }
+    }
+
+    @Test
+    public void countsOverwrittenSamples() throws IOException {
+        try(ChannelExporter writer=export(16); ChannelExport reader=new ChannelExport(writer.getFile()))
+        {
+            writer.onSamples(ramp(0, 40), 0, 40, 0);
+            assertEquals(40, reader.available());
+
+            double[] dst=new double[64];
+            assertEquals(16, reader.read(dst, 0, dst.length));
+            assertEquals(24, reader.getIndex());
+            assertEquals(24, reader.getLost());
+            for(int i=0; i<16; i++)
+                assertEquals(24+i, dst[i]);
+        }
+    }
+
+    @Test
+    public void readerSeesConsistentSamplesWhileWriting() throws Exception {
+        final int batches=20000;
+        final int batch=37;
+        try(final ChannelExporter writer=export(256); ChannelExport reader=new ChannelExport(writer.getFile()))
+        {
+            Thread t=new Thread(() -> {
+                double[] values=new double[batch];
+                for(long b=0; b<batches; b++)
+                {
+                    long first=b*batch;
+                    for(int i=0; i<batch; i++)
+                        values[i]=first+i;
+                    writer.onSamples(values, 0, batch, first);
+                }
+            });
+            t.start();
+
+            // every sample read must carry its own index, however the
+            // reader and writer interleave
+            double[] dst=new double[100];
+            long read=0;
+            while(t.isAlive() || reader.available() > 0)
+            {
+                int n=reader.read(dst, 0, dst.length);
+                for(int i=0; i<n; i++)
+                    assertEquals(reader.getIndex()+i, dst[i]);
+                read+=n;
+            }
+            t.join();
+            assertEquals((long)batches*batch, read+reader.getLost());
+        }
+    }
+
+    @Test
+    public void snapshotsStayConsistentWhileStreamsChange() throws Exception {
+        final int batches=50000;
+        try(final ChannelExporter writer=export(64); ChannelExport reader=new ChannelExport(writer.getFile()))
+        {
+            // every batch starts a new stream, so the stream table and
+            // count change on every update and a torn snapshot pairs
+            // samples with the wrong stream's index
+            Thread t=new Thread(() -> {
+                double[] values=new double[3];
+                for(long b=0; b<batches; b++)
+                {
+                    long first=b*1000+b%7;
+                    for(int i=0; i<values.length; i++)
+                        values[i]=first+i;
+                    writer.onSamples(values, 0, values.length, first);
+                }
+            });
+            t.start();
+
+            double[] dst=new double[16];
+            long streams=0;
+            long last=-1;
+            while(t.isAlive() || reader.available() > 0)
+            {
+                int n=reader.read(dst, 0, dst.length);
+                if(n == 0)
+                    continue;
+                assertTrue(n <= 3);
+                for(int i=0; i<n; i++)
+                    assertEquals(reader.getIndex()+i, dst[i]);
+                if(reader.getIndex()/1000 != last)
+                    streams++;
+                last=reader.getIndex()/1000;
+            }
+            t.join();
+            assertTrue(streams > 0);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * DecimatorTest.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the output of each decimation mode, the state kept between
+ * batches and the delay figures the aligner relies on.
+ */
+public class DecimatorTest {
+    private static final double kTolerance=1e-9;
+
+    private static double[] ramp(int n) {
+        double[] values=new double[n];
+        for(int i=0; i<n; i++)
+            values[i]=i;
+        return values;
+    }
+
+    @Test
+    public void passesSamplesThroughWithoutDecimation() {
+        Decimator d=new Decimator(1, Decimator.kFIRMode);
+        double[] in=ramp(10);
+        assertEquals(10, d.process(in, 0, 10));
+        for(int i=0; i<10; i++)
+            assertEquals(in[i], d.getOutput()[i]);
+        assertEquals(0, d.getOutputOffset());
+    }
+
+    @Test
+    public void averagesBlocksInBoxcarMode() {
+        Decimator d=new Decimator(4, Decimator.kBoxcarMode);
+        int n=d.process(ramp(12), 0, 12);
+        assertEquals(3, n);
+        assertEquals(1.5, d.getOutput()[0], kTolerance);
+        assertEquals(5.5, d.getOutput()[1], kTolerance);
+        assertEquals(9.5, d.getOutput()[2], kTolerance);
+        assertEquals(1.5, d.getDelay(), kTolerance);
+        assertEquals(-0.375, d.getOutputOffset(), kTolerance);
+    }
+
+    @Test
+    public void keepsPartialBlocksBetweenBatches() {
+        Decimator d=new Decimator(4, Decimator.kBoxcarMode);
+        double[] in=ramp(8);
+        assertEquals(0, d.process(in, 0, 3));
+        assertEquals(1, d.process(in, 3, 3));
+        assertEquals(1.5, d.getOutput()[0], kTolerance);
+        assertEquals(1, d.process(in, 6, 2));
+        assertEquals(5.5, d.getOutput()[0], kTolerance);
+    }
+
+    @Test
+    public void resetDropsThePartialBlock() {
+        Decimator d=new Decimator(4, Decimator.kBoxcarMode);
+        d.process(new double[] {100, 100}, 0, 2);
+        d.reset();
+        assertEquals(1, d.process(ramp(4), 0, 4));
+        assertEquals(1.5, d.getOutput()[0], kTolerance);
+    }
+
+    @Test
+    public void emitsMinimumAndMaximumPairs() {
+        Decimator d=new Decimator(3, Decimator.kMinMaxMode);
+        double[] in={2, -1, 5, 0, 0, 0};
+        assertEquals(4, d.process(in, 0, in.length));
+        assertEquals(-1, d.getOutput()[0]);
+        assertEquals(5, d.getOutput()[1]);
+        assertEquals(0, d.getOutput()[2]);
+        assertEquals(0, d.getOutput()[3]);
+        assertEquals(2.0/3, d.getOutputRatio(), kTolerance);
+        assertEquals(0, d.getOutputOffset());
+    }
+
+    @Test
+    public void firHasUnitGainAndItsStatedDelay() {
+        Decimator d=new Decimator(4, Decimator.kFIRMode);
+        assertEquals(0.25, d.getOutputRatio(), kTolerance);
+
+        // a constant passes unchanged once the filter has filled
+        double[] dc=new double[400];
+        Arrays.fill(dc, 3);
+        int n=d.process(dc, 0, dc.length);
+        assertEquals(100, n);
+        assertEquals(3, d.getOutput()[n-1], 1e-9);
+
+        // a ramp comes out delayed by getDelay() input samples.  Output k
+        // follows input 4k+3.
+        d=new Decimator(4, Decimator.kFIRMode);
+        n=d.process(ramp(400), 0, 400);
+        double delay=d.getDelay();
+        for(int k=20; k<n; k++)
+            assertEquals(4*k+3-delay, d.getOutput()[k], 1e-6);
+        assertEquals((delay-3)/4, d.getOutputOffset(), kTolerance);
+    }
+
+    @Test
+    public void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new Decimator(0, Decimator.kFIRMode));
+        assertThrows(IllegalArgumentException.class, () -> new Decimator(2, "median"));
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * SampleBufferTest.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the absolute sample indexes, what each overflow policy does with
+ * samples appended beyond the budget and the wait strategies.
+ */
+public class SampleBufferTest {
+    private final SampleBuffer buf=new SampleBuffer();
+
+    @AfterEach
+    public void releaseSpill() {
+        buf.releaseSpill();
+    }
+
+    private static double[] ramp(int first, int n) {
+        double[] values=new double[n];
+        for(int i=0; i<n; i++)
+            values[i]=first+i;
+        return values;
+    }
+
+    private void assertHolds(int first, int n) {
+        assertEquals(n, buf.numSamples());
+        for(int i=0; i<n; i++)
+            assertEquals(first+i, buf.getSample(i));
+    }
+
+    @Test
+    public void numbersSamplesFromTheRestartIndex() {
+        buf.restartAt(1000);
+        buf.append(ramp(0, 10), 0, 10);
+        assertEquals(1000, buf.getFirstIndex());
+        assertEquals(1010, buf.getEndIndex());
+
+        double[] dst=new double[3];
+        buf.getSamplesAt(1004, dst, 0, 3);
+        assertArrayEquals(new double[] {4, 5, 6}, dst);
+
+        buf.removeSamplesBefore(1006);
+        assertEquals(1006, buf.getFirstIndex());
+        assertHolds(6, 4);
+        assertThrows(IndexOutOfBoundsException.class, () -> buf.getSamplesAt(1005, dst, 0, 1));
+    }
+
+    @Test
+    public void jumpKeepsBufferedSamples() {
+        buf.append(ramp(0, 10), 0, 10);
+        buf.jumpTo(20);
+        buf.append(ramp(20, 5), 0, 5);
+        buf.jumpTo(40);
+        buf.jumpTo(50);
+        buf.append(ramp(50, 5), 0, 5);
+
+        assertEquals(20, buf.numSamples());
+        assertEquals(55, buf.getNextIndex());
+        assertEquals(0, buf.getFirstIndex());
+        assertEquals(10, buf.getEndIndex());
+        assertTrue(buf.hasNextRun());
+        assertThrows(IndexOutOfBoundsException.class, () -> buf.getSamplesAt(8, new double[4], 0, 4));
+        assertThrows(IllegalArgumentException.class, () -> buf.jumpTo(54));
+
+        // removing past a run's end continues in the next run
+        buf.removeSamplesBefore(22);
+        assertEquals(22, buf.getFirstIndex());
+        assertEquals(25, buf.getEndIndex());
+        buf.removeSamples(3);
+        assertEquals(50, buf.getFirstIndex());
+        assertFalse(buf.hasNextRun());
+        assertEquals(50, buf.getSample(0));
+
+        // an empty buffer just moves its index
+        buf.clear();
+        assertEquals(55, buf.getFirstIndex());
+        buf.jumpTo(70);
+        assertEquals(70, buf.getFirstIndex());
+        assertFalse(buf.hasNextRun());
+    }
+
+    @Test
+    public void growsPastTheInitialRing() {
+        buf.append(ramp(0, 10000), 0, 10000);
+        buf.removeSamples(9000);
+        buf.append(ramp(10000, 20000), 0, 20000);
+        assertHolds(9000, 21000);
+        assertEquals(21000, buf.getHighWater());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestSamples() {
+        buf.setBudget(10, SampleBuffer.kDropOldest);
+        buf.append(ramp(0, 8), 0, 8);
+        buf.append(ramp(8, 7), 0, 7);
+        assertHolds(5, 10);
+        assertEquals(5, buf.getFirstIndex());
+        assertEquals(1, buf.getOverflowCount());
+        assertEquals(5, buf.getOverflowDropped());
+
+        // a batch larger than the budget keeps only its own newest samples
+        buf.append(ramp(15, 25), 0, 25);
+        assertHolds(30, 10);
+        assertEquals(30, buf.getFirstIndex());
+        assertEquals(2, buf.getOverflowCount());
+        assertEquals(30, buf.getOverflowDropped());
+    }
+
+    @Test
+    public void spillMovesSamplesBackInOrder() {
+        buf.setBudget(10, SampleBuffer.kSpill);
+        buf.append(ramp(0, 15), 0, 15);
+        assertHolds(0, 10);
+        assertEquals(5, buf.getSpilledSamples());
+        assertEquals(1, buf.getOverflowCount());
+        assertEquals(0, buf.getOverflowDropped());
+
+        // more samples queue up behind the spilled ones
+        buf.append(ramp(15, 5), 0, 5);
+        assertEquals(10, buf.getSpilledSamples());
+        assertEquals(1, buf.getOverflowCount());
+
+        buf.removeSamples(6);
+        assertHolds(6, 10);
+        assertEquals(4, buf.getSpilledSamples());
+        buf.removeSamples(10);
+        assertHolds(16, 4);
+        assertEquals(0, buf.getSpilledSamples());
+        assertEquals(10, buf.getTotalSpilled());
+    }
+
+    @Test
+    public void pauseWaitsForRoom() throws InterruptedException {
+        buf.setBudget(10, SampleBuffer.kPause);
+        buf.append(ramp(0, 8), 0, 8);
+        assertTrue(buf.awaitRoom(2, 1));
+        assertFalse(buf.isPaused());
+
+        assertFalse(buf.awaitRoom(4, 1));
+        assertTrue(buf.isPaused());
+        assertFalse(buf.awaitRoom(4, 1));
+        assertEquals(1, buf.getOverflowCount());
+
+        buf.removeSamples(2);
+        assertTrue(buf.awaitRoom(4, 1));
+        assertFalse(buf.isPaused());
+
+        // samples appended regardless are dropped like kDropOldest
+        buf.append(ramp(8, 6), 0, 6);
+        assertHolds(4, 10);
+        assertEquals(2, buf.getOverflowCount());
+    }
+
+    @Test
+    public void sharedBudgetLimitsEveryBuffer() {
+        MemoryBudget shared=new MemoryBudget(12);
+        SampleBuffer other=new SampleBuffer();
+        buf.setMemoryBudget(shared);
+        other.setMemoryBudget(shared);
+
+        buf.append(ramp(0, 8), 0, 8);
+        other.append(ramp(0, 8), 0, 8);
+        assertEquals(8, buf.numSamples());
+        assertEquals(4, other.numSamples());
+        assertEquals(4, other.getOverflowDropped());
+
+        buf.removeSamples(8);
+        other.append(ramp(8, 8), 0, 8);
+        assertEquals(12, other.numSamples());
+    }
+
+    @Test
+    public void everyStrategyWakesOnAppend() throws Exception {
+        String[] names={"block", "park", "spin"};
+        for(int i=0; i<names.length; i++)
+        {
+            final SampleBuffer waited=new SampleBuffer();
+            waited.setWaitStrategy(WaitStrategy.forName(names[i]));
+            assertFalse(waited.awaitSamples(1, 1), names[i]);
+
+            Thread appender=new Thread(() -> {
+                for(int k=0; k<4; k++)
+                    waited.append(new double[] {k}, 0, 1);
+            });
+            appender.start();
+            assertTrue(waited.awaitSamples(4, 10000), names[i]);
+            assertEquals(4, waited.numSamples());
+            appender.join();
+        }
+    }
+
+    @Test
+    public void rejectsUnknownStrategies() {
+        assertNull(WaitStrategy.forName("yield"));
+        assertThrows(IllegalArgumentException.class, () -> buf.setWaitStrategy(null));
+    }
+
+    @Test
+    public void rejectsUnknownPolicies() {
+        assertThrows(IllegalArgumentException.class, () -> buf.setBudget(10, "block"));
+        assertThrows(IllegalArgumentException.class, () -> buf.setBudget(0, SampleBuffer.kDropOldest));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * StaxXmlRpcClientTest.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.xmlrpc.XmlRpcException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the StAX response decoder against hand written responses, the
+ * request encoder's escaping and number format, and the reply timeout.
+ */
+public class StaxXmlRpcClientTest {
+    private static final String kHead="<?xml version=\"1.0\"?><methodResponse><params><param>";
+    private static final String kTail="</param></params></methodResponse>";
+
+    /**
+     * Decode a response holding one value with a decoder
+     */
+    private static void parse(String value, StaxXmlRpcClient.ResultDecoder decoder) throws XmlRpcException {
+        byte[] body=(kHead+value+kTail).getBytes(StandardCharsets.UTF_8);
+        StaxXmlRpcClient.parseResponse(new ByteArrayInputStream(body), decoder);
+    }
+
+    @Test
+    public void decodesScalars() throws XmlRpcException {
+        final double[] d=new double[1];
+        parse("<value><double>-2.5e3</double></value>", in -> {
+            assertEquals(XmlRpcValueReader.kDouble, in.beginValue());
+            d[0]=in.readDouble();
+        });
+        assertEquals(-2500, d[0]);
+
+        final int[] i=new int[1];
+        parse("<value><i4> 42 </i4></value>", in -> {
+            assertEquals(XmlRpcValueReader.kI4, in.beginValue());
+            i[0]=in.readInt();
+        });
+        assertEquals(42, i[0]);
+
+        final boolean[] b=new boolean[1];
+        parse("<value><boolean>1</boolean></value>", in -> {
+            in.beginValue();
+            b[0]=in.readBoolean();
+        });
+        assertTrue(b[0]);
+    }
+
+    @Test
+    public void treatsUntypedValuesAsStrings() throws XmlRpcException {
+        final String[] s=new String[1];
+        parse("<value>a &amp; b</value>", in -> {
+            assertEquals(XmlRpcValueReader.kString, in.beginValue());
+            s[0]=in.readString();
+        });
+        assertEquals("a & b", s[0]);
+    }
+
+    @Test
+    public void decodesArrays() throws XmlRpcException {
+        final List<Integer> values=new ArrayList<Integer>();
+        parse("<value><array><data>"
+                +"<value><int>1</int></value>"
+                +"<value><i4>-2</i4></value>"
+                +"<value>3</value>"
+                +"</data></array></value>", in -> {
+            assertEquals(XmlRpcValueReader.kArray, in.beginValue());
+            while(in.nextElement())
+            {
+                in.beginValue();
+                values.add(in.readInt());
+            }
+        });
+        assertEquals(List.of(1, -2, 3), values);
+    }
+
+    @Test
+    public void decodesStructsAndSkipsValues() throws XmlRpcException {
+        final Map<String, String> members=new LinkedHashMap<String, String>();
+        parse("<value><struct>"
+                +"<member><name>type</name><value><string>analog</string></value></member>"
+                +"<member><name>nested</name><value><array><data><value><struct>"
+                +"<member><name>x</name><value><double>1</double></value></member>"
+                +"</struct></value></data></array></value></member>"
+                +"<member><name>index</name><value><i4>3</i4></value></member>"
+                +"</struct></value>", in -> {
+            assertEquals(XmlRpcValueReader.kStruct, in.beginValue());
+            String name;
+            while((name=in.nextMember()) != null)
+            {
+                in.beginValue();
+                if(name.equals("nested"))
+                    in.skipValue();
+                else
+                    members.put(name, in.readString());
+            }
+        });
+        assertEquals(Map.of("type", "analog", "index", "3"), members);
+    }
+
+    @Test
+    public void throwsFaults() {
+        String fault="<?xml version=\"1.0\"?><methodResponse><fault><value><struct>"
+            +"<member><name>faultCode</name><value><int>-32601</int></value></member>"
+            +"<member><name>faultString</name><value><string>no such method</string></value></member>"
+            +"</struct></value></fault></methodResponse>";
+        XmlRpcException e=assertThrows(XmlRpcException.class, () ->
+            StaxXmlRpcClient.parseResponse(new ByteArrayInputStream(fault.getBytes(StandardCharsets.UTF_8)), in -> fail("decoded a fault")));
+        assertEquals(-32601, e.code);
+        assertEquals("no such method", e.getMessage());
+    }
+
+    @Test
+    public void rejectsMalformedResponses() {
+        assertThrows(XmlRpcException.class, () ->
+            parse("<value><double>1.0</value>", in -> {
+                in.beginValue();
+                in.readDouble();
+            }));
+        assertThrows(XmlRpcException.class, () ->
+            parse("<value><int>one</int></value>", in -> {
+                in.beginValue();
+                in.readInt();
+            }));
+    }
+
+    @Test
+    public void escapesRequests() throws XmlRpcException {
+        Map<String, Object> struct=new LinkedHashMap<String, Object>();
+        struct.put("type", "a<b");
+        byte[] request=StaxXmlRpcClient.encodeRequest("acq.set", new Object[] {struct, Integer.valueOf(7)});
+        String xml=new String(request, StandardCharsets.UTF_8);
+        assertTrue(xml.contains("<methodName>acq.set</methodName>"), xml);
+        assertTrue(xml.contains("<string>a&lt;b</string>"), xml);
+        assertTrue(xml.contains("<i4>7</i4>"), xml);
+    }
+
+    @Test
+    public void encodesDoublesWithoutExponent() throws XmlRpcException {
+        byte[] request=StaxXmlRpcClient.encodeRequest("acq.set", new Object[] {Double.valueOf(1e-5), Double.valueOf(2.5e9)});
+        String xml=new String(request, StandardCharsets.UTF_8);
+        assertTrue(xml.contains("<double>0.00001</double>"), xml);
+        assertTrue(xml.contains("<double>2500000000</double>"), xml);
+        assertThrows(XmlRpcException.class, () ->
+            StaxXmlRpcClient.encodeRequest("acq.set", new Object[] {Double.valueOf(Double.NaN)}));
+    }
+
+    @Test
+    public void timesOutOnASilentServer() throws Exception {
+        try(ServerSocket server=new ServerSocket(0))
+        {
+            StaxXmlRpcClient client=new StaxXmlRpcClient(new URL("http://127.0.0.1:"+server.getLocalPort()+"/RPC2"));
+            client.setReplyTimeout(200);
+            Thread accepter=new Thread(() -> {
+                try(Socket s=server.accept())
+                {
+                    Thread.sleep(5000);
+                }
+                catch (Exception e)
+                {
+                }
+            });
+            accepter.setDaemon(true);
+            accepter.start();
+
+            long start=System.nanoTime();
+            assertThrows(XmlRpcException.class, () -> client.call("acq.getSamplingRate", new Object[0], in -> fail("no response")));
+            assertTrue(System.nanoTime()-start < 4000000000L);
+        }
+    }
+}
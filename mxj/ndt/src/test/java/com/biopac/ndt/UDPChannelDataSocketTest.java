@@ -0,0 +1,115 @@
+/*
+ * UDPChannelDataSocketTest.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sends datagrams to a UDP data socket on the loopback interface and
+ * checks how the socket handles lost datagrams and a decimator attached
+ * while streaming.
+ */
+public class UDPChannelDataSocketTest {
+    private static final long kTimeoutMillis=5000;
+
+    /**
+     * Send a datagram of consecutive samples whose values are their sample
+     * numbers
+     */
+    private static void send(DatagramSocket out, int port, int first, int n) throws IOException {
+        ByteBuffer packet=ByteBuffer.allocate(8+n*8);
+        packet.putInt(first);
+        packet.putInt(n*8);
+        for(int i=0; i<n; i++)
+            packet.putDouble(first+i);
+        out.send(new DatagramPacket(packet.array(), packet.capacity(), InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Wait for the buffer's next index to reach a value
+     */
+    private static void awaitNextIndex(SampleBuffer buf, long index) throws InterruptedException {
+        long deadline=System.currentTimeMillis()+kTimeoutMillis;
+        while(buf.getNextIndex() != index && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(index, buf.getNextIndex());
+    }
+
+    private static int freePort() throws IOException {
+        try(DatagramSocket s=new DatagramSocket(0))
+        {
+            return s.getLocalPort();
+        }
+    }
+
+    @Test
+    public void lostDatagramKeepsUnreadSamples() throws Exception {
+        try(UDPChannelDataSocket socket=new UDPChannelDataSocket(freePort()); DatagramSocket out=new DatagramSocket())
+        {
+            socket.startProcessing();
+            SampleBuffer buf=socket.getSampleBuffer();
+
+            send(out, socket.getPort(), 0, 10);
+            send(out, socket.getPort(), 10, 10);
+            assertTrue(buf.awaitSamples(20, kTimeoutMillis));
+
+            // the datagram holding samples 20..29 is lost
+            send(out, socket.getPort(), 30, 10);
+            assertTrue(buf.awaitSamples(30, kTimeoutMillis));
+
+            for(int i=0; i<20; i++)
+                assertEquals(i, buf.getSample(i));
+            for(int i=20; i<30; i++)
+                assertEquals(i+10, buf.getSample(i));
+            assertEquals(10, socket.getStats().getDroppedSamples());
+
+            // the indexes address the run before the gap until it is read
+            assertEquals(0, buf.getFirstIndex());
+            assertEquals(20, buf.getEndIndex());
+            assertEquals(40, buf.getNextIndex());
+            buf.removeSamplesBefore(25);
+            assertEquals(30, buf.getFirstIndex());
+            assertEquals(40, buf.getEndIndex());
+        }
+    }
+
+    @Test
+    public void decimatorRestartsTheBufferAtTheNewRate() throws Exception {
+        try(UDPChannelDataSocket socket=new UDPChannelDataSocket(freePort()); DatagramSocket out=new DatagramSocket())
+        {
+            socket.startProcessing();
+            SampleBuffer buf=socket.getSampleBuffer();
+
+            send(out, socket.getPort(), 0, 10);
+            send(out, socket.getPort(), 10, 10);
+            assertTrue(buf.awaitSamples(20, kTimeoutMillis));
+
+            // the raw samples go and the decimated ones are numbered at
+            // half the rate from the next datagram on
+            socket.setDecimator(new Decimator(2, Decimator.kBoxcarMode));
+            send(out, socket.getPort(), 20, 10);
+            awaitNextIndex(buf, 15);
+            assertEquals(10, buf.getFirstIndex());
+            assertEquals(20.5, buf.getSample(0));
+            assertEquals(28.5, buf.getSample(4));
+
+            socket.setDecimator(null);
+            send(out, socket.getPort(), 30, 10);
+            awaitNextIndex(buf, 40);
+            assertEquals(30, buf.getFirstIndex());
+            assertEquals(30, buf.getSample(0));
+        }
+    }
+}
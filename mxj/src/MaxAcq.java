@@ -1,29 +1,273 @@
 import com.cycling74.max.*;
 import com.cycling74.jitter.*;
 import com.biopac.ndt.*;
-import java.util.Map;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Vector;
 import java.util.Enumeration;
 import java.net.InetAddress;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class MaxAcq extends MaxObject {
 	private class DataConnection extends Object {
 		public JitterMatrix matrix = new JitterMatrix(1, "float64", 20, 1);
 		public ChannelDataSocket data_socket = null;
+		public ReplaySource replay = null;
+		public ChannelExporter exporter = null;
 		public String channel_type = "";
+		public ChannelType type = null;
 		public int channel = 0;
+		// the "<type> <idx> jit_matrix <name>" message for matrix
+		public Atom[] output = null;
+		public int divider = 1;
+		public JitterMatrix envelope_matrix = null;
+		public double[] envelope = null;
+		public double[][] envelope_rows = null;
+		public SpectrumAnalyzer spectrum = null;
+		public JitterMatrix spectrum_matrix = null;
+		public double[] spectrum_values = null;
+		public long spectrum_sequence = 0;
+		public MatrixStage stage = null;
+		public ChannelTask stage_task = null;
+		public long overflow_reported = 0;
+	}
+	
+	// frames cut from a stream's buffer straight into a matrix on a worker.
+	// The stream's matrix and a back matrix take turns: a worker fills
+	// whichever is free and publishes it with an atomic state change, and
+	// bang only sends the filled one and hands it back, so the copy runs
+	// off the Max thread.  The matrices are still made and resized on the
+	// Max side only, a new frame size being applied to each matrix as bang
+	// hands it back; up to two frames of the old size may still go out.  A
+	// frame filled on one bang is sent on the next, so output lags the
+	// Max-thread path by up to one bang, and a stream whose frames come
+	// faster than two per bang falls behind, the rest waiting in its buffer.
+	private static class MatrixStage implements Runnable {
+		private static final int kFree = 0;		// the worker may fill it
+		private static final int kFilled = 1;	// waiting for bang
+		private static final int kStale = 2;	// filled before clear(), bang drops it
+		
+		private final SampleBuffer samples;
+		private final JitterMatrix back;
+		private final JitterMatrix[] matrices;
+		private final Atom[][] outputs;
+		// a state change also publishes the matrix's size and arrival time
+		private final AtomicIntegerArray state = new AtomicIntegerArray(2);
+		private final int[] sizes = new int[2];
+		private final long[] arrived = new long[2];
+		private volatile int frame_size;
+		private int fill = 0;	// worker: next matrix to fill
+		private int send = 0;	// Max side: next matrix to send
+		private double[] vec = new double[0];
+		private boolean closed = false;
+		
+		public MatrixStage(DataConnection connection, int size) {
+			samples = connection.data_socket.getSampleBuffer();
+			back = new JitterMatrix(1, "float64", size, 1);
+			if(connection.matrix.getDim()[0] != size) {
+				connection.matrix.setDim(new int[] {size, 1});
+			}
+			matrices = new JitterMatrix[] {connection.matrix, back};
+			outputs = new Atom[][] {connection.output, output_message(connection, back.getAttrString("name"))};
+			sizes[0] = sizes[1] = size;
+			frame_size = size;
+		}
+		
+		// whether the stage still serves the connection's buffer and output
+		public boolean serves(DataConnection connection) {
+			return samples == connection.data_socket.getSampleBuffer() && outputs[0] == connection.output;
+		}
+		
+		public void setFrameSize(int size) {
+			frame_size = size;
+		}
+		
+		// worker side: fill the free matrices with the next frames
+		public synchronized void run() {
+			while(! closed && state.get(fill) == kFree) {
+				int size = sizes[fill];
+				if(samples.numSamples() < size) {
+					break;
+				}
+				if(vec.length != size) {
+					vec = new double[size];
+				}
+				arrived[fill] = samples.getOldestArrivalNanos();
+				samples.getSamples(0, vec, 0, size);
+				samples.removeSamples(size);
+				matrices[fill].copyArrayToMatrix(vec);
+				state.set(fill, kFilled);
+				fill ^= 1;
+			}
+		}
+		
+		// Max side: the output message of the next filled matrix, null if
+		// none is filled
+		public Atom[] poll() {
+			while(true) {
+				int s = state.get(send);
+				if(s == kFilled) {
+					return outputs[send];
+				}
+				if(s != kStale) {
+					return null;
+				}
+				release();
+			}
+		}
+		
+		// System.nanoTime() at which the frame poll() returned arrived
+		public long arrived() {
+			return arrived[send];
+		}
+		
+		// Max side: hand the matrix poll() returned back to the worker
+		public void release() {
+			int size = frame_size;
+			if(sizes[send] != size) {
+				matrices[send].setDim(new int[] {size, 1});
+				sizes[send] = size;
+			}
+			state.set(send, kFree);
+			send ^= 1;
+		}
+		
+		// drop filled frames, e.g. when the acquisition restarts; waits for
+		// a running fill to finish
+		public synchronized void clear() {
+			for(int i=0; i < 2; i++) {
+				state.compareAndSet(i, kFilled, kStale);
+			}
+		}
+		
+		// waits for a running fill to finish
+		public synchronized void close() {
+			closed = true;
+			back.freePeer();
+		}
+	}
+	
+	// sampling rate divider of the buffered, possibly decimated, samples
+	private static int buffered_divider(DataConnection connection) {
+		Decimator d = connection.data_socket.getDecimator();
+		if(d == null) {
+			return connection.divider;
+		}
+		return Math.max(1, (int)Math.round(connection.divider / d.getOutputRatio()));
 	}
 
+	// the streamed channels in channel order: analog, digital then calc,
+	// each by index.  A table is never changed; adding or removing a
+	// channel makes a new one, so bang can walk the table it read while a
+	// message reconfigures the streams.
+	private static class ConnectionTable {
+		public static final ConnectionTable kEmpty = new ConnectionTable(new DataConnection[0]);
+		
+		private final DataConnection[] list;
+		private final DataConnection[][] slots; // by type, then index
+		
+		private ConnectionTable(DataConnection[] l) {
+			list = l;
+			slots = new DataConnection[ChannelType.values().length][];
+			for(int t=0; t < slots.length; t++) {
+				int n = 0;
+				for(int i=0; i < list.length; i++) {
+					if(list[i].type.ordinal() == t) {
+						n = Math.max(n, list[i].channel+1);
+					}
+				}
+				slots[t] = new DataConnection[n];
+			}
+			for(int i=0; i < list.length; i++) {
+				slots[list[i].type.ordinal()][list[i].channel] = list[i];
+			}
+		}
+		
+		// the connections in channel order; shared, never modify it
+		public DataConnection[] list() {
+			return list;
+		}
+		
+		public DataConnection get(ChannelType type, int idx) {
+			DataConnection[] row = slots[type.ordinal()];
+			return idx >= 0 && idx < row.length ? row[idx] : null;
+		}
+		
+		// a table that also holds the connection, replacing the one of its
+		// channel
+		public ConnectionTable with(DataConnection connection) {
+			DataConnection[] l = new DataConnection[list.length+1];
+			int n = 0;
+			boolean added = false;
+			for(int i=0; i < list.length; i++) {
+				DataConnection c = list[i];
+				if(c.type == connection.type && c.channel == connection.channel) {
+					continue;
+				}
+				if(!added && (c.type.ordinal() > connection.type.ordinal() || 
+						(c.type == connection.type && c.channel > connection.channel))) {
+					l[n++] = connection;
+					added = true;
+				}
+				l[n++] = c;
+			}
+			if(!added) {
+				l[n++] = connection;
+			}
+			return new ConnectionTable(Arrays.copyOf(l, n));
+		}
+		
+		public ConnectionTable without(DataConnection connection) {
+			DataConnection[] l = new DataConnection[list.length];
+			int n = 0;
+			for(int i=0; i < list.length; i++) {
+				if(list[i] != connection) {
+					l[n++] = list[i];
+				}
+			}
+			return n == list.length ? this : new ConnectionTable(Arrays.copyOf(l, n));
+		}
+	}
+	
 	// current server
 	private ACQServer current_server = null;
-	private int nsamples = 20;
+	private volatile int nsamples = 20;
 	private boolean first_stream = true;
-	private Map<String, DataConnection> connections = new HashMap<String, DataConnection>();
+	private volatile ConnectionTable connections = ConnectionTable.kEmpty;
+	private File record_dir = null;
+	private File export_dir = null;
+	private File replay_dir = null;
+	private double replay_speed = 1;
+	private boolean jmx = false;
+	private long slow_call_ms = 0;
+	private double sampling_rate = 0;
+	private boolean align = false;
+	private double align_rate = 0;
+	private ChannelAligner aligner = null;
+	private DataConnection[] aligned_connections = null;
+	private double[][] aligned_frames = null;
+	private MaxClock feature_clock = null;
+	private double feature_interval = 0;
+	private double[] feature_values = new double[8];
+	private WorkerPool workers = null;
+	private int worker_threads = 0;
+	private boolean virtual_threads = false;
+	// by default the streams together may fill a quarter of the heap
+	private MemoryBudget memory_budget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4 / 8);
+	private int channel_budget = Integer.MAX_VALUE;
+	private String overflow_policy = SampleBuffer.kDropOldest;
+	private MostRecentPoller poller = null;
+	private MostRecentSnapshot poll_snapshot = new MostRecentSnapshot();
+	private JitterMatrix poll_matrix = null;
+	private long poll_sequence = 0;
+	private OutputChannelWriter output_writer = null;
+	private double output_rate = 100;
 	static private int PORT = 16214;
 	
 //	DataConnection connection = new DataConnection();
@@ -33,6 +277,77 @@ public class MaxAcq extends MaxObject {
 		connect();
 	}
 
+	// release sockets, threads and matrices when the object is deleted or
+	// the patch is closed so a reopened patch can rebind its ports
+	protected void notifyDeleted() {
+		stop_polling();
+		if(output_writer != null) {
+			output_writer.close();
+			output_writer = null;
+		}
+		if(workers != null) {
+			workers.close();
+			workers = null;
+		}
+		if(feature_clock != null) {
+			feature_clock.release();
+			feature_clock = null;
+		}
+		DataConnection[] dcs = connections.list();
+		connections = ConnectionTable.kEmpty;
+		for(int d=0; d < dcs.length; d++) {
+			close_connection(dcs[d]);
+		}
+		aligner = null;
+	}
+
+	private DataConnection find_connection(String s, int idx) {
+		ChannelType type = ChannelType.forName(s);
+		return type == null ? null : connections.get(type, idx);
+	}
+	
+	// build the matrix output message once, not on every bang
+	private void describe_connection(DataConnection connection) {
+		connection.output = output_message(connection, connection.matrix.getAttrString("name"));
+	}
+	
+	private static Atom[] output_message(DataConnection connection, String matrix_name) {
+		return new Atom[] {
+				Atom.newAtom(connection.channel_type),
+				Atom.newAtom(connection.channel),
+				Atom.newAtom("jit_matrix"),
+				Atom.newAtom(matrix_name)
+			};
+	}
+	
+	private void close_connection(DataConnection connection) {
+		if(connection.replay != null) {
+			connection.replay.close();
+			connection.replay = null;
+		}
+		if(connection.data_socket != null) {
+			stop_recording(connection);
+			stop_exporting(connection);
+			connection.data_socket.getStats().unregister();
+			connection.data_socket.close();
+			connection.data_socket = null;
+		}
+		connection.matrix.freePeer();
+		if(connection.stage != null) {
+			connection.stage.close();
+			connection.stage = null;
+			connection.stage_task = null;
+		}
+		if(connection.envelope_matrix != null) {
+			connection.envelope_matrix.freePeer();
+			connection.envelope_matrix = null;
+		}
+		if(connection.spectrum_matrix != null) {
+			connection.spectrum_matrix.freePeer();
+			connection.spectrum_matrix = null;
+		}
+	}
+
 	// simple connection method (automagic)
 	public void connect() {
 		 Vector servers = locate_servers();
@@ -47,14 +362,19 @@ public class MaxAcq extends MaxObject {
 			});
 	}
 
+	// convert a Max path (e.g. "Macintosh HD:/Users/...") to a native one
+	private String native_path(String s) {
+		if(s.indexOf(":/") >= 0) {
+			return s.substring(s.indexOf(":/")+1);
+		}
+		return s;
+	}
+
 	public void loadTemplate(String s) {
 		// load the specified test template onto the server so we
 		// can toggle acquisitions and have a valid channel configuration
 		if(current_server != null) {
-			String filename = s;
-			if(s.indexOf(":/") >= 0) {
-				filename = s.substring(s.indexOf(":/")+1);
-			}
+			String filename = native_path(s);
 			
 			File template_file = null;
 			try {
@@ -107,15 +427,13 @@ public class MaxAcq extends MaxObject {
 						});
 			}
 			catch(ProtocolException e) {
-				// nothing;
+				error(e.toString());
 			}
 		}
 	}
 	
 	private boolean isValidChannelType(String s) {
-		return s.equals(ACQServer.kAnalogChannelType) || 
-			s.equals(ACQServer.kDigitalChannelType) || 
-			s.equals(ACQServer.kCalcChannelType);
+		return ChannelType.forName(s) != null;
 	}
 
 	public void getEnabledChannels(String s) {
@@ -126,18 +444,18 @@ public class MaxAcq extends MaxObject {
 		
 		if(current_server != null) {
 			try {
-				Vector v = current_server.getEnabledChannels(s);
-				Atom[] a = new Atom[v.size()+2];
+				int[] v = current_server.getEnabledChannels(ChannelType.forName(s));
+				Atom[] a = new Atom[v.length+2];
 				a[0] = Atom.newAtom("EnabledChannels");
 				a[1] = Atom.newAtom(s);
-				for(int i=0; i < v.size(); i++) {
-					a[i+2] = Atom.newAtom(((Integer)v.get(i)).intValue());
+				for(int i=0; i < v.length; i++) {
+					a[i+2] = Atom.newAtom(v[i]);
 				}
 				
 				outlet(0, a);
 			}
 			catch(ProtocolException e) {
-				// nothing;
+				error(e.toString());
 			}
 		}
 	}
@@ -201,6 +519,11 @@ public class MaxAcq extends MaxObject {
 				boolean v = current_server.isAcquisitionInProgress();
 				if(e != v) {
 					current_server.toggleAcquisition();
+					// aligned output starts over with the new acquisition;
+					// the aligner also follows each buffer as it restarts
+					if(aligner != null) {
+						aligner.reset();
+					}
 				}
 			}
 			catch(ProtocolException e) {
@@ -209,40 +532,1059 @@ public class MaxAcq extends MaxObject {
 		}
 	}
 	
+	// archive every streamed channel into the given folder
+	public void record(String s) {
+		File dir = new File(native_path(s));
+		if(! dir.isDirectory() || ! dir.canWrite()) {
+			error("Can't record into folder " + s);
+			return;
+		}
+		
+		record_dir = dir;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.data_socket.getRecorder() == null) {
+				start_recording(connection);
+			}
+		}
+	}
+	
+	public void stoprecord() {
+		record_dir = null;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			stop_recording(dcs[d]);
+		}
+	}
+	
+	private void start_recording(DataConnection connection) {
+		try {
+			double rate;
+			int divider;
+			if(connection.replay != null) {
+				// a replayed channel keeps the rates it was recorded with
+				ChannelRecording recording = connection.replay.getRecording();
+				rate = recording.getSamplingRate();
+				divider = recording.getSamplingRateDivider();
+			}
+			else if(current_server != null) {
+				rate = current_server.getSamplingRate();
+				divider = current_server.getSamplingRateDivider(connection.channel_type, (short)connection.channel);
+			}
+			else {
+				error("Can't record " + connection.channel_type + " " + connection.channel + ": not connected");
+				return;
+			}
+			String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+			File base = new File(record_dir, connection.channel_type + connection.channel + "-" + stamp);
+			connection.data_socket.setRecorder(new ChannelRecorder(
+					base, connection.channel_type, (short)connection.channel, rate, divider
+			));
+		}
+		catch(ProtocolException e) {
+			error("Can't record " + connection.channel_type + " " + connection.channel + ": " + e);
+		}
+	}
+	
+	private void stop_recording(DataConnection connection) {
+		ChannelRecorder recorder = connection.data_socket.getRecorder();
+		if(recorder != null) {
+			connection.data_socket.setRecorder(null);
+			recorder.close();
+		}
+	}
+	
+	// share every streamed channel with local processes through ring files
+	// in the given folder
+	public void export(String s) {
+		File dir = new File(native_path(s));
+		if(! dir.isDirectory() || ! dir.canWrite()) {
+			error("Can't export into folder " + s);
+			return;
+		}
+		
+		export_dir = dir;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.exporter == null && connection.replay == null) {
+				start_exporting(connection);
+			}
+		}
+	}
+	
+	public void stopexport() {
+		export_dir = null;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			stop_exporting(dcs[d]);
+		}
+	}
+	
+	private void start_exporting(DataConnection connection) {
+		try {
+			double rate = current_server.getSamplingRate();
+			int divider = current_server.getSamplingRateDivider(connection.channel_type, (short)connection.channel);
+			File f = ChannelExporter.exportFile(export_dir, connection.channel_type, connection.channel);
+			connection.exporter = new ChannelExporter(f, connection.channel_type, (short)connection.channel, rate, divider);
+			connection.data_socket.addSampleListener(connection.exporter);
+		}
+		catch(ProtocolException e) {
+			error("Can't export " + connection.channel_type + " " + connection.channel + ": " + e);
+		}
+		catch(IOException e) {
+			error("Can't export " + connection.channel_type + " " + connection.channel + ": " + e);
+		}
+	}
+	
+	private void stop_exporting(DataConnection connection) {
+		if(connection.exporter != null) {
+			connection.data_socket.removeSampleListener(connection.exporter);
+			connection.exporter.close();
+			connection.exporter = null;
+		}
+	}
+	
+	// stream channels from the recordings in a folder instead of the server
+	public void replay(String s) {
+		File dir = new File(native_path(s));
+		if(! dir.isDirectory()) {
+			error("Can't replay from folder " + s);
+			return;
+		}
+		replay_dir = dir;
+	}
+	
+	// 1 is real time, 0 plays as fast as the patch consumes
+	public void replayspeed(double speed) {
+		replay_speed = speed < 0 ? 0 : speed;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.replay != null) {
+				connection.replay.setSpeed(replay_speed);
+			}
+		}
+	}
+	
+	public void stopreplay() {
+		replay_dir = null;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.replay != null) {
+				connections = connections.without(connection);
+				close_connection(connection);
+			}
+		}
+	}
+	
+	// find the most recent recording of a channel in the replay folder
+	private File latest_recording(String s, int idx) {
+		String prefix = s + idx + "-";
+		String suffix = "." + String.format("%04d", 0) + ChannelRecorder.kSegmentSuffix;
+		String[] names = replay_dir.list();
+		String latest = null;
+		for(int i=0; names != null && i < names.length; i++) {
+			if(names[i].startsWith(prefix) && names[i].endsWith(suffix)) {
+				if(latest == null || names[i].compareTo(latest) > 0) {
+					latest = names[i];
+				}
+			}
+		}
+		
+		if(latest == null) {
+			return null;
+		}
+		return new File(replay_dir, latest.substring(0, latest.length() - suffix.length()));
+	}
+	
+	// matrices are resized by bang before they are filled, not here, as this
+	// may run while bang is sending them
 	public void nsamples(int n) {
 		nsamples = n < 1 ? 1 : n;
-	//	connection.matrix.setDim(new int[] {nsamples, 1});
-		Iterator<DataConnection> dcs = connections.values().iterator();
-		while(dcs.hasNext()) {
-			DataConnection connection = dcs.next();
-			connection.matrix.setDim(new int[] {nsamples, 1});
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.stage != null) {
+				connection.stage.setFrameSize(nsamples);
+			}
 		}
 	}
 	
-	public void bang() {
-		Iterator<DataConnection> dcs = connections.values().iterator();
-		if(current_server != null) {
-			double vec[] = new double[nsamples];
-			
-			while(dcs.hasNext()) {
-				DataConnection connection = dcs.next();
-				if(connection.data_socket != null) {
-				//	post("nsmap "+connection.data_socket.numSamples() + " " + nsamples);
-					while(connection.data_socket.numSamples() >= nsamples) {
-						for(int i=0; i < nsamples; i++) {
-							vec[i] = connection.data_socket.getSample(i);
-						}
-						connection.matrix.copyArrayToMatrix(vec);
-						connection.data_socket.removeSamplesFromBuffer(nsamples);
-						outlet(0, new Atom[] {
-								Atom.newAtom(connection.channel_type),
-								Atom.newAtom(connection.channel),
-								Atom.newAtom("jit_matrix"),
-								Atom.newAtom(connection.matrix.getAttrString("name"))
-							});
+	// "decimate <type> <idx> <factor> [fir|boxcar|minmax]" reduces the rate
+	// of a stream on its receive thread, a factor of 1 turns it off
+	public void decimate(Atom[] args) {
+		if(args.length < 3 || args.length > 4) {
+			error("usage: decimate <type> <idx> <factor> [fir|boxcar|minmax]");
+			return;
+		}
+		String s = args[0].getString();
+		int idx = args[1].getInt();
+		int factor = args[2].getInt();
+		String mode = args.length > 3 ? args[3].getString() : Decimator.kFIRMode;
+		
+		DataConnection connection = find_connection(s, idx);
+		if(connection == null) {
+			error("Not streaming " + s + " " + idx);
+			return;
+		}
+		
+		try {
+			connection.data_socket.setDecimator(factor == 1 ? null : new Decimator(factor, mode));
+		}
+		catch(IllegalArgumentException e) {
+			error(e.getMessage());
+			return;
+		}
+		aligner = null;
+	}
+	
+	// "envelope <type> <idx> <window> <columns>" outputs a columns x 4 matrix
+	// with the min, max, mean and RMS rows of the newest window of a stream.
+	// The window is a number of samples or a duration like 10s or 500ms.
+	// The stream's summary is only kept from its first envelope on, so
+	// columns before that come out as NaN.
+	public void envelope(Atom[] args) {
+		if(args.length != 4) {
+			error("usage: envelope <type> <idx> <window> <columns>");
+			return;
+		}
+		String s = args[0].getString();
+		int idx = args[1].getInt();
+		int columns = args[3].getInt();
+		
+		DataConnection connection = find_connection(s, idx);
+		if(connection == null || connection.data_socket == null) {
+			error("Not streaming " + s + " " + idx);
+			return;
+		}
+		if(columns < 1 || columns > SummaryPyramid.kMaxColumns) {
+			error("envelope columns must be between 1 and " + SummaryPyramid.kMaxColumns);
+			return;
+		}
+		
+		long window;
+		if(args[2].isString()) {
+			String w = args[2].getString();
+			double scale = 1;
+			if(w.endsWith("ms")) {
+				w = w.substring(0, w.length()-2);
+				scale = 0.001;
+			}
+			else if(w.endsWith("s")) {
+				w = w.substring(0, w.length()-1);
+			}
+			if(sampling_rate <= 0) {
+				error("Sampling rate unknown, give the envelope window in samples");
+				return;
+			}
+			try {
+				window = Math.round(Double.parseDouble(w) * scale * sampling_rate / buffered_divider(connection));
+			}
+			catch(NumberFormatException e) {
+				error("Invalid envelope window " + args[2].getString());
+				return;
+			}
+		}
+		else {
+			window = args[2].getInt();
+		}
+		if(window < 1) {
+			error("envelope window must be positive");
+			return;
+		}
+		
+		SummaryPyramid summary = connection.data_socket.getSummary();
+		if(summary == null) {
+			summary = new SummaryPyramid();
+			connection.data_socket.setSummary(summary);
+		}
+		
+		if(connection.envelope_matrix == null) {
+			connection.envelope_matrix = new JitterMatrix(1, "float64", columns, 4);
+		}
+		if(connection.envelope == null || connection.envelope.length != columns*4) {
+			connection.envelope = new double[columns*4];
+			connection.envelope_rows = new double[4][columns];
+			connection.envelope_matrix.setDim(new int[] {columns, 4});
+		}
+		
+		double[][] r = connection.envelope_rows;
+		summary.queryLatest(window, columns, r[0], r[1], r[2], r[3]);
+		for(int i=0; i < 4; i++) {
+			System.arraycopy(r[i], 0, connection.envelope, columns*i, columns);
+		}
+		connection.envelope_matrix.copyArrayToMatrix(connection.envelope);
+		
+		outlet(0, new Atom[] {
+				Atom.newAtom("envelope"),
+				Atom.newAtom(connection.channel_type),
+				Atom.newAtom(connection.channel),
+				Atom.newAtom("jit_matrix"),
+				Atom.newAtom(connection.envelope_matrix.getAttrString("name"))
+			});
+	}
+	
+	// "feature <type> <idx> <kind> [args]" computes a feature of a stream on
+	// its receive thread:
+	//   bpm                             heart rate from ECG
+	//   zcr [window s] [level] [band]   level crossings per second
+	//   stats [window s]                running mean and variance
+	//   bandpower <low> <high> [window s]
+	public void feature(Atom[] args) {
+		if(args.length < 3) {
+			error("usage: feature <type> <idx> <bpm|zcr|stats|bandpower> [args]");
+			return;
+		}
+		String s = args[0].getString();
+		int idx = args[1].getInt();
+		String kind = args[2].getString();
+		
+		DataConnection connection = find_connection(s, idx);
+		if(connection == null) {
+			error("Not streaming " + s + " " + idx);
+			return;
+		}
+		if(sampling_rate <= 0) {
+			error("Sampling rate unknown");
+			return;
+		}
+		double rate = sampling_rate / connection.divider;
+		
+		FeatureExtractor f;
+		try {
+			if(kind.equals("bpm")) {
+				f = new RPeakDetector(rate);
+			}
+			else if(kind.equals("zcr")) {
+				f = new ZeroCrossingRate(rate,
+						args.length > 3 ? args[3].getDouble() : 10,
+						args.length > 4 ? args[4].getDouble() : 0,
+						args.length > 5 ? args[5].getDouble() : 0);
+			}
+			else if(kind.equals("stats")) {
+				f = new RunningStatistics((int)Math.round(rate * (args.length > 3 ? args[3].getDouble() : 1)));
+			}
+			else if(kind.equals("bandpower")) {
+				if(args.length < 5) {
+					error("usage: feature <type> <idx> bandpower <low> <high> [window s]");
+					return;
+				}
+				f = new BandPower(rate, args.length > 5 ? args[5].getDouble() : 2,
+						args[3].getDouble(), args[4].getDouble());
+			}
+			else {
+				error("Unknown feature " + kind);
+				return;
+			}
+		}
+		catch(IllegalArgumentException e) {
+			error(e.getMessage());
+			return;
+		}
+		
+		FeatureEngine engine = connection.data_socket.getFeatureEngine();
+		if(engine == null) {
+			engine = new FeatureEngine();
+			connection.data_socket.setFeatureEngine(engine);
+		}
+		engine.add(f);
+	}
+	
+	// "nofeature <type> <idx> [name]" stops one or all features of a stream
+	public void nofeature(Atom[] args) {
+		if(args.length < 2) {
+			error("usage: nofeature <type> <idx> [name]");
+			return;
+		}
+		DataConnection connection = find_connection(args[0].getString(), args[1].getInt());
+		if(connection == null || connection.data_socket.getFeatureEngine() == null) {
+			return;
+		}
+		FeatureEngine engine = connection.data_socket.getFeatureEngine();
+		if(args.length > 2) {
+			engine.remove(args[2].getString());
+		}
+		else {
+			engine.clear();
+		}
+	}
+	
+	// output "feature <type> <idx> <name> <values...>" for every feature
+	// this many times per second, 0 stops
+	public void featurerate(double hz) {
+		if(hz < 0) {
+			error("featurerate must not be negative");
+			return;
+		}
+		feature_interval = hz == 0 ? 0 : 1000 / hz;
+		if(feature_clock == null) {
+			feature_clock = new MaxClock(new Executable() {
+				public void execute() {
+					getfeatures();
+					if(feature_interval > 0) {
+						feature_clock.delay(feature_interval);
 					}
 				}
+			});
+		}
+		if(feature_interval > 0) {
+			feature_clock.delay(feature_interval);
+		}
+		else {
+			feature_clock.unset();
+		}
+	}
+	
+	public void getfeatures() {
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			FeatureEngine engine = connection.data_socket.getFeatureEngine();
+			if(engine == null) {
+				continue;
 			}
+			for(int i=0; i < engine.numFeatures(); i++) {
+				if(engine.get(i) instanceof SpectrumAnalyzer) {
+					// spectra go out as matrices on bang
+					continue;
+				}
+				int n = engine.getValues(i, feature_values);
+				Atom[] a = new Atom[n+4];
+				a[0] = Atom.newAtom("feature");
+				a[1] = Atom.newAtom(connection.channel_type);
+				a[2] = Atom.newAtom(connection.channel);
+				a[3] = Atom.newAtom(engine.getName(i));
+				for(int v=0; v < n; v++) {
+					a[v+4] = Atom.newAtom(feature_values[v]);
+				}
+				outlet(0, a);
+			}
+		}
+	}
+	
+	// "spectrum <type> <idx> <size> [hop] [<low> <high> ...]" computes the
+	// spectrum of the newest size samples every hop samples.  Without bands
+	// the output matrix holds size/2+1 magnitudes, with bands it holds the
+	// power of each band.
+	public void spectrum(Atom[] args) {
+		if(args.length < 3 || (args.length > 4 && args.length % 2 != 0)) {
+			error("usage: spectrum <type> <idx> <size> [hop] [<low> <high> ...]");
+			return;
+		}
+		String s = args[0].getString();
+		int idx = args[1].getInt();
+		int size = args[2].getInt();
+		int hop = args.length > 3 ? args[3].getInt() : size / 2;
+		
+		DataConnection connection = find_connection(s, idx);
+		if(connection == null) {
+			error("Not streaming " + s + " " + idx);
+			return;
+		}
+		if(sampling_rate <= 0) {
+			error("Sampling rate unknown");
+			return;
+		}
+		
+		SpectrumAnalyzer analyzer;
+		try {
+			analyzer = new SpectrumAnalyzer(size, hop, sampling_rate / connection.divider);
+			if(args.length > 4) {
+				int bands = (args.length - 4) / 2;
+				double[] low = new double[bands];
+				double[] high = new double[bands];
+				for(int i=0; i < bands; i++) {
+					low[i] = args[4 + i*2].getDouble();
+					high[i] = args[5 + i*2].getDouble();
+				}
+				analyzer.setBands(low, high);
+			}
+		}
+		catch(IllegalArgumentException e) {
+			error(e.getMessage());
+			return;
+		}
+		analyzer.setExecutor(worker_pool());
+		
+		FeatureEngine engine = connection.data_socket.getFeatureEngine();
+		if(engine == null) {
+			engine = new FeatureEngine();
+			connection.data_socket.setFeatureEngine(engine);
+		}
+		engine.add(analyzer);
+		connection.spectrum = analyzer;
+		connection.spectrum_sequence = 0;
+		connection.spectrum_values = new double[analyzer.numValues()];
+		if(connection.spectrum_matrix == null) {
+			connection.spectrum_matrix = new JitterMatrix(1, "float64", analyzer.numValues(), 1);
+		}
+		else {
+			connection.spectrum_matrix.setDim(new int[] {analyzer.numValues(), 1});
+		}
+	}
+	
+	public void nospectrum(String s, int idx) {
+		DataConnection connection = find_connection(s, idx);
+		if(connection == null || connection.spectrum == null) {
+			return;
+		}
+		connection.data_socket.getFeatureEngine().remove(connection.spectrum.getName());
+		connection.spectrum = null;
+	}
+	
+	// fill output matrices and compute spectra on this many worker threads
+	// shared by all streams instead of the Max and receive threads, 0 (the
+	// default) for none.  Matrices filled by a worker are sent on the bang
+	// after the one that scheduled them, so output comes up to one bang
+	// later than with workers off, see MatrixStage.
+	public void workers(int n) {
+		if(workers != null) {
+			workers.close();
+			workers = null;
+		}
+		worker_threads = n < 0 ? 0 : n;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.spectrum != null) {
+				connection.spectrum.setExecutor(worker_pool());
+			}
+		}
+	}
+	
+	// "virtualthreads 1" receives streams on virtual threads instead of a
+	// platform thread per connection, taking effect as each stream is next
+	// started; needs Java 21, older runtimes keep platform threads
+	public void virtualthreads(int enable) {
+		virtual_threads = enable != 0;
+		if(virtual_threads && ! ReceiveThreads.isVirtualAvailable()) {
+			post("Virtual threads need Java 21, receiving on platform threads");
+		}
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			if(dcs[d].replay == null) {
+				dcs[d].data_socket.setVirtualThreads(virtual_threads);
+			}
+		}
+	}
+	
+	// the worker pool, started on first use; null when workers are off
+	private WorkerPool worker_pool() {
+		if(workers == null && worker_threads > 0) {
+			workers = new WorkerPool(worker_threads, "MaxAcq");
+		}
+		return workers;
+	}
+	
+	// output "spectrum <type> <idx> jit_matrix <name>" for every stream with
+	// a spectrum computed since the last output
+	private void output_spectra() {
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.spectrum == null) {
+				continue;
+			}
+			long sequence = connection.spectrum.getSpectrum(connection.spectrum_values);
+			if(sequence == connection.spectrum_sequence) {
+				continue;
+			}
+			connection.spectrum_sequence = sequence;
+			connection.spectrum_matrix.copyArrayToMatrix(connection.spectrum_values);
+			outlet(0, new Atom[] {
+					Atom.newAtom("spectrum"),
+					Atom.newAtom(connection.channel_type),
+					Atom.newAtom(connection.channel),
+					Atom.newAtom("jit_matrix"),
+					Atom.newAtom(connection.spectrum_matrix.getAttrString("name"))
+				});
+		}
+	}
+	
+	// output all streams as time aligned frames, resampled to the given
+	// rate or, with a rate of 0, to the rate of the fastest stream
+	public void align(int enable) {
+		align = enable != 0;
+		aligner = null;
+	}
+	
+	public void alignrate(double rate) {
+		if(rate < 0) {
+			error("alignrate must not be negative");
+			return;
+		}
+		align_rate = rate;
+		if(aligner != null) {
+			aligner.setOutputRate(align_rate);
+		}
+	}
+	
+	// align every stream but those decimated to min/max pairs, which are
+	// not samples that can be interpolated
+	private void build_aligner() {
+		DataConnection[] dcs = connections.list();
+		int n = 0;
+		for(int d=0; d < dcs.length; d++) {
+			Decimator decimator = dcs[d].data_socket.getDecimator();
+			if(decimator != null && decimator.getMode().equals(Decimator.kMinMaxMode)) {
+				post("Not aligning " + dcs[d].channel_type + " " + dcs[d].channel + ", it is decimated to min/max pairs");
+				continue;
+			}
+			dcs[n++] = dcs[d];
+		}
+		aligned_connections = Arrays.copyOf(dcs, n);
+		if(aligned_connections.length == 0 || sampling_rate <= 0) {
+			return;
+		}
+		aligner = new ChannelAligner(sampling_rate);
+		for(int i=0; i < aligned_connections.length; i++) {
+			DataConnection connection = aligned_connections[i];
+			Decimator decimator = connection.data_socket.getDecimator();
+			double offset = decimator == null ? 0 : decimator.getOutputOffset();
+			aligner.addChannel(connection.data_socket.getSampleBuffer(), buffered_divider(connection), offset);
+		}
+		aligner.setOutputRate(align_rate);
+	}
+	
+	private void bang_aligned() {
+		if(aligner == null) {
+			build_aligner();
+			if(aligner == null) {
+				return;
+			}
+		}
+		
+		int n = aligned_connections.length;
+		int size = nsamples;
+		if(aligned_frames == null || aligned_frames.length != n || aligned_frames[0].length != size) {
+			aligned_frames = new double[n][size];
+		}
+		for(int i=0; i < n; i++) {
+			DataConnection connection = aligned_connections[i];
+			if(connection.stage != null) {
+				// the aligner reads the buffers now, stop staging them
+				output_staged(connection);
+				connection.stage.close();
+				connection.stage = null;
+				connection.stage_task = null;
+			}
+			if(connection.matrix.getDim()[0] != size) {
+				connection.matrix.setDim(new int[] {size, 1});
+			}
+		}
+		long[] arrived = new long[n];
+		while(true) {
+			for(int i=0; i < n; i++) {
+				arrived[i] = aligned_connections[i].data_socket.getSampleBuffer().getOldestArrivalNanos();
+			}
+			if(! aligner.next(size, aligned_frames)) {
+				break;
+			}
+			for(int i=0; i < n; i++) {
+				DataConnection connection = aligned_connections[i];
+				connection.matrix.copyArrayToMatrix(aligned_frames[i]);
+				outlet(0, connection.output);
+				connection.data_socket.getStats().recordOutputLatency(System.nanoTime() - arrived[i]);
+			}
+		}
+	}
+	
+	public void bang() {
+		if(align) {
+			bang_aligned();
+			output_spectra();
+			report_overflow();
+			output_poll();
+			return;
+		}
+		
+		DataConnection[] dcs = connections.list();
+		WorkerPool pool = worker_pool();
+		int size = nsamples;
+		double vec[] = new double[size];
+		
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.data_socket != null && pool != null) {
+				stage_frames(connection, pool);
+				output_staged(connection);
+			}
+			else if(connection.data_socket != null) {
+				if(connection.stage != null) {
+					// workers were turned off, send what they staged
+					output_staged(connection);
+					connection.stage.close();
+					connection.stage = null;
+					connection.stage_task = null;
+				}
+				if(connection.matrix.getDim()[0] != size) {
+					connection.matrix.setDim(new int[] {size, 1});
+				}
+				SampleBuffer samples = connection.data_socket.getSampleBuffer();
+			//	post("nsmap "+samples.numSamples() + " " + nsamples);
+				while(samples.numSamples() >= size) {
+					long arrived = samples.getOldestArrivalNanos();
+					samples.getSamples(0, vec, 0, size);
+					connection.matrix.copyArrayToMatrix(vec);
+					samples.removeSamples(size);
+					outlet(0, connection.output);
+					connection.data_socket.getStats().recordOutputLatency(System.nanoTime() - arrived);
+				}
+			}
+		}
+		output_spectra();
+		report_overflow();
+		output_poll();
+	}
+	
+	// "poll <hz>" fetches the most recent value of every enabled channel
+	// with one call per poll instead of a data connection per channel, and
+	// bang outputs "poll jit_matrix <name>" with a row per channel type
+	// (analog, digital, calc) and a column per channel index whenever new
+	// values arrived.  The rate slows down if the server cannot keep up,
+	// "poll 0" stops.
+	public void poll(double hz) {
+		if(hz <= 0) {
+			stop_polling();
+			return;
+		}
+		if(poller != null) {
+			poller.setRate(hz);
+			return;
+		}
+		if(current_server == null) {
+			error("not connected");
+			return;
+		}
+		
+		// values are only tracked for channels enabled for it
+		ChannelType[] types = ChannelType.values();
+		for(int t=0; t < types.length; t++) {
+			try {
+				int[] v = current_server.getEnabledChannels(types[t]);
+				for(int i=0; i < v.length; i++) {
+					current_server.changeMostRecentSampleEnabled(types[t].getName(), (short)v[i], true);
+				}
+			}
+			catch(ProtocolException e) {
+				error(e.toString());
+				return;
+			}
+		}
+		poller = new MostRecentPoller(current_server, hz);
+		poll_sequence = 0;
+		poller.start();
+	}
+	
+	// "setoutput <analog|digital> <idx> <volts>" changes an output channel
+	// of the MP unit without waiting for the server; only the latest value
+	// of each channel is sent, at most outputrate times per second
+	public void setoutput(String type, int idx, double value) {
+		if(current_server == null) {
+			error("not connected");
+			return;
+		}
+		if(output_writer != null && output_writer.getServer() != current_server) {
+			output_writer.close();
+			output_writer = null;
+		}
+		if(output_writer == null) {
+			output_writer = new OutputChannelWriter(current_server, output_rate);
+			output_writer.start();
+		}
+		output_writer.set(type, (short)idx, value);
+	}
+	
+	public void outputrate(double hz) {
+		if(hz <= 0) {
+			error("output rate must be positive");
+			return;
+		}
+		output_rate = hz;
+		if(output_writer != null) {
+			output_writer.setMaxRate(hz);
+		}
+	}
+	
+	// output "outputstats <set> <written> <coalesced> <failures> <p50 ms>
+	// <p99 ms> <max ms>", the latency running from setoutput to the
+	// server's acknowledgement
+	public void getoutputstats() {
+		if(output_writer == null) {
+			return;
+		}
+		LatencyHistogram latency = output_writer.getLatency();
+		outlet(0, new Atom[] {
+				Atom.newAtom("outputstats"),
+				Atom.newAtom(output_writer.getSetCount()),
+				Atom.newAtom(output_writer.getWriteCount()),
+				Atom.newAtom(output_writer.getCoalescedCount()),
+				Atom.newAtom(output_writer.getFailures()),
+				Atom.newAtom(latency.getPercentileNanos(50) / 1e6),
+				Atom.newAtom(latency.getPercentileNanos(99) / 1e6),
+				Atom.newAtom(latency.getMaxNanos() / 1e6)
+			});
+	}
+	
+	// output "pollrate <requested hz> <current hz> <failed polls>"
+	public void getpollrate() {
+		if(poller == null) {
+			return;
+		}
+		outlet(0, new Atom[] {
+				Atom.newAtom("pollrate"),
+				Atom.newAtom(poller.getRate()),
+				Atom.newAtom(poller.getCurrentRate()),
+				Atom.newAtom(poller.getFailures())
+			});
+	}
+	
+	private void stop_polling() {
+		if(poller != null) {
+			poller.close();
+			poller = null;
+		}
+		if(poll_matrix != null) {
+			poll_matrix.freePeer();
+			poll_matrix = null;
+		}
+	}
+	
+	private void output_poll() {
+		if(poller == null) {
+			return;
+		}
+		long sequence = poller.getSnapshot(poll_snapshot);
+		if(sequence == poll_sequence) {
+			return;
+		}
+		poll_sequence = sequence;
+		int columns = poll_snapshot.numChannels();
+		int rows = poll_snapshot.numTypes();
+		if(poll_matrix == null) {
+			poll_matrix = new JitterMatrix(1, "float64", columns, rows);
+		}
+		else if(poll_matrix.getDim()[0] != columns) {
+			poll_matrix.setDim(new int[] {columns, rows});
+		}
+		poll_matrix.copyArrayToMatrix(poll_snapshot.getValues());
+		outlet(0, new Atom[] {
+				Atom.newAtom("poll"),
+				Atom.newAtom("jit_matrix"),
+				Atom.newAtom(poll_matrix.getAttrString("name"))
+			});
+	}
+	
+	// output "overflow <type> <idx> <drop|spill|pause> <times> <dropped>
+	// <spilled>" for every stream whose buffer budget was hit since the
+	// last bang
+	private void report_overflow() {
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.data_socket == null) {
+				continue;
+			}
+			ChannelStats stats = connection.data_socket.getStats();
+			long count = stats.getOverflowCount();
+			if(count == connection.overflow_reported) {
+				continue;
+			}
+			connection.overflow_reported = count;
+			outlet(0, new Atom[] {
+					Atom.newAtom("overflow"),
+					Atom.newAtom(connection.channel_type),
+					Atom.newAtom(connection.channel),
+					Atom.newAtom(connection.data_socket.getSampleBuffer().getOverflowPolicy()),
+					Atom.newAtom(count),
+					Atom.newAtom(stats.getOverflowDroppedSamples()),
+					Atom.newAtom(stats.getSpilledSamples())
+				});
+		}
+	}
+	
+	// "budget <samples> [drop|spill|pause]" limits how many samples each
+	// stream buffers while the patch does not bang, and what happens to
+	// samples beyond that: the oldest are dropped, the newest are spilled to
+	// a temporary file, or the server is paused (TCP streams only)
+	public void budget(Atom[] args) {
+		if(args.length < 1 || args.length > 2) {
+			error("usage: budget <samples> [drop|spill|pause]");
+			return;
+		}
+		int samples = args[0].getInt();
+		String policy = args.length > 1 ? args[1].getString() : SampleBuffer.kDropOldest;
+		if(samples < 1) {
+			samples = Integer.MAX_VALUE;
+		}
+		if(! SampleBuffer.kDropOldest.equals(policy) && ! SampleBuffer.kSpill.equals(policy) && ! SampleBuffer.kPause.equals(policy)) {
+			error("unknown overflow policy " + policy);
+			return;
+		}
+		channel_budget = samples;
+		overflow_policy = policy;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			apply_budget(dcs[d]);
+		}
+	}
+	
+	// limit the samples buffered by all streams together
+	public void totalbudget(int samples) {
+		memory_budget.setLimit(samples < 1 ? Long.MAX_VALUE : samples);
+	}
+	
+	private void apply_budget(DataConnection connection) {
+		if(connection.data_socket == null) {
+			return;
+		}
+		SampleBuffer buffer = connection.data_socket.getSampleBuffer();
+		buffer.setBudget(channel_budget, overflow_policy);
+		buffer.setMemoryBudget(memory_budget);
+	}
+	
+	// have a worker fill the connection's free matrices from its buffered
+	// samples; they show up in its stage for the next bang
+	private void stage_frames(DataConnection connection, WorkerPool pool) {
+		if(connection.stage == null || ! connection.stage.serves(connection)) {
+			if(connection.stage != null) {
+				connection.stage.close();
+			}
+			connection.stage = new MatrixStage(connection, nsamples);
+			connection.stage_task = new ChannelTask(connection.stage);
+		}
+		try {
+			connection.stage_task.schedule(pool);
+		}
+		catch(RejectedExecutionException e) {
+			connection.stage.run();
+		}
+	}
+	
+	// send the matrices filled for a connection and hand them back
+	private void output_staged(DataConnection connection) {
+		Atom[] output;
+		while((output = connection.stage.poll()) != null) {
+			long arrived = connection.stage.arrived();
+			outlet(0, output);
+			connection.stage.release();
+			connection.data_socket.getStats().recordOutputLatency(System.nanoTime() - arrived);
+		}
+	}
+	
+	// output "stats <type> <idx> <samples/sec> <bytes read> <buffer depth>
+	// <buffer high water> <dropped> <oldest age ms> <latency p50 ms>
+	// <latency p99 ms> <latency max ms>" for every stream
+	public void getstats() {
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			DataConnection connection = dcs[d];
+			if(connection.data_socket == null) {
+				continue;
+			}
+			ChannelStats stats = connection.data_socket.getStats();
+			outlet(0, new Atom[] {
+					Atom.newAtom("stats"),
+					Atom.newAtom(connection.channel_type),
+					Atom.newAtom(connection.channel),
+					Atom.newAtom(stats.getSamplesPerSecond()),
+					Atom.newAtom(stats.getBytesRead()),
+					Atom.newAtom(stats.getBufferDepth()),
+					Atom.newAtom(stats.getBufferHighWater()),
+					Atom.newAtom(stats.getDroppedSamples()),
+					Atom.newAtom(stats.getOldestSampleAgeMillis()),
+					Atom.newAtom(stats.getOutputLatencyP50Millis()),
+					Atom.newAtom(stats.getOutputLatencyP99Millis()),
+					Atom.newAtom(stats.getOutputLatencyMaxMillis())
+				});
+		}
+	}
+	
+	public void resetstats() {
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			if(dcs[d].data_socket != null) {
+				dcs[d].data_socket.getStats().reset();
+			}
+		}
+	}
+	
+	// output "callstats <method> <calls> <failures> <total ms> <mean ms>
+	// <p50 ms> <p99 ms> <max ms> <request bytes> <response bytes>
+	// <estimated request bytes> <estimated response bytes>" for every
+	// control method called on the server so far.  The byte counts are
+	// measured for calls made with fast decoding; calls made without it only
+	// add to the estimates.
+	public void getcallstats() {
+		if(current_server == null) {
+			return;
+		}
+		Vector<CallStats> v = current_server.getCallStats();
+		for(int i=0; i < v.size(); i++) {
+			CallStats stats = v.get(i);
+			outlet(0, new Atom[] {
+					Atom.newAtom("callstats"),
+					Atom.newAtom(stats.getMethod()),
+					Atom.newAtom(stats.getCallCount()),
+					Atom.newAtom(stats.getFailureCount()),
+					Atom.newAtom(stats.getTotalMillis()),
+					Atom.newAtom(stats.getMeanMillis()),
+					Atom.newAtom(stats.getP50Millis()),
+					Atom.newAtom(stats.getP99Millis()),
+					Atom.newAtom(stats.getMaxMillis()),
+					Atom.newAtom(stats.getRequestBytes()),
+					Atom.newAtom(stats.getResponseBytes()),
+					Atom.newAtom(stats.getEstimatedRequestBytes()),
+					Atom.newAtom(stats.getEstimatedResponseBytes())
+				});
+		}
+	}
+	
+	public void resetcallstats() {
+		if(current_server != null) {
+			current_server.resetCallStats();
+		}
+	}
+	
+	// log control calls slower than the given number of milliseconds to the
+	// Max window, 0 turns logging off
+	public void slowcall(int ms) {
+		if(ms < 0) {
+			error("slowcall threshold must not be negative");
+			return;
+		}
+		slow_call_ms = ms;
+		if(current_server != null) {
+			current_server.setSlowCallThresholdMillis(slow_call_ms);
+		}
+	}
+	
+	// publish the stream statistics as JMX MBeans
+	public void jmx(int enable) {
+		jmx = enable != 0;
+		DataConnection[] dcs = connections.list();
+		for(int d=0; d < dcs.length; d++) {
+			register_stats(dcs[d]);
+		}
+	}
+	
+	private void register_stats(DataConnection connection) {
+		if(connection.data_socket == null) {
+			return;
+		}
+		ChannelStats stats = connection.data_socket.getStats();
+		if(! jmx) {
+			stats.unregister();
+			return;
+		}
+		try {
+			stats.register("MaxAcq " + connection.channel_type + connection.channel);
+		}
+		catch(javax.management.JMException e) {
+			error("Can't publish statistics: " + e);
 		}
 	}
 	
@@ -252,24 +1594,85 @@ public class MaxAcq extends MaxObject {
 			return;
 		}
 
-		String name = s+idx;
-		DataConnection connection = connections.get(name);
+		DataConnection connection = find_connection(s, idx);
 		if(connection == null) {
 			connection = new DataConnection();
 		}
 		else {
-			connections.remove(name);
+			connections = connections.without(connection);
 		}
 		
-		if( stream_to_connection(connection, s, idx) ) {
-			connections.put(name, connection);
+		aligner = null;
+		boolean streaming = replay_dir != null ?
+				replay_to_connection(connection, s, idx) :
+				stream_to_connection(connection, s, idx);
+		if( streaming ) {
+			describe_connection(connection);
+			connections = connections.with(connection);
+			register_stats(connection);
+		}
+		else {
+			close_connection(connection);
 		}
 	}
 
+	private boolean replay_to_connection(DataConnection connection, String s, int idx) {
+		File base = latest_recording(s, idx);
+		if(base == null) {
+			error("No recording of " + s + " " + idx + " in " + replay_dir);
+			return false;
+		}
+		
+		if(connection.replay != null) {
+			connection.replay.close();
+			connection.replay = null;
+		}
+		if(connection.data_socket == null) {
+			// replayed samples are injected, the socket never listens
+			connection.data_socket = new ChannelDataSocket(0);
+			apply_budget(connection);
+		}
+		else if(connection.data_socket.isProcessing()) {
+			connection.data_socket.stopProcessing();
+		}
+		stop_exporting(connection);
+		
+		connection.channel_type = s;
+		connection.type = ChannelType.forName(s);
+		connection.channel = idx;
+		connection.data_socket.getSampleBuffer().restartAt(0);
+		if(connection.stage != null) {
+			connection.stage.clear();
+		}
+		connection.matrix.clear();
+		
+		try {
+			ChannelRecording recording = new ChannelRecording(base);
+			connection.divider = recording.getSamplingRateDivider();
+			sampling_rate = recording.getSamplingRate();
+			connection.replay = new ReplaySource(recording, connection.data_socket);
+		}
+		catch(IOException e) {
+			error(e.toString());
+			return false;
+		}
+		connection.replay.setSpeed(replay_speed);
+		connection.replay.start();
+		
+		post("Replaying " + base.getName());
+		return true;
+	}
+
 	private boolean stream_to_connection(DataConnection connection, String s, int idx) {
-		if(current_server != null) {
+		if(current_server == null) {
+			error("not connected");
+			return false;
+		}
+		else {
 			if(connection.data_socket == null) {
 				connection.data_socket = new ChannelDataSocket(PORT);
+				connection.data_socket.setVirtualThreads(virtual_threads);
+				apply_budget(connection);
 				
 				// avoid conflicting port numbers
 				PORT++;
@@ -283,7 +1686,10 @@ public class MaxAcq extends MaxObject {
 				connection.data_socket.stopProcessing();
 			}
 			
+			// a ring file belongs to one channel
+			stop_exporting(connection);
 			connection.channel_type = s;
+			connection.type = ChannelType.forName(s);
 			connection.channel = idx;
 			
 			try {
@@ -293,18 +1699,29 @@ public class MaxAcq extends MaxObject {
 					current_server.changeDataConnectionMethod(ACQServer.kMultipleConnectionDelivery);
 					current_server.changeTransportType(ACQServer.kTCPTransportType);
 					
-					Iterator<DataConnection> dcs = connections.values().iterator();
 					// re-enable existing streams
-					while(dcs.hasNext()) {
-						DataConnection dc = dcs.next();
+					DataConnection[] dcs = connections.list();
+					for(int d=0; d < dcs.length; d++) {
+						DataConnection dc = dcs[d];
+						if(dc.replay != null) {
+							continue;
+						}
 						if(! start_connection_stream(dc)){
 							return false;
 						}
 					}
 					start_connection_stream(connection);
+					connection.divider = current_server.getSamplingRateDivider(s, (short)idx);
+					sampling_rate = current_server.getSamplingRate();
 				
 					// start the stream
 					connection.data_socket.startProcessing();
+					if(record_dir != null && connection.data_socket.getRecorder() == null) {
+						start_recording(connection);
+					}
+					if(export_dir != null) {
+						start_exporting(connection);
+					}
 				}
 				else {
 					error("Channel "+s+" "+idx+" is not available");
@@ -315,6 +1732,10 @@ public class MaxAcq extends MaxObject {
 				error(e.toString());
 				return false;
 			}
+			catch(IOException e) {
+				error("Can't listen on port "+connection.data_socket.getPort()+": "+e);
+				return false;
+			}
 	        
 	        System.out.println("Acquiring data into template...");
 	        try {
@@ -343,10 +1764,11 @@ public class MaxAcq extends MaxObject {
 	}
 	
 	private boolean start_connection_stream(DataConnection connection) {
-		// reset connection data
-		connection.data_socket.removeSamplesFromBuffer(
-				connection.data_socket.numSamples()
-		);
+		// reset connection data, the acquisition restarts at sample 0
+		connection.data_socket.getSampleBuffer().restartAt(0);
+		if(connection.stage != null) {
+			connection.stage.clear();
+		}
 		
 		// clear matrix data
 		connection.matrix.clear();
@@ -407,5 +1829,8 @@ public class MaxAcq extends MaxObject {
         }
         
         current_server = server;
+        if(current_server != null) {
+        	current_server.setSlowCallThresholdMillis(slow_call_ms);
+        }
 	}
 }
\ No newline at end of file
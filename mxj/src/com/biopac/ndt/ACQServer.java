@@ -9,11 +9,13 @@ package com.biopac.ndt;
 
 import java.net.URL;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import javax.xml.stream.XMLStreamException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
 import org.apache.xmlrpc.XmlRpcException;
@@ -31,6 +33,11 @@ public class ACQServer {
     
     private ACQServerAddress myAddress=null;
     private XmlRpcClient myClient=null;
+    private final Map<String, CallStats> callStats=new LinkedHashMap<String, CallStats>();    // by method name
+    private volatile long slowCallNanos=0;
+    private volatile boolean multicallSupported=true;
+    private StaxXmlRpcClient fastClient=null;
+    private volatile boolean fastDecoding=true;
     
     // XML-RPC procedure names
     
@@ -66,6 +73,21 @@ public class ACQServer {
     private static final String kChangeDataConnectionHostnameName="acq.changeDataConnectionHostname";
     private static final String kSetOutputChannelName="acq.setOutputChannel";
     private static final String kSetDataConnectionTimeoutSecName="acq.setDataConnectionTimeoutSec";
+    private static final String kMulticallName="system.multicall";
+    
+    // fault code of a call to a method the server does not have, from the
+    // XML-RPC fault code interoperability spec
+    private static final int kMethodNotFoundFault=-32601;
+    
+    // approximate sizes of XML-RPC markup, for payload size estimates
+    
+    private static final int kCallOverheadBytes=100;  // declaration, methodCall/methodResponse and params
+    private static final int kParamOverheadBytes=15;  // <param></param>
+    private static final int kValueTagBytes=15;       // <value></value>
+    private static final int kScalarTagBytes=17;      // <string></string>, <double></double>
+    private static final int kArrayTagBytes=26;       // <array><data></data></array>
+    private static final int kStructTagBytes=17;      // <struct></struct>
+    private static final int kMemberTagBytes=30;      // <member><name></name></member>
     
     // XML-RPC structure keys
     
@@ -186,6 +208,7 @@ public class ACQServer {
      */
     public void changeAddress(ACQServerAddress addr) {
         myAddress=addr;
+        multicallSupported=true;
         createXmlRpcClient();
     }
     
@@ -206,6 +229,209 @@ public class ACQServer {
         }
         myClient=new XmlRpcClient();
         myClient.setConfig(config);
+        fastClient=config.getServerURL() == null ? null : new StaxXmlRpcClient(config.getServerURL());
+    }
+    
+    /**
+     * Choose how the responses of frequent calls, such as the most recent
+     * sample values and the sampling rate, are decoded.  With fast decoding
+     * they are pulled from a StAX stream straight into primitives instead of
+     * being parsed into a tree of boxed values first.  On by default.
+     *
+     * @param enable    true for fast decoding, false to decode every call
+     *                  with the generic XML-RPC client
+     */
+    public void setFastDecoding(boolean enable) {
+        fastDecoding=enable;
+    }
+    
+    public boolean isFastDecoding() {
+        return fastDecoding;
+    }
+    
+    /**
+     * Get the timing and error figures of every control method invoked on
+     * this server so far.
+     *
+     * @return Vector of CallStats objects, in the order the methods were
+     *  first invoked
+     */
+    public Vector<CallStats> getCallStats() {
+        synchronized(callStats)
+        {
+            return new Vector<CallStats>(callStats.values());
+        }
+    }
+    
+    /**
+     * Get the timing and error figures of a single control method.
+     *
+     * @param method    XML-RPC method name, e.g. acq.getSamplingRate
+     * @return statistics of the method, or null if it has not been invoked
+     */
+    public CallStats getCallStats(String method) {
+        synchronized(callStats)
+        {
+            return callStats.get(method);
+        }
+    }
+    
+    /**
+     * Zero the figures of all control methods.
+     */
+    public void resetCallStats() {
+        synchronized(callStats)
+        {
+            for(Iterator<CallStats> i=callStats.values().iterator(); i.hasNext(); )
+                i.next().reset();
+        }
+    }
+    
+    /**
+     * Log control calls that take longer than a threshold to System.err.
+     *
+     * @param millis    threshold in milliseconds, 0 to disable logging
+     */
+    public void setSlowCallThresholdMillis(long millis) {
+        if(millis < 0)
+            throw new IllegalArgumentException("Invalid threshold "+millis);
+        slowCallNanos=millis*1000000;
+    }
+    
+    public long getSlowCallThresholdMillis() {
+        return slowCallNanos/1000000;
+    }
+    
+    /**
+     * Invoke a control method on the server, recording its latency, outcome
+     * and payload sizes.  All control requests go through here.
+     *
+     * @param method    XML-RPC method name
+     * @param params    method parameters
+     * @return result of the call
+     * @throws XmlRpcException if the call failed
+     */
+    private Object execute(String method, Vector params) throws XmlRpcException {
+        long start=System.nanoTime();
+        Object result=null;
+        boolean failed=true;
+        try
+        {
+            result=myClient.execute(method, params);
+            failed=false;
+            return(result);
+        }
+        finally
+        {
+            // the generic client doesn't expose its streams, so only the
+            // sizes of its calls can be estimated
+            long reqBytes=kCallOverheadBytes+method.length();
+            for(int i=0; i<params.size(); i++)
+                reqBytes+=kParamOverheadBytes+encodedSize(params.get(i));
+            long respBytes=failed ? 0 : kCallOverheadBytes+encodedSize(result);
+            recordCall(method, System.nanoTime()-start, failed, reqBytes, respBytes, true);
+        }
+    }
+    
+    /**
+     * Invoke a method with the fast client, decoding the result with a
+     * ResultDecoder, and record it like execute()
+     */
+    private void executeFast(String method, Object[] params, StaxXmlRpcClient.ResultDecoder decoder) throws XmlRpcException {
+        byte[] request=StaxXmlRpcClient.encodeRequest(method, params);
+        long start=System.nanoTime();
+        long respBytes=0;
+        boolean failed=true;
+        try
+        {
+            respBytes=fastClient.send(method, request, decoder);
+            failed=false;
+        }
+        finally
+        {
+            recordCall(method, System.nanoTime()-start, failed, request.length, respBytes, false);
+        }
+    }
+    
+    /**
+     * Invoke a method returning a double
+     */
+    private double executeDouble(String method, Vector params) throws XmlRpcException, ProtocolException {
+        if(fastDecoding && fastClient != null)
+        {
+            final double[] result=new double[1];
+            executeFast(method, params.toArray(), new StaxXmlRpcClient.ResultDecoder() {
+                public void decode(XmlRpcValueReader in) throws XMLStreamException, XmlRpcException {
+                    if(!XmlRpcValueReader.kDouble.equals(in.beginValue()))
+                        throw new XmlRpcException("Unexpected return type");
+                    result[0]=in.readDouble();
+                }
+            });
+            return result[0];
+        }
+        
+        Object result=execute(method, params);
+        if(!(result instanceof Double))
+            throw new ProtocolException("Unexpected return type");
+        return ((Double)result).doubleValue();
+    }
+    
+    /**
+     * Update the statistics of a method after a call
+     */
+    private void recordCall(String method, long nanos, boolean failed, long reqBytes, long respBytes, boolean estimated) {
+        CallStats stats;
+        synchronized(callStats)
+        {
+            stats=callStats.get(method);
+            if(stats == null)
+            {
+                stats=new CallStats(method);
+                callStats.put(method, stats);
+            }
+        }
+        
+        stats.record(nanos, failed, reqBytes, respBytes, estimated);
+        
+        long threshold=slowCallNanos;
+        if(threshold > 0 && nanos >= threshold)
+            System.err.println("Slow XML-RPC call "+method+(failed ? " (failed)" : "")+": "+(nanos/1000000)+" ms");
+    }
+    
+    /**
+     * Estimate the size of the XML-RPC encoding of a value.  Scalars count
+     * their value and type tags, arrays and structs add their members.
+     *
+     * @param val   parameter or result value
+     * @return approximate number of bytes
+     */
+    private static long encodedSize(Object val) {
+        if(val == null)
+            return(kValueTagBytes);
+        if(val instanceof String)
+            return(kValueTagBytes+kScalarTagBytes+((String)val).length());
+        if(val instanceof byte[])
+            return(kValueTagBytes+kScalarTagBytes+(((byte[])val).length+2)/3*4);
+        if(val instanceof Object[])
+            val=Arrays.asList((Object[])val);
+        if(val instanceof List)
+        {
+            long size=kValueTagBytes+kArrayTagBytes;
+            for(Iterator i=((List)val).iterator(); i.hasNext(); )
+                size+=encodedSize(i.next());
+            return(size);
+        }
+        if(val instanceof Map)
+        {
+            long size=kValueTagBytes+kStructTagBytes;
+            for(Iterator i=((Map)val).entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry e=(Map.Entry)i.next();
+                size+=kMemberTagBytes+String.valueOf(e.getKey()).length()+encodedSize(e.getValue());
+            }
+            return(size);
+        }
+        return(kValueTagBytes+kScalarTagBytes+String.valueOf(val).length());
     }
     
     /**
@@ -219,7 +445,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetMPUnitTypeName, new Vector());
+            Object result=execute(kGetMPUnitTypeName, new Vector());
             if(!(result instanceof Integer))
                 throw new ProtocolException();
             toReturn=((Integer)result).shortValue();
@@ -246,7 +472,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(kAnalogChannelType);
-            Object result=myClient.execute(kGetEnabledChannelsName, params);
+            Object result=execute(kGetEnabledChannelsName, params);
             if(!(result instanceof Object[]))
                 throw new ProtocolException("Unknown response type");
             retVal=new Vector(Arrays.asList((Object[])result));
@@ -273,7 +499,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(kDigitalChannelType);
-            Object result=myClient.execute(kGetEnabledChannelsName, params);
+            Object result=execute(kGetEnabledChannelsName, params);
             if(!(result instanceof Object[]))
                 throw new ProtocolException("Unknown response type");
             retVal=new Vector(Arrays.asList((Object[])result));
@@ -300,7 +526,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(kCalcChannelType);
-            Object result=myClient.execute(kGetEnabledChannelsName, params);
+            Object result=execute(kGetEnabledChannelsName, params);
             if(!(result instanceof Object[]))
                 throw new ProtocolException("Unknown response type");
             retVal=new Vector(Arrays.asList((Object[])result));
@@ -326,18 +552,100 @@ public class ACQServer {
     public Vector getEnabledChannels(String chanType) throws ProtocolException {
         Vector enabledIndexes;
         
-        if(chanType.equals(kAnalogChannelType))
-            enabledIndexes=getEnabledAnalogChannels();
-        else if(chanType.equals(kDigitalChannelType))
-            enabledIndexes=getEnabledDigitalChannels();
-        else if(chanType.equals(kCalcChannelType))
-            enabledIndexes=getEnabledCalculationChannels();
-        else
-            throw new ProtocolException("Unrecognized channel type");
+        switch(channelType(chanType))
+        {
+            case ANALOG:
+                enabledIndexes=getEnabledAnalogChannels();
+                break;
+            case DIGITAL:
+                enabledIndexes=getEnabledDigitalChannels();
+                break;
+            default:
+                enabledIndexes=getEnabledCalculationChannels();
+                break;
+        }
         
         return(enabledIndexes);
     }
     
+    /**
+     * Fetch the indexes of the enabled channels of a type without boxing
+     * them.
+     *
+     * @param chanType  channel type
+     * @return 0 based indexes of the channels of that type that are enabled
+     *  for acquisition, in the order reported by the server
+     * @throws ProtocolException
+     */
+    public int[] getEnabledChannels(ChannelType chanType) throws ProtocolException {
+        Vector params=new Vector();
+        params.add(chanType.getName());
+        
+        try
+        {
+            if(fastDecoding && fastClient != null)
+            {
+                final int[][] result=new int[1][];
+                executeFast(kGetEnabledChannelsName, params.toArray(), new StaxXmlRpcClient.ResultDecoder() {
+                    public void decode(XmlRpcValueReader in) throws XMLStreamException, XmlRpcException {
+                        result[0]=decodeIntArray(in);
+                    }
+                });
+                return result[0];
+            }
+            
+            Object result=execute(kGetEnabledChannelsName, params);
+            if(!(result instanceof Object[]))
+                throw new ProtocolException("Unknown response type");
+            Object[] indexes=(Object[])result;
+            int[] enabled=new int[indexes.length];
+            for(int i=0; i<indexes.length; i++)
+            {
+                if(!(indexes[i] instanceof Integer))
+                    throw new ProtocolException("Unknown response type");
+                enabled[i]=((Integer)indexes[i]).intValue();
+            }
+            return enabled;
+        }
+        catch (XmlRpcException e)
+        {
+            throw new ProtocolException(e.toString());
+        }
+    }
+    
+    /**
+     * Decode an array of int values
+     */
+    private static int[] decodeIntArray(XmlRpcValueReader in) throws XMLStreamException, XmlRpcException {
+        if(!XmlRpcValueReader.kArray.equals(in.beginValue()))
+            throw new XmlRpcException("Unknown response type");
+        int[] values=new int[16];
+        int n=0;
+        while(in.nextElement())
+        {
+            String type=in.beginValue();
+            if(!type.equals(XmlRpcValueReader.kInt) && !type.equals(XmlRpcValueReader.kI4))
+                throw new XmlRpcException("Unknown response type");
+            if(n == values.length)
+                values=Arrays.copyOf(values, 2*n);
+            values[n++]=in.readInt();
+        }
+        return Arrays.copyOf(values, n);
+    }
+    
+    /**
+     * Look up a channel type identifier
+     *
+     * @throws ProtocolException if it is not one of the k*ChannelType
+     *  constants
+     */
+    private static ChannelType channelType(String chanType) throws ProtocolException {
+        ChannelType type=ChannelType.forName(chanType);
+        if(type == null)
+            throw new ProtocolException("Unrecognized channel type");
+        return type;
+    }
+    
     /**
      * Helper function for determining if a specific channel of a specific
      * type is enabled for acquisition.  Only channels that are enabled for
@@ -350,19 +658,25 @@ public class ACQServer {
      * @throws ProtocolException
      */
     public boolean isChannelEnabled(String chanType, short chanIndex) throws ProtocolException {
-        Vector enabledIndexes;
-        
-        if(chanType.equals(kAnalogChannelType))
-            enabledIndexes=getEnabledAnalogChannels();
-        else if(chanType.equals(kDigitalChannelType))
-            enabledIndexes=getEnabledDigitalChannels();
-        else if(chanType.equals(kCalcChannelType))
-            enabledIndexes=getEnabledCalculationChannels();
-        else
-            throw new ProtocolException("Unrecognized channel type");
-        
-        
-        return(enabledIndexes.contains(new Integer(chanIndex)));
+        return(isChannelEnabled(channelType(chanType), chanIndex));
+    }
+    
+    /**
+     * Determine if a specific channel is enabled for acquisition.
+     *
+     * @param chanType  channel type to check
+     * @param chanIndex 0 based channel index to check
+     * @return true if the channel is enabled, false if not
+     * @throws ProtocolException
+     */
+    public boolean isChannelEnabled(ChannelType chanType, short chanIndex) throws ProtocolException {
+        int[] enabledIndexes=getEnabledChannels(chanType);
+        for(int i=0; i<enabledIndexes.length; i++)
+        {
+            if(enabledIndexes[i] == chanIndex)
+                return(true);
+        }
+        return(false);
     }
     
     /**
@@ -383,7 +697,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetChannelScalingName, params);
+            Object result=execute(kGetChannelScalingName, params);
             // returns a scaling structure with two keys
             if(!(result instanceof Map))
                 throw new ProtocolException("Unexpected return type");
@@ -418,7 +732,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetChannelScalingName, params);
+            Object result=execute(kGetChannelScalingName, params);
             // returns a scaling structure with two keys
             if(!(result instanceof Map))
                 throw new ProtocolException("Unexpected return type");
@@ -481,10 +795,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetSamplingRateName, new Vector());
-            if(!(result instanceof Double))
-                throw new ProtocolException("Unexpected return type");
-            samplingRate=((Double)result).doubleValue();
+            samplingRate=executeDouble(kGetSamplingRateName, new Vector());
         }
         catch (XmlRpcException e)
         {
@@ -520,7 +831,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetDownsamplingDividerName, params);
+            Object result=execute(kGetDownsamplingDividerName, params);
             if(!(result instanceof Integer))
                 throw new ProtocolException("Unexpected return type");
             divider=((Integer)result).intValue();
@@ -549,7 +860,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetDataConnectionMethodName, new Vector());
+            Object result=execute(kGetDataConnectionMethodName, new Vector());
             if(!(result instanceof String))
                 throw new ProtocolException("Unexpected return type");
             dataConnectionMethod=(String)result;
@@ -581,7 +892,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(newMethod);
-            myClient.execute(kChangeDataConnectionMethodName, params);
+            execute(kChangeDataConnectionMethodName, params);
         }
         catch (XmlRpcException e)
         {
@@ -601,7 +912,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetTransportTypeName, new Vector());
+            Object result=execute(kGetTransportTypeName, new Vector());
             if(!(result instanceof String))
                 throw new ProtocolException("Unknwon return type!");
             transportType=(String)result;
@@ -626,7 +937,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(newTransportType);
-            myClient.execute(kChangeTransportTypeName, params);
+            execute(kChangeTransportTypeName, params);
         }
         catch (XmlRpcException e)
         {
@@ -646,7 +957,7 @@ public class ACQServer {
         boolean isEnabled;
         try
         {
-            Object result=myClient.execute(kGetUDPBroadcastEnabledName, new Vector());
+            Object result=execute(kGetUDPBroadcastEnabledName, new Vector());
             if(!(result instanceof Boolean))
                 throw new ProtocolException("Unknown return type!");
             isEnabled=((Boolean)result).booleanValue();
@@ -672,7 +983,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(new Boolean(useBroadcast));
-            myClient.execute(kChangeUDPBroadcastEnabledName, params);
+            execute(kChangeUDPBroadcastEnabledName, params);
         }
         catch (XmlRpcException e)
         {
@@ -695,7 +1006,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetSingleConnectionModePortName, new Vector());
+            Object result=execute(kGetSingleConnectionModePortName, new Vector());
             if(!(result instanceof Integer))
                 throw new ProtocolException("Unknown return type!");
             thePort=((Integer)result).shortValue();
@@ -724,7 +1035,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(new Integer(newPort));
-            myClient.execute(kChangeSingleConnectionModePortName, params);
+            execute(kChangeSingleConnectionModePortName, params);
         }
         catch (XmlRpcException e)
         {
@@ -748,7 +1059,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetDataDeliveryEnabledName, params);
+            Object result=execute(kGetDataDeliveryEnabledName, params);
             if(!(result instanceof Boolean))
                 throw new ProtocolException("Unexpected return type!");
             enabled=((Boolean)result).booleanValue();
@@ -777,7 +1088,7 @@ public class ACQServer {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
             params.add(new Boolean(isEnabled));
-            myClient.execute(kChangeDataDeliveryEnabledName, params);
+            execute(kChangeDataDeliveryEnabledName, params);
         }
         catch (XmlRpcException e)
         {
@@ -791,20 +1102,13 @@ public class ACQServer {
      * @throws ProtocolException
      */
     public void disableAllDataDelivery() throws ProtocolException {
-        Vector enabledIndexes;
-        
-        enabledIndexes=getEnabledAnalogChannels();
-        Enumeration e=enabledIndexes.elements();
-        while(e.hasMoreElements())
-            changeDataDeliveryEnabled(kAnalogChannelType, ((Integer)e.nextElement()).shortValue(), false);
-        enabledIndexes=getEnabledDigitalChannels();
-        e=enabledIndexes.elements();
-        while(e.hasMoreElements())
-            changeDataDeliveryEnabled(kDigitalChannelType, ((Integer)e.nextElement()).shortValue(), false);
-        enabledIndexes=getEnabledCalculationChannels();
-        e=enabledIndexes.elements();
-        while(e.hasMoreElements())
-            changeDataDeliveryEnabled(kCalcChannelType, ((Integer)e.nextElement()).shortValue(), false);
+        ChannelType[] types=ChannelType.values();
+        for(int t=0; t<types.length; t++)
+        {
+            int[] enabledIndexes=getEnabledChannels(types[t]);
+            for(int i=0; i<enabledIndexes.length; i++)
+                changeDataDeliveryEnabled(types[t].getName(), (short)enabledIndexes[i], false);
+        }
     }
     
     /**
@@ -825,7 +1129,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetMostRecentSampleValueDeliveryEnabledName, params);
+            Object result=execute(kGetMostRecentSampleValueDeliveryEnabledName, params);
             if(!(result instanceof Boolean))
                 throw new ProtocolException("Unexpected return type!");
             enabled=((Boolean)result).booleanValue();
@@ -856,7 +1160,7 @@ public class ACQServer {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
             params.add(new Boolean(newEnable));
-            myClient.execute(kChangeMostRecentSampleValueDeliveryEnabledName, params);
+            execute(kChangeMostRecentSampleValueDeliveryEnabledName, params);
         }
         catch (XmlRpcException e)
         {
@@ -880,7 +1184,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetDataConnectionPortName, params);
+            Object result=execute(kGetDataConnectionPortName, params);
             if(!(result instanceof Integer))
                 throw new ProtocolException("Unexpected return type!");
             thePort=((Integer)result).shortValue();
@@ -909,7 +1213,7 @@ public class ACQServer {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
             params.add(new Integer(newPort));
-            myClient.execute(kChangeDataConnectionPortName, params);
+            execute(kChangeDataConnectionPortName, params);
         }
         catch (XmlRpcException e)
         {
@@ -933,7 +1237,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetDataTypeName, params);
+            Object result=execute(kGetDataTypeName, params);
             if(!(result instanceof Map))
                 throw new ProtocolException("Unexpected return type!");
             Map typeStruct=(Map)result;
@@ -964,7 +1268,7 @@ public class ACQServer {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
             params.add(dataTypeParamStruct(newType, getBinaryEndian(chanType, index)));
-            myClient.execute(kChangeDataTypeName, params);
+            execute(kChangeDataTypeName, params);
         }
         catch (XmlRpcException e)
         {
@@ -988,7 +1292,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetDataTypeName, params);
+            Object result=execute(kGetDataTypeName, params);
             if(!(result instanceof Map))
                 throw new ProtocolException("Unexpected return type!");
             Map typeStruct=(Map)result;
@@ -1019,7 +1323,7 @@ public class ACQServer {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
             params.add(dataTypeParamStruct(getBinaryType(chanType, index), newEndian));
-            myClient.execute(kChangeDataTypeName, params);
+            execute(kChangeDataTypeName, params);
         }
         catch (XmlRpcException e)
         {
@@ -1044,10 +1348,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
-            Object result=myClient.execute(kGetMostRecentSampleValueName, params);
-            if(!(result instanceof Double))
-                throw new ProtocolException("Unexpected return type");
-            value=((Double)result).doubleValue();
+            value=executeDouble(kGetMostRecentSampleValueName, params);
         }
         catch (XmlRpcException e)
         {
@@ -1071,9 +1372,24 @@ public class ACQServer {
     public Hashtable getAllMostRecentSampleValues(String chanType) throws ProtocolException {
         Hashtable toReturn=new Hashtable();
         
+        int row=MostRecentSnapshot.typeRow(chanType);
+        if(fastDecoding && fastClient != null && row >= 0)
+        {
+            MostRecentSnapshot snapshot=new MostRecentSnapshot();
+            getMostRecentSampleValues(snapshot);
+            double[] values=snapshot.getValues();
+            int n=snapshot.numChannels();
+            for(int i=0; i<n; i++)
+            {
+                if(!Double.isNaN(values[row*n+i]))
+                    toReturn.put(new Integer(i), new Double(values[row*n+i]));
+            }
+            return(toReturn);
+        }
+        
         try
         {
-            Object result=myClient.execute(kGetMostRecentSampleValueArrayName, new Vector());
+            Object result=execute(kGetMostRecentSampleValueArrayName, new Vector());
             if(!(result instanceof Object[]))
                 throw new ProtocolException("Unexpected return type!");
             Object[] valueStructArray=(Object[])result;
@@ -1115,6 +1431,129 @@ public class ACQServer {
         return(toReturn);
     }
     
+    /**
+     * Return the most recent sample values for all channels of a given type
+     * in a dense array.  There must be an acquisition in progress for this
+     * call to succeed.
+     *
+     * @param chanType  channel type to fetch
+     * @return values indexed by 0-based channel index, up to the highest
+     *  index reported, with NaN for channels without recent value tracking
+     * @throws ProtocolException
+     */
+    public double[] getAllMostRecentSampleValues(ChannelType chanType) throws ProtocolException {
+        MostRecentSnapshot snapshot=new MostRecentSnapshot();
+        getMostRecentSampleValues(snapshot);
+        return snapshot.getValues(chanType);
+    }
+    
+    /**
+     * Fetch the most recent sample values of all channel types with a single
+     * call.  There must be an acquisition in progress for this call to
+     * succeed.  Channels without recent value tracking read NaN.
+     *
+     * @param dst   snapshot that receives the values, cleared first
+     * @throws ProtocolException
+     */
+    public void getMostRecentSampleValues(final MostRecentSnapshot dst) throws ProtocolException {
+        if(fastDecoding && fastClient != null)
+        {
+            try
+            {
+                executeFast(kGetMostRecentSampleValueArrayName, new Object[0], new StaxXmlRpcClient.ResultDecoder() {
+                    public void decode(XmlRpcValueReader in) throws XMLStreamException, XmlRpcException {
+                        decodeMostRecentValues(in, dst);
+                    }
+                });
+            }
+            catch (XmlRpcException e)
+            {
+                throw new ProtocolException(e.toString());
+            }
+            return;
+        }
+        
+        Object result;
+        try
+        {
+            result=execute(kGetMostRecentSampleValueArrayName, new Vector());
+        }
+        catch (XmlRpcException e)
+        {
+            throw new ProtocolException(e.toString());
+        }
+        if(!(result instanceof Object[]))
+            throw new ProtocolException("Unexpected return type!");
+        
+        dst.clear();
+        dst.setNanos(System.nanoTime());
+        Object[] valueStructArray=(Object[])result;
+        for(int i=0; i<valueStructArray.length; i++)
+        {
+            if(!(valueStructArray[i] instanceof Map))
+                throw new ProtocolException("Unexpected return type!");
+            Map valueStruct=(Map)valueStructArray[i];
+            Object value=valueStruct.get(kChannelValueStructValueKey);
+            Object channel=valueStruct.get(kChannelValueStructIndexKey);
+            if(!(value instanceof Double) || !(channel instanceof Map))
+                throw new ProtocolException("Malformed channel value");
+            Map channelIndexMap=(Map)channel;
+            Object index=channelIndexMap.get(kChannelIndexKey);
+            int row=MostRecentSnapshot.typeRow(String.valueOf(channelIndexMap.get(kChannelTypeKey)));
+            if(row < 0 || !(index instanceof Integer) || ((Integer)index).intValue() < 0)
+                continue;
+            dst.setValue(row, ((Integer)index).intValue(), ((Double)value).doubleValue());
+        }
+    }
+    
+    /**
+     * Decode the result of getMostRecentSampleValueArray, an array of
+     * {channel: {type, index}, value} structs, into a snapshot
+     */
+    static void decodeMostRecentValues(XmlRpcValueReader in, MostRecentSnapshot dst) throws XMLStreamException, XmlRpcException {
+        if(!XmlRpcValueReader.kArray.equals(in.beginValue()))
+            throw new XmlRpcException("Unexpected return type!");
+        dst.clear();
+        dst.setNanos(System.nanoTime());
+        while(in.nextElement())
+        {
+            if(!XmlRpcValueReader.kStruct.equals(in.beginValue()))
+                throw new XmlRpcException("Unexpected return type!");
+            double value=Double.NaN;
+            int row=-1;
+            int index=-1;
+            String name;
+            while((name=in.nextMember()) != null)
+            {
+                String type=in.beginValue();
+                if(name.equals(kChannelValueStructValueKey) && type.equals(XmlRpcValueReader.kDouble))
+                {
+                    value=in.readDouble();
+                }
+                else if(name.equals(kChannelValueStructIndexKey) && type.equals(XmlRpcValueReader.kStruct))
+                {
+                    String member;
+                    while((member=in.nextMember()) != null)
+                    {
+                        String memberType=in.beginValue();
+                        if(member.equals(kChannelTypeKey) && memberType.equals(XmlRpcValueReader.kString))
+                            row=MostRecentSnapshot.typeRow(in.readString());
+                        else if(member.equals(kChannelIndexKey) && (memberType.equals(XmlRpcValueReader.kInt) || memberType.equals(XmlRpcValueReader.kI4)))
+                            index=in.readInt();
+                        else
+                            in.skipValue();
+                    }
+                }
+                else
+                {
+                    in.skipValue();
+                }
+            }
+            if(row >= 0 && index >= 0)
+                dst.setValue(row, index, value);
+        }
+    }
+    
     /**
      * Determine if there is any acquisition in progress by the server.  As
      * there may be multiple graphs open on the server, this will return
@@ -1128,7 +1567,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetAcquisitionInProgressName, new Vector());
+            Object result=execute(kGetAcquisitionInProgressName, new Vector());
             if(!(result instanceof Boolean))
                 throw new ProtocolException("Unexpected return type!");
             acqInProgress=((Boolean)result).booleanValue();
@@ -1152,7 +1591,7 @@ public class ACQServer {
     public void toggleAcquisition() throws ProtocolException {
         try
         {
-            myClient.execute(kToggleAcquisitionName, new Vector());
+            execute(kToggleAcquisitionName, new Vector());
         }
         catch (XmlRpcException e)
         {
@@ -1173,7 +1612,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(templateData);
-            myClient.execute(kLoadTemplateName, params);
+            execute(kLoadTemplateName, params);
         }
         catch (XmlRpcException e)
         {
@@ -1192,7 +1631,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(new Integer(newSize));
-            myClient.execute(kSetUDPPacketSizeName, params);
+            execute(kSetUDPPacketSizeName, params);
         }
         catch (XmlRpcException e)
         {
@@ -1211,7 +1650,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetUDPPacketSizeName, new Vector());
+            Object result=execute(kGetUDPPacketSizeName, new Vector());
             if(!(result instanceof Integer))
                 throw new ProtocolException("Unexpected return type!");
             toReturn=((Integer)result).intValue();
@@ -1237,7 +1676,7 @@ public class ACQServer {
         
         try
         {
-            Object result=myClient.execute(kGetDataConnectionHostnameName, new Vector());
+            Object result=execute(kGetDataConnectionHostnameName, new Vector());
             if(!(result instanceof String))
                 throw new ProtocolException("Unexpected return type!");
             toReturn=(String)result;
@@ -1264,7 +1703,7 @@ public class ACQServer {
         {
             Vector params=new Vector();
             params.add(newHostname);
-            myClient.execute(kChangeDataConnectionHostnameName, params);
+            execute(kChangeDataConnectionHostnameName, params);
         }
         catch (XmlRpcException e)
         {
@@ -1293,7 +1732,7 @@ public class ACQServer {
             Vector params=new Vector();
             params.add(xmlrpcChanParamStruct(chanType, index));
             params.add(val);
-            myClient.execute(kSetOutputChannelName, params);
+            execute(kSetOutputChannelName, params);
     	}
     	catch (XmlRpcException e)
     	{
@@ -1301,6 +1740,102 @@ public class ACQServer {
     	}
     }
     
+    /**
+     * Change several output channels with as few round trips as possible.
+     * The changes are sent in one system.multicall request when the server
+     * supports it and as one setOutputChannel call each otherwise; a server
+     * that answers a multicall with a fault saying it has no such method is
+     * not sent another.
+     *
+     * @param chanTypes types of the channels, analog or digital
+     * @param indexes   0 based indexes of the channels
+     * @param vals      new voltage values
+     * @param n         number of channels to change
+     * @throws ProtocolException if any of the changes failed; the others
+     *  are still made
+     */
+    public void setOutputChannels(String[] chanTypes, short[] indexes, double[] vals, int n) throws ProtocolException {
+        if(n == 1 || !multicallSupported)
+        {
+            setOutputChannelsSeparately(chanTypes, indexes, vals, n);
+            return;
+        }
+        
+        Object result;
+        try
+        {
+            Vector calls=new Vector();
+            for(int i=0; i<n; i++)
+            {
+                Hashtable call=new Hashtable();
+                call.put("methodName", kSetOutputChannelName);
+                call.put("params", new Object[] {xmlrpcChanParamStruct(chanTypes[i], indexes[i]), new Double(vals[i])});
+                calls.add(call);
+            }
+            Vector params=new Vector();
+            params.add(calls);
+            result=execute(kMulticallName, params);
+        }
+        catch (XmlRpcException e)
+        {
+            if(!isMethodNotFound(e, kMulticallName))
+                throw new ProtocolException(e.toString());
+            multicallSupported=false;
+            setOutputChannelsSeparately(chanTypes, indexes, vals, n);
+            return;
+        }
+        if(!(result instanceof Object[]) || ((Object[])result).length != n)
+            throw new ProtocolException("Unexpected return type!");
+        
+        Object[] results=(Object[])result;
+        for(int i=0; i<n; i++)
+        {
+            if(results[i] instanceof Map)
+                throw new ProtocolException("setOutputChannel "+chanTypes[i]+indexes[i]+" failed: "+((Map)results[i]).get("faultString"));
+        }
+    }
+    
+    /**
+     * Check whether a call failed because the server has no such method,
+     * rather than because of the transport or the call itself.  Servers
+     * report it with the interoperability fault code or, like the Apache
+     * server, with a fault string naming the method.
+     *
+     * @param e         exception thrown by the call
+     * @param method    name of the called method
+     * @return true for a missing method fault
+     */
+    private static boolean isMethodNotFound(XmlRpcException e, String method) {
+        // transport and decoding failures wrap their cause, faults don't
+        if(e.linkedException != null || e.getCause() != null)
+            return false;
+        if(e.code == kMethodNotFoundFault)
+            return true;
+        String msg=e.getMessage();
+        if(msg == null)
+            return false;
+        msg=msg.toLowerCase();
+        return msg.indexOf(method.toLowerCase()) >= 0
+            && (msg.indexOf("no such") >= 0 || msg.indexOf("not found") >= 0 || msg.indexOf("unknown") >= 0);
+    }
+    
+    private void setOutputChannelsSeparately(String[] chanTypes, short[] indexes, double[] vals, int n) throws ProtocolException {
+        ProtocolException failure=null;
+        for(int i=0; i<n; i++)
+        {
+            try
+            {
+                setOutputChannel(chanTypes[i], indexes[i], vals[i]);
+            }
+            catch (ProtocolException e)
+            {
+                failure=e;
+            }
+        }
+        if(failure != null)
+            throw failure;
+    }
+    
     /**
      * Change the timeout AcqKnowledge uses for closing data connections.
      * When an acquisition completes, AcqKnowledge may continue to keep
@@ -1319,7 +1854,7 @@ public class ACQServer {
     	{
     		Vector params=new Vector();
     		params.add(sec);
-    		myClient.execute(kSetDataConnectionTimeoutSecName, params);
+    		execute(kSetDataConnectionTimeoutSecName, params);
     	}
     	catch (XmlRpcException e)
     	{
@@ -0,0 +1,126 @@
+/*
+ * BandPower.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.Arrays;
+
+/**
+ * Power of a channel within a frequency band over a sliding window, such as
+ * the alpha band of an EEG channel.  The DFT bins covering the band are
+ * updated with every sample by a sliding DFT (a bank of recursive Goertzel
+ * style resonators), so the cost per sample is proportional to the number
+ * of bins in the band rather than to the window length.  A slight damping
+ * keeps rounding errors from accumulating over long acquisitions.
+ *
+ * Values: 0 mean square of the band's content, in squared channel units.
+ */
+public class BandPower implements FeatureExtractor {
+    // pole radius of the resonators, just inside the unit circle
+    private static final double kDamping=0.99999;
+
+    private final String name;
+    private final double[] window;
+    private final double[] cos;     // per bin rotation, damped
+    private final double[] sin;
+    private final double[] re;
+    private final double[] im;
+    private final double dampingN;  // kDamping^N
+    private int pos=0;
+    private int count=0;
+
+    /**
+     * Create a band power meter
+     *
+     * @param channelRate   rate of the fed samples in Hertz
+     * @param windowSec     length of the analysis window in seconds, which
+     *                      sets the frequency resolution to 1/windowSec
+     * @param low           lower edge of the band in Hertz
+     * @param high          upper edge of the band in Hertz
+     */
+    public BandPower(double channelRate, double windowSec, double low, double high) {
+        int length=(int)Math.round(channelRate*windowSec);
+        if(length < 2)
+            throw new IllegalArgumentException("Window too short");
+        if(low < 0 || high < low || high > channelRate/2)
+            throw new IllegalArgumentException("Invalid band "+low+"-"+high+" Hz");
+
+        int first=(int)Math.ceil(low*length/channelRate);
+        int last=(int)Math.floor(high*length/channelRate);
+        if(last < first)
+            throw new IllegalArgumentException("Band narrower than the frequency resolution");
+
+        name="band"+label(low)+"-"+label(high);
+        window=new double[length];
+        int bins=last-first+1;
+        cos=new double[bins];
+        sin=new double[bins];
+        re=new double[bins];
+        im=new double[bins];
+        for(int b=0; b<bins; b++)
+        {
+            double w=2*Math.PI*(first+b)/length;
+            cos[b]=kDamping*Math.cos(w);
+            sin[b]=kDamping*Math.sin(w);
+        }
+        dampingN=Math.pow(kDamping, length);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int numValues() {
+        return 1;
+    }
+
+    public void process(double[] samples, int off, int n) {
+        int bins=re.length;
+        for(int i=0; i<n; i++)
+        {
+            double x=samples[off+i];
+            double delta=x-dampingN*window[pos];
+            window[pos]=x;
+            pos=(pos+1)%window.length;
+            if(count < window.length)
+                count++;
+
+            for(int b=0; b<bins; b++)
+            {
+                double r=re[b]+delta;
+                double m=im[b];
+                re[b]=r*cos[b]-m*sin[b];
+                im[b]=r*sin[b]+m*cos[b];
+            }
+        }
+    }
+
+    public double getValue(int index) {
+        if(count < window.length)
+            return Double.NaN;
+
+        // a sine of amplitude A puts A*N/2 in its bin and has a mean
+        // square of A^2/2
+        double power=0;
+        for(int b=0; b<re.length; b++)
+            power+=re[b]*re[b]+im[b]*im[b];
+        double n=window.length;
+        return 2*power/(n*n);
+    }
+
+    public void reset() {
+        Arrays.fill(window, 0);
+        Arrays.fill(re, 0);
+        Arrays.fill(im, 0);
+        pos=0;
+        count=0;
+    }
+
+    private static String label(double hz) {
+        return hz == Math.rint(hz) ? Long.toString((long)hz) : Double.toString(hz);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * CallStats.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing and error figures of a single XML-RPC control method.  ACQServer
+ * keeps one of these for every method it has invoked and updates it on
+ * every call, successful or not.
+ *
+ * Payload sizes are kept apart by how they were taken.  Calls made with
+ * fast decoding count the bytes of the XML request and response bodies as
+ * sent and received.  Calls made with the generic client only have
+ * estimates of the XML encoding of their parameters and result, good
+ * enough to tell a large request from a small one; those are reported by
+ * the getEstimated* methods.
+ *
+ * @see ACQServer#getCallStats()
+ */
+public class CallStats {
+    private final String method;
+    private final LongAdder calls=new LongAdder();
+    private final LongAdder failures=new LongAdder();
+    private final LongAdder totalNanos=new LongAdder();
+    private final LongAdder requestBytes=new LongAdder();
+    private final LongAdder responseBytes=new LongAdder();
+    private final LongAdder estimatedRequestBytes=new LongAdder();
+    private final LongAdder estimatedResponseBytes=new LongAdder();
+    private final LatencyHistogram latency=new LatencyHistogram();
+
+    /**
+     * Create the statistics of a control method
+     *
+     * @param methodName    XML-RPC method name, e.g. acq.getSamplingRate
+     */
+    public CallStats(String methodName) {
+        method=methodName;
+    }
+
+    /**
+     * Count a completed call
+     *
+     * @param nanos     time from sending the request to receiving the
+     *                  response or failure
+     * @param failed    true if the call raised an error
+     * @param reqBytes  size of the request
+     * @param respBytes size of the response, 0 on failure
+     * @param estimated true if the sizes are estimates rather than the
+     *                  bytes sent and received
+     */
+    public void record(long nanos, boolean failed, long reqBytes, long respBytes, boolean estimated) {
+        calls.increment();
+        if(failed)
+            failures.increment();
+        totalNanos.add(nanos);
+        if(estimated)
+        {
+            estimatedRequestBytes.add(reqBytes);
+            estimatedResponseBytes.add(respBytes);
+        }
+        else
+        {
+            requestBytes.add(reqBytes);
+            responseBytes.add(respBytes);
+        }
+        latency.record(nanos);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Get the time spent in this method over all calls
+     *
+     * @return total time in milliseconds
+     */
+    public double getTotalMillis() {
+        return totalNanos.sum()/1e6;
+    }
+
+    /**
+     * Get the request body bytes sent by calls made with fast decoding
+     */
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    /**
+     * Get the response body bytes received by calls made with fast
+     * decoding
+     */
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    /**
+     * Get the estimated request size of calls made with the generic client
+     */
+    public long getEstimatedRequestBytes() {
+        return estimatedRequestBytes.sum();
+    }
+
+    /**
+     * Get the estimated response size of calls made with the generic
+     * client
+     */
+    public long getEstimatedResponseBytes() {
+        return estimatedResponseBytes.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public double getMeanMillis() {
+        return latency.getMeanNanos()/1e6;
+    }
+
+    public double getP50Millis() {
+        return latency.getPercentileNanos(50)/1e6;
+    }
+
+    public double getP99Millis() {
+        return latency.getPercentileNanos(99)/1e6;
+    }
+
+    public double getMaxMillis() {
+        return latency.getMaxNanos()/1e6;
+    }
+
+    /**
+     * Zero all counters and the latency histogram
+     */
+    public void reset() {
+        calls.reset();
+        failures.reset();
+        totalNanos.reset();
+        requestBytes.reset();
+        responseBytes.reset();
+        estimatedRequestBytes.reset();
+        estimatedResponseBytes.reset();
+        latency.reset();
+    }
+}
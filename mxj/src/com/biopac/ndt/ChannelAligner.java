@@ -0,0 +1,355 @@
+/*
+ * ChannelAligner.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the same window of time from several channels at once.  Channels
+ * are identified by their SampleBuffer, whose absolute sample indexes count
+ * channel samples from the start of the acquisition, and by their sampling
+ * rate divider.  Channel sample k of a channel with divider d was taken at
+ * acquisition sample k*d, so its time is k*d divided by the acquisition
+ * sampling rate.  A channel whose indexes run ahead of time, such as one
+ * buffered through a Decimator with its filter delay, is added with an
+ * offset: its sample k stands for the time of sample k-offset.
+ *
+ * Samples are delivered at a common output rate, by default the rate of the
+ * fastest channel.  Channels at the output rate are copied unchanged, other
+ * channels are resampled by linear interpolation.  Linear interpolation does
+ * not filter, so channels faster than the output rate should be decimated
+ * first if aliasing matters.
+ *
+ * next() reads consecutive windows and removes the samples it no longer
+ * needs from the channel buffers, so it must be the only consumer of those
+ * buffers.  read() reads any window still buffered without consuming it.
+ * When a channel's buffer is restarted, as the data sockets do for a new
+ * acquisition or connection, the read position moves back to the start.
+ */
+public class ChannelAligner {
+    // fractional indexes this close to a whole sample are treated as exact
+    private static final double kIndexEpsilon=1e-6;
+
+    private static class Channel {
+        SampleBuffer buffer;
+        int divider;
+        double offset;  // channel samples the indexes run ahead of time
+        double ratio;   // channel samples per output sample
+        long restarts;  // buffer restarts seen
+    }
+
+    private final double samplingRate;
+    private final List<Channel> channels=new ArrayList<Channel>();
+    private double requestedRate=0;
+    private double outputRate=0;
+    private long position=0;
+    private double[] scratch=new double[1024];
+
+    /**
+     * Create an aligner without channels
+     *
+     * @param rate  acquisition sampling rate in Hertz, from
+     *              ACQServer.getSamplingRate()
+     */
+    public ChannelAligner(double rate) {
+        if(!(rate > 0))
+            throw new IllegalArgumentException("Invalid sampling rate "+rate);
+        samplingRate=rate;
+    }
+
+    /**
+     * Add a channel
+     *
+     * @param buf       buffer the channel's samples are received into
+     * @param divider   sampling rate divider of the channel, from
+     *                  ACQServer.getSamplingRateDivider()
+     * @return index of the channel in the arrays passed to read() and next()
+     */
+    public synchronized int addChannel(SampleBuffer buf, int divider) {
+        return addChannel(buf, divider, 0);
+    }
+
+    /**
+     * Add a channel whose indexes are offset from its sample times
+     *
+     * @param buf       buffer the channel's samples are received into
+     * @param divider   sampling rate divider of the buffered samples
+     * @param offset    number of channel samples the indexes run ahead of
+     *                  time, for example Decimator.getOutputOffset()
+     * @return index of the channel in the arrays passed to read() and next()
+     */
+    public synchronized int addChannel(SampleBuffer buf, int divider, double offset) {
+        if(Double.isNaN(offset) || Double.isInfinite(offset))
+            throw new IllegalArgumentException("Invalid offset "+offset);
+        Channel c=new Channel();
+        c.buffer=buf;
+        c.divider=Math.max(divider, 1);
+        c.offset=offset;
+        c.restarts=buf.getRestartCount();
+        double time=getTime();
+        channels.add(c);
+        updateRates();
+        position=(long)Math.ceil(time*outputRate-kIndexEpsilon);
+        return channels.size()-1;
+    }
+
+    public synchronized int numChannels() {
+        return channels.size();
+    }
+
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Get the rate a channel's samples arrive at
+     *
+     * @param index channel index returned by addChannel()
+     * @return channel rate in Hertz
+     */
+    public synchronized double getChannelRate(int index) {
+        return samplingRate/channels.get(index).divider;
+    }
+
+    /**
+     * Choose the rate samples are delivered at.  The read position keeps its
+     * time.
+     *
+     * @param rate  output rate in Hertz, or 0 for the rate of the fastest
+     *              channel
+     */
+    public synchronized void setOutputRate(double rate) {
+        if(rate < 0 || Double.isNaN(rate))
+            throw new IllegalArgumentException("Invalid output rate "+rate);
+        double time=getTime();
+        requestedRate=rate;
+        updateRates();
+        position=(long)Math.ceil(time*outputRate-kIndexEpsilon);
+    }
+
+    /**
+     * Get the rate samples are delivered at
+     *
+     * @return output rate in Hertz, 0 if there are no channels
+     */
+    public synchronized double getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * Get the time of the next sample next() will deliver
+     *
+     * @return seconds since the start of the acquisition
+     */
+    public synchronized double getTime() {
+        return outputRate == 0 ? 0 : position/outputRate;
+    }
+
+    /**
+     * Move the read position back to the start of the acquisition, for use
+     * when a new acquisition is started
+     */
+    public synchronized void reset() {
+        position=0;
+    }
+
+    /**
+     * Get the number of output samples next() can deliver right now.  If a
+     * channel no longer holds the samples at the read position, the
+     * position first moves ahead to the earliest time held by every channel.
+     *
+     * @return number of samples available on every channel
+     */
+    public synchronized long available() {
+        if(channels.isEmpty())
+            return 0;
+        checkRestarts();
+        skipToBuffered();
+        while(dropFinishedRuns())
+            skipToBuffered();
+
+        long last=Long.MAX_VALUE;
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            // the last output sample whose interpolation ends at or before
+            // the newest buffered channel sample
+            long end=c.buffer.getEndIndex();
+            last=Math.min(last, (long)Math.floor((end-1-c.offset)/c.ratio+kIndexEpsilon));
+        }
+        return Math.max(0, last-position+1);
+    }
+
+    /**
+     * Read the next window of samples and release the channel samples that
+     * are no longer needed.
+     *
+     * @param n     number of samples to read per channel
+     * @param dst   one destination array per channel, in addChannel() order,
+     *              each holding at least n samples
+     * @return true if the window was read, false if some channel has not
+     *  received it yet
+     */
+    public synchronized boolean next(int n, double[][] dst) {
+        if(available() < n)
+            return false;
+
+        fill(position, n, dst);
+        position+=n;
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            c.buffer.removeSamplesBefore(channelIndex(c, position));
+        }
+        return true;
+    }
+
+    /**
+     * Read a window of samples without consuming it
+     *
+     * @param time  time of the first sample, in seconds since the start of
+     *              the acquisition
+     * @param n     number of samples to read per channel
+     * @param dst   one destination array per channel, in addChannel() order,
+     *              each holding at least n samples
+     * @return true if the window was read, false if some channel does not
+     *  hold all of it
+     */
+    public synchronized boolean read(double time, int n, double[][] dst) {
+        if(channels.isEmpty() || n < 1)
+            return n < 1;
+
+        double start=time*outputRate;
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            long lo=channelIndex(c, start);
+            long hi=(long)Math.ceil(channelPosition(c, start+n-1));
+            if(lo < c.buffer.getFirstIndex() || hi >= c.buffer.getEndIndex())
+                return false;
+        }
+        fill(start, n, dst);
+        return true;
+    }
+
+    /**
+     * Interpolate a window that every channel holds
+     */
+    private void fill(double start, int n, double[][] dst) {
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            double[] out=dst[i];
+            long lo=channelIndex(c, start);
+            long hi=(long)Math.ceil(channelPosition(c, start+n-1));
+            int len=(int)(hi-lo+1);
+            if(scratch.length < len)
+                scratch=new double[Math.max(len, scratch.length*2)];
+            c.buffer.getSamplesAt(lo, scratch, 0, len);
+
+            if(c.ratio == 1 && channelPosition(c, start) == lo)
+            {
+                System.arraycopy(scratch, 0, out, 0, n);
+                continue;
+            }
+            for(int j=0; j<n; j++)
+            {
+                double x=channelPosition(c, start+j)-lo;
+                int k=(int)x;
+                double frac=x-k;
+                out[j]=frac == 0 ? scratch[k] : scratch[k]+frac*(scratch[k+1]-scratch[k]);
+            }
+        }
+    }
+
+    /**
+     * Drop what is left of a channel's oldest index run once the read
+     * position has moved past its last sample, so that reading continues
+     * with the run that follows a gap
+     *
+     * @return true if a run was dropped
+     */
+    private boolean dropFinishedRuns() {
+        boolean dropped=false;
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            long end=c.buffer.getEndIndex();
+            if(c.buffer.hasNextRun() && (long)Math.ceil(channelPosition(c, position)) >= end)
+            {
+                c.buffer.removeSamplesBefore(end);
+                dropped=true;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Move the read position back to the start when some channel's buffer
+     * has been restarted since the aligner last looked.  Channels that have
+     * not restarted yet hold no samples near the start, so nothing is read
+     * until they have.
+     */
+    private void checkRestarts() {
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            long restarts=c.buffer.getRestartCount();
+            if(restarts != c.restarts)
+            {
+                c.restarts=restarts;
+                position=0;
+            }
+        }
+    }
+
+    /**
+     * Move the read position past samples some channel has already let go
+     */
+    private void skipToBuffered() {
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            long first=c.buffer.getFirstIndex();
+            if(channelIndex(c, position) < first)
+                position=(long)Math.ceil((first-c.offset)/c.ratio-kIndexEpsilon);
+        }
+    }
+
+    /**
+     * Get the fractional channel index of an output position
+     */
+    private static double channelPosition(Channel c, double outputPosition) {
+        return snap(outputPosition*c.ratio+c.offset);
+    }
+
+    /**
+     * Get the channel sample at or before an output position
+     */
+    private static long channelIndex(Channel c, double outputPosition) {
+        return (long)Math.floor(channelPosition(c, outputPosition));
+    }
+
+    private static double snap(double x) {
+        double r=Math.rint(x);
+        return Math.abs(x-r) < kIndexEpsilon ? r : x;
+    }
+
+    private void updateRates() {
+        double fastest=0;
+        for(int i=0; i<channels.size(); i++)
+            fastest=Math.max(fastest, samplingRate/channels.get(i).divider);
+        outputRate=requestedRate > 0 ? requestedRate : fastest;
+        for(int i=0; i<channels.size(); i++)
+        {
+            Channel c=channels.get(i);
+            c.ratio=samplingRate/c.divider/outputRate;
+        }
+    }
+}
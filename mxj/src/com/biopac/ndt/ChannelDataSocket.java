@@ -6,15 +6,16 @@
  */
 
 package com.biopac.ndt;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.io.EOFException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
-import java.io.DataInputStream;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 
@@ -31,22 +32,71 @@ import java.util.List;
  *
  * Clients that are performing continuous or long-term data acquisitions
  * should be sure to continually invoke removeSamplesFromBuffer() to avoid
- * running out of memory.
+ * running out of memory, or bound the buffer with SampleBuffer.setBudget().
+ * Under the SampleBuffer.kPause policy the receive thread stops reading
+ * while the buffer is full, so the server's sends block until the client
+ * catches up.
+ *
+ * The server opens a data connection when an acquisition starts, so each
+ * accepted connection restarts the sample buffer's absolute indexes at 0.
+ * The index of a buffered sample is then its position in the channel since
+ * the start of the acquisition.
+ *
+ * The socket owns a listening port and one thread per accepted connection.
+ * Clients must call close() (or stopProcessing()) when they are done with
+ * the socket so that the port is released and the threads are joined.
+ * With setVirtualThreads() these are virtual threads where the runtime
+ * has them, see ReceiveThreads.
  *
  * @author  edwardp
  * @version 
  */
-public class ChannelDataSocket {
+public class ChannelDataSocket implements AutoCloseable {
     private int dataConnectionPort;
-    private boolean bRunThreads=false;
-    private List data;
+    private volatile boolean bRunThreads=false;
+    private final SampleBuffer data=new SampleBuffer();
+    private final ChannelStats stats=new ChannelStats(data);
+    private ServerSocket listeningSocket=null;
     private Thread listeningThread=null;
+    private final List<DataProcessor> processingThreads=new ArrayList<DataProcessor>();
+    private volatile boolean virtualThreads=ReceiveThreads.isVirtualDefault();
+    private volatile ChannelRecorder recorder=null;
+    private volatile Decimator decimator=null;
+    private Decimator activeDecimator=null;     // decimator the receive path uses
+    private volatile SummaryPyramid summary=null;
+    private volatile FeatureEngine features=null;
+    private volatile SamplePublisher publisher=null;
+    private final SampleListeners listeners=new SampleListeners();
+    private long nextIndex=0;   // index of the next received sample
+    
+    // bytes requested from the data connection per read
+    private static final int kReadChunkBytes=8192;
+    
+    // how long a paused receive thread waits before checking for shutdown
+    private static final long kPauseSliceMillis=100;
     
     /**
      * The listening thread will listen for incoming data connections and
      * spawn off additional threads to handle incoming data.
      */
-    private class ListeningThread extends Thread {
+    private class Listener implements Runnable {
+        private ServerSocket listeningSocket;
+        private final boolean virtual;
+        
+        /**
+         * Construct a new listener accepting connections on an already
+         * bound server socket
+         *
+         * @param sock          bound socket on which to accept data
+         *                      connections
+         * @param useVirtual    true to handle connections on virtual
+         *                      threads
+         */
+        public Listener(ServerSocket sock, boolean useVirtual) {
+            listeningSocket=sock;
+            virtual=useVirtual;
+        }
+        
         /**
          * Listen for incoming data connections and dispatch additional
          * handler threads as desired.
@@ -54,21 +104,37 @@ public class ChannelDataSocket {
         public void run() {
             try
             {
-                ServerSocket listeningSocket=new ServerSocket(dataConnectionPort);
                 while(bRunThreads)
                 {
                     Socket s=listeningSocket.accept();
-                    if(bRunThreads) // our final accept may be to unblock the thread for death
+                    DataProcessor t=new DataProcessor(s, virtual);
+                    synchronized(processingThreads)
                     {
-                        (new DataProcessingThread(s)).start();
+                        // stopProcessing() may have swept the list while
+                        // we were blocked in accept
+                        if(!bRunThreads)
+                        {
+                            closeQuietly(s);
+                            break;
+                        }
+                        processingThreads.add(t);
                     }
+                    t.thread.start();
                 }
-                listeningSocket.close();
+            }
+            catch (SocketException e)
+            {
+                // the server socket was closed by stopProcessing() to
+                // unblock accept, this is the normal way out
+                if(bRunThreads)
+                    System.err.println("Error in listening thread: "+e);
             }
             catch (IOException e)
             {
                 System.err.println("Error in listening thread: "+e);
             }
+            
+            closeQuietly(listeningSocket);
         }
     }
     
@@ -76,18 +142,28 @@ public class ChannelDataSocket {
      * Handle all incoming data on the connection while it is still alive
      * and copy it into our internal buffers
      */
-    private class DataProcessingThread extends Thread {
+    private class DataProcessor implements Runnable {
         private Socket s;
+        final Thread thread;
         
         /**
-         * Construct a new data processing thread to buffer data as it is
-         * received over a TCP data connection
+         * Construct a new data processor and its thread to buffer data as
+         * it is received over a TCP data connection
          *
-         * @param sock  the socket to which the AcqKnowledge server is
-         *              connected
+         * @param sock          the socket to which the AcqKnowledge server
+         *                      is connected
+         * @param useVirtual    true for a virtual thread
          */
-        public DataProcessingThread(Socket sock) {
+        public DataProcessor(Socket sock, boolean useVirtual) {
             s=sock;
+            thread=ReceiveThreads.newThread(this, "ChannelDataSocket data "+dataConnectionPort, useVirtual);
+        }
+        
+        /**
+         * Close the data connection, unblocking any pending read
+         */
+        public void shutdown() {
+            closeQuietly(s);
         }
         
         /**
@@ -97,11 +173,36 @@ public class ChannelDataSocket {
         public void run() {
             try
             {
+                // a new connection is a new acquisition.  The stream state
+                // is reset here, on the thread that feeds it, rather than
+                // on the listening thread.
+                restartStream();
+                
                 InputStream inputStream=s.getInputStream();
-                DataInputStream dataStream=new DataInputStream(inputStream);
-                while(bRunThreads)
+                
+                // read in chunks and decode every complete double, carrying
+                // any partial sample over to the next read
+                
+                byte[] raw=new byte[kReadChunkBytes];
+                ByteBuffer rawBuffer=ByteBuffer.wrap(raw);
+                double[] samples=new double[kReadChunkBytes/8];
+                int numBytes=0;
+                while(waitForRoom())
                 {
-                    data.add(new Double(dataStream.readDouble()));
+                    int numRead=inputStream.read(raw, numBytes, raw.length-numBytes);
+                    if(numRead < 0)
+                        throw new EOFException();
+                    numBytes+=numRead;
+                    stats.recordReceived(numRead, 0);
+                    
+                    int numDecoded=numBytes/8;
+                    for(int i=0; i<numDecoded; i++)
+                        samples[i]=rawBuffer.getDouble(i*8);
+                    receiveSamples(samples, numDecoded);
+                    
+                    int remainder=numBytes-numDecoded*8;
+                    System.arraycopy(raw, numDecoded*8, raw, 0, remainder);
+                    numBytes=remainder;
                 }
             }
             catch (EOFException eofException)
@@ -111,18 +212,18 @@ public class ChannelDataSocket {
             }
             catch (IOException e)
             {
-                System.err.println("Exception in data processing thread: "+e);
+                // a closed socket is how stopProcessing() unblocks our read
+                if(bRunThreads)
+                    System.err.println("Exception in data processing thread: "+e);
             }
             
             // do another close on the socket to ensure it's closed if we're
             // exiting threads
             
-            try
-            {
-                s.close();
-            }
-            catch (Exception e)
+            closeQuietly(s);
+            synchronized(processingThreads)
             {
+                processingThreads.remove(this);
             }
         }
     }
@@ -141,11 +242,284 @@ public class ChannelDataSocket {
     }
     
     /**
-     * When we're destroyed, make sure we stop our threads and unbind our
-     * listening port
+     * Choose whether the listening and receive loops run on virtual threads,
+     * starting with the next startProcessing().  Runtimes without virtual
+     * threads use platform threads either way.
+     */
+    public void setVirtualThreads(boolean virtual) {
+        virtualThreads=virtual;
+    }
+    
+    /**
+     * Determine whether the socket receives on virtual threads, which is
+     * only the case if they were asked for and the runtime has them
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads && ReceiveThreads.isVirtualAvailable();
+    }
+    
+    /**
+     * Attach a recorder that archives every sample as it is received.  The
+     * recorder is fed from the receive thread.  A recorder that fails to
+     * write is detached and closed.
+     *
+     * @param r recorder to attach, or null to stop recording.  The previous
+     *          recorder, if any, is not closed.
+     */
+    public void setRecorder(ChannelRecorder r) {
+        recorder=r;
+    }
+    
+    public ChannelRecorder getRecorder() {
+        return recorder;
+    }
+    
+    /**
+     * Reduce the sample rate of the channel before samples are buffered.
+     * The decimator runs on the receive thread; the recorder still archives
+     * every received sample.  Sample indexes then count decimated samples.
+     * On a live stream the decimator takes over with the next received
+     * batch: the sample buffer restarts at the index of that batch at the
+     * new rate, dropping the samples buffered at the old one, and the
+     * summary restarts with it.
+     *
+     * @param d decimator to attach, or null to buffer every sample
+     */
+    public void setDecimator(Decimator d) {
+        decimator=d;
+    }
+    
+    public Decimator getDecimator() {
+        return decimator;
+    }
+    
+    /**
+     * Keep a min/max/mean/RMS summary of the buffered samples for long
+     * window displays.  The summary is fed from the receive thread after
+     * decimation and restarts with the sample buffer.
+     *
+     * @param p summary to feed, or null to stop
+     */
+    public void setSummary(SummaryPyramid p) {
+        summary=p;
+    }
+    
+    public SummaryPyramid getSummary() {
+        return summary;
+    }
+    
+    /**
+     * Compute features of the channel on the receive thread.  The engine is
+     * fed every received sample, before decimation, and restarts with the
+     * sample buffer.
+     *
+     * @param e feature engine to feed, or null to stop
+     */
+    public void setFeatureEngine(FeatureEngine e) {
+        features=e;
+    }
+    
+    public FeatureEngine getFeatureEngine() {
+        return features;
+    }
+    
+    /**
+     * Publish every received sample, before decimation, to reactive
+     * subscribers.  Batches are numbered from 0 with each new acquisition.
+     *
+     * @param p publisher to feed, or null to stop.  The previous publisher,
+     *          if any, is not closed.
+     */
+    public void setPublisher(SamplePublisher p) {
+        publisher=p;
+    }
+    
+    public SamplePublisher getPublisher() {
+        return publisher;
+    }
+    
+    /**
+     * Add a callback for samples as they are decoded.  Listeners run on the
+     * receive thread before the samples are decimated and buffered.
+     *
+     * @param l listener to add
+     * @see SampleListener
      */
-    protected void finalize() throws Throwable {
+    public void addSampleListener(SampleListener l) {
+        listeners.add(l);
+    }
+    
+    /**
+     * Remove a listener added with addSampleListener()
+     *
+     * @param l listener to remove
+     * @return true if the listener was found
+     */
+    public boolean removeSampleListener(SampleListener l) {
+        return listeners.remove(l);
+    }
+    
+    /**
+     * Get the throughput and latency figures of this socket's channel
+     *
+     * @return channel statistics
+     */
+    public ChannelStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Get the store that received samples are buffered into
+     *
+     * @return sample buffer of this socket
+     */
+    public SampleBuffer getSampleBuffer() {
+        return data;
+    }
+    
+    /**
+     * Feed samples into the receive path as if they had arrived over the
+     * data connection.  This is used to replay recorded sessions through
+     * the same pipeline live data takes; the socket does not need to be
+     * processing.
+     *
+     * @param samples   sample values
+     * @param n         number of valid samples in the array
+     */
+    public void injectSamples(double[] samples, int n) {
+        receiveSamples(samples, n);
+    }
+    
+    /**
+     * Under the pause policy, wait until the buffer has room for a full
+     * read before reading on
+     *
+     * @return false if the socket is shutting down
+     */
+    private boolean waitForRoom() throws InterruptedIOException {
+        if(data.getOverflowPolicy() != SampleBuffer.kPause)
+            return bRunThreads;
+        
+        int n=Math.min(kReadChunkBytes/8, data.getBudget());
+        try
+        {
+            while(bRunThreads && !data.awaitRoom(n, kPauseSliceMillis))
+                ;
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while paused");
+        }
+        return bRunThreads;
+    }
+    
+    /**
+     * Start numbering samples from 0 for a new acquisition and drop the
+     * decimator's history of the previous one.  This is called on the
+     * receive thread of the new connection, or by startProcessing() once
+     * every receive thread has been joined.
+     */
+    private void restartStream() {
+        Decimator d=decimator;
+        activeDecimator=d;
+        if(d != null)
+            d.reset();
+        SummaryPyramid p=summary;
+        if(p != null)
+            p.reset();
+        FeatureEngine engine=features;
+        if(engine != null)
+            engine.reset();
+        nextIndex=0;
+        data.restartAt(0);
+    }
+    
+    /**
+     * Switch the receive path over to a decimator attached while streaming
+     * and restart the sample buffer and summary at the rate it delivers, so
+     * that one buffer never mixes indexes of two rates
+     */
+    private void changeDecimator(Decimator d) {
+        activeDecimator=d;
+        SummaryPyramid p=summary;
+        if(p != null)
+            p.reset();
+        if(d == null)
+        {
+            data.restartAt(nextIndex);
+            return;
+        }
+        d.reset();
+        data.restartAt((long)(nextIndex*d.getOutputRatio()));
+    }
+    
+    /**
+     * Pass a batch of decoded samples through the receive path: hand them
+     * to the listeners, extract features, publish them to subscribers,
+     * decimate, buffer and summarize them for the client and hand them to
+     * the recorder.
+     *
+     * @param samples   decoded sample values
+     * @param n         number of valid samples in the array
+     */
+    private void receiveSamples(double[] samples, int n) {
+        if(n == 0)
+            return;
+        
+        Decimator d=decimator;
+        if(d != activeDecimator)
+            changeDecimator(d);
+        
+        long first=nextIndex;
+        nextIndex+=n;
+        listeners.onSamples(samples, 0, n, first, dataConnectionPort);
+        
+        FeatureEngine engine=features;
+        if(engine != null)
+            engine.process(samples, 0, n);
+        SamplePublisher pub=publisher;
+        if(pub != null)
+            pub.onSamples(samples, 0, n, first);
+        
+        double[] buffered=samples;
+        int numBuffered=n;
+        if(d != null)
+        {
+            numBuffered=d.process(samples, 0, n);
+            buffered=d.getOutput();
+        }
+        data.append(buffered, 0, numBuffered);
+        SummaryPyramid p=summary;
+        if(p != null)
+            p.append(buffered, 0, numBuffered);
+        stats.recordReceived(0, n);
+        
+        ChannelRecorder r=recorder;
+        if(r != null)
+        {
+            try
+            {
+                r.append(samples, 0, n);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Recording stopped on port "+dataConnectionPort+": "+e);
+                if(recorder == r)
+                    recorder=null;
+                r.close();
+            }
+        }
+    }
+    
+    /**
+     * Stop our threads and unbind our listening port.  Data that was
+     * buffered prior to this call is released.  The socket may be started
+     * again afterwards with startProcessing().
+     */
+    public synchronized void close() {
         stopProcessing();
+        data.releaseSpill();
+        data.clear();
     }
     
     public synchronized boolean isProcessing() {
@@ -154,20 +528,41 @@ public class ChannelDataSocket {
     
     /**
      * Start listening for data connections from the AcqKnowledge server and
-     * spawn the threads used for data processing.
+     * spawn the threads used for data processing.  The listening port is
+     * bound before this returns, so a port that is already in use is
+     * reported to the caller rather than to the listening thread.
+     *
+     * @throws IOException if the listening port could not be bound
      */
-    public synchronized void startProcessing() {
+    public synchronized void startProcessing() throws IOException {
         // if we were already running, perform a stopProcessing to halt any
         // previous threads and unblock the ports
         
         if(bRunThreads)
             stopProcessing();
         
+        // bind with SO_REUSEADDR so a port released by a previous socket
+        // (e.g. a reopened patch) can be bound again immediately
+        
+        ServerSocket sock=new ServerSocket();
+        sock.setReuseAddress(true);
+        try
+        {
+            sock.bind(new InetSocketAddress(dataConnectionPort));
+        }
+        catch (IOException e)
+        {
+            closeQuietly(sock);
+            throw e;
+        }
+        
         // start the new threads
         
         bRunThreads=true;
-        data=Collections.synchronizedList(new ArrayList(8196));
-        listeningThread=new ListeningThread();
+        restartStream();
+        listeningSocket=sock;
+        boolean virtual=virtualThreads;
+        listeningThread=ReceiveThreads.newThread(new Listener(sock, virtual), "ChannelDataSocket listener "+dataConnectionPort, virtual);
         listeningThread.start();
     }
     
@@ -181,33 +576,72 @@ public class ChannelDataSocket {
         
         bRunThreads=false;
         
-        // when stopping processing, we need to make a connection to our
-        // server data socket to trigger it to close.
+        // closing the server socket unblocks accept() in the listening
+        // thread, and closing each accepted connection unblocks its reader
         
-        try
-        {
-            Socket s=new Socket(InetAddress.getLocalHost(), dataConnectionPort);
-            s.close();
-        }
-        catch (Exception e)
+        closeQuietly(listeningSocket);
+        listeningSocket=null;
+        
+        DataProcessor[] threads;
+        synchronized(processingThreads)
         {
+            threads=processingThreads.toArray(new DataProcessor[processingThreads.size()]);
+            processingThreads.clear();
         }
+        for(int i=0; i<threads.length; i++)
+            threads[i].shutdown();
         
-        // block until our listening thread has exited, freeing up the bound
+        // block until our threads have exited, freeing up the bound
         // ServerSocket
         
-        while(listeningThread.isAlive())
+        joinQuietly(listeningThread);
+        listeningThread=null;
+        for(int i=0; i<threads.length; i++)
+            joinQuietly(threads[i].thread);
+    }
+    
+    /**
+     * Wait for a thread to exit, retrying if we are interrupted
+     *
+     * @param t thread to join, may be null
+     */
+    private static void joinQuietly(Thread t) {
+        if(t == null || t == Thread.currentThread())
+            return;
+        
+        boolean interrupted=false;
+        while(t.isAlive())
         {
             try
             {
-                listeningThread.join();
+                t.join();
             }
             catch (InterruptedException e)
             {
                 // our thread was interrupted while waiting for the join,
                 // just try again to join on the other thread
+                interrupted=true;
             }
         }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * Close a socket ignoring any errors, used on shutdown paths
+     *
+     * @param c socket to close, may be null
+     */
+    static void closeQuietly(java.io.Closeable c) {
+        if(c == null)
+            return;
+        try
+        {
+            c.close();
+        }
+        catch (IOException e)
+        {
+        }
     }
     
     /**
@@ -216,13 +650,8 @@ public class ChannelDataSocket {
      *
      * @return number of buffered samples
      */
-    public synchronized int numSamples() {
-    	if(data == null) {
-    		return 0;
-    	}
-    	else {
-    		return(data.size());
-    	}
+    public int numSamples() {
+        return(data.numSamples());
     }
     
     /**
@@ -232,8 +661,8 @@ public class ChannelDataSocket {
      * @return sample value
      * @throws IndexOutOfBoundsException
      */
-    public synchronized double getSample(int index) throws IndexOutOfBoundsException {
-        return(((Double)data.get(index)).doubleValue());
+    public double getSample(int index) throws IndexOutOfBoundsException {
+        return(data.getSample(index));
     }
     
     /**
@@ -250,23 +679,21 @@ public class ChannelDataSocket {
      *                      data array
      * @throws IndexOutOfBoundsException
      */
-    public synchronized void removeSamplesFromBuffer(int numSamples) {
-    	if(data == null) {
-    		return;
-    	}
-    	
-        if(numSamples > data.size())
-            throw new IndexOutOfBoundsException();
-        
-        for(int i=numSamples-1; i>=0; i--)
-            data.remove(i);
+    public void removeSamplesFromBuffer(int numSamples) {
+        data.removeSamples(numSamples);
     }
     
-    public synchronized double[] getSamples(int index, int n) throws IndexOutOfBoundsException {
-    	double[] samples = new double[n];
-    	for(int i=0; i < n; i++) {
-    		samples[i] = (((Double)data.get(index)).doubleValue());
-    	}
+    /**
+     * Copy a range of buffered samples into a new array
+     *
+     * @param index first sample to copy, in the range [0, numSamples())
+     * @param n     number of samples to copy
+     * @return sample values
+     * @throws IndexOutOfBoundsException
+     */
+    public double[] getSamples(int index, int n) throws IndexOutOfBoundsException {
+        double[] samples=new double[n];
+        data.getSamples(index, samples, 0, n);
         return samples;
     }
 }
@@ -0,0 +1,283 @@
+/*
+ * ChannelExport.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a channel ring shared by a ChannelExporter, usually in another
+ * process.  The reader keeps a position in the ring, starting at the
+ * newest sample, and read() returns the samples written since.  Samples the
+ * writer overwrote before they could be read are skipped and counted.
+ *
+ * Once isOpen() turns false the exporter has closed the ring; a later
+ * export of the channel creates a new file, which has to be opened again.
+ *
+ * @see ChannelExporter
+ */
+public class ChannelExport implements AutoCloseable {
+    // a writer that died mid-update leaves the sequence odd for good, so
+    // give up on a snapshot after this many tries
+    private static final int kMaxSnapshotTries=1<<16;
+
+    private final File file;
+    private final String channelType;
+    private final short channelIndex;
+    private final double samplingRate;
+    private final int divider;
+    private final long startTime;
+    private final int capacity;
+
+    private MappedByteBuffer map;
+    private DoubleBuffer ring;
+    private long position;
+    private long lastIndex=-1;
+    private long lost=0;
+
+    // consistent view of the header taken by snapshot()
+    private long snapWrite;
+    private long snapStreams;
+    private final long[] snapStreamPosition=new long[ChannelExporter.kStreamTableSize];
+    private final long[] snapStreamIndex=new long[ChannelExporter.kStreamTableSize];
+
+    /**
+     * Open a ring and read its channel information from the header
+     *
+     * @param f ring file written by a ChannelExporter
+     * @throws IOException if the file is missing or is not an exported ring
+     */
+    public ChannelExport(File f) throws IOException {
+        file=f;
+        FileChannel channel=FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try
+        {
+            if(channel.size() < ChannelExporter.kHeaderSize)
+                throw new IOException(f+" is not an exported channel");
+            map=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            channel.close();
+        }
+        map.order(ByteOrder.nativeOrder());
+
+        byte[] magic=new byte[ChannelExporter.kMagic.length];
+        map.get(magic);
+        VarHandle.loadLoadFence();
+        for(int i=0; i<magic.length; i++)
+            if(magic[i] != ChannelExporter.kMagic[i])
+                throw new IOException(f+" is not an exported channel");
+        if(map.getInt(ChannelExporter.kByteOrderOffset) != 1)
+            throw new IOException(f+" was written in a different byte order");
+
+        StringBuilder type=new StringBuilder();
+        for(int i=0; i<8; i++)
+        {
+            byte b=map.get(ChannelExporter.kChannelTypeOffset+i);
+            if(b == 0)
+                break;
+            type.append((char)b);
+        }
+        channelType=type.toString();
+        channelIndex=(short)map.getInt(ChannelExporter.kChannelIndexOffset);
+        divider=map.getInt(ChannelExporter.kDividerOffset);
+        samplingRate=map.getDouble(ChannelExporter.kSamplingRateOffset);
+        startTime=map.getLong(ChannelExporter.kStartTimeOffset);
+        capacity=map.getInt(ChannelExporter.kCapacityOffset);
+        if(map.capacity() < ChannelExporter.kHeaderSize+(long)capacity*8)
+            throw new IOException(f+" is truncated");
+
+        map.position(map.getInt(ChannelExporter.kHeaderSizeOffset));
+        ring=map.slice().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        map.position(0);
+
+        if(!snapshot())
+            throw new IOException(f+" is stuck in an update");
+        position=snapWrite;
+    }
+
+    public File getFile() { return file; }
+
+    /** Channel type, one of the ACQServer k*ChannelType constants */
+    public String getChannelType() { return channelType; }
+
+    /** 0 based index of the exported channel */
+    public short getChannelIndex() { return channelIndex; }
+
+    /** Acquisition sampling rate in Hertz, before the channel divider */
+    public double getSamplingRate() { return samplingRate; }
+
+    /** Sampling rate divider of the exported channel */
+    public int getSamplingRateDivider() { return divider; }
+
+    /** Rate at which the channel's samples are delivered, in Hertz */
+    public double getChannelRate() { return samplingRate/Math.max(divider, 1); }
+
+    /** Export start time in milliseconds since the epoch */
+    public long getStartTime() { return startTime; }
+
+    /** Number of samples the ring holds */
+    public int getCapacity() { return capacity; }
+
+    /**
+     * Check whether the exporter still writes to the ring
+     */
+    public synchronized boolean isOpen() {
+        return map != null && (int)ChannelExporter.kIntView.getAcquire(map, ChannelExporter.kOpenOffset) != 0;
+    }
+
+    /**
+     * Get the number of samples written and not read yet, including any
+     * the writer has overwritten
+     */
+    public synchronized long available() {
+        if(map == null)
+            return 0;
+        return (long)ChannelExporter.kLongView.getAcquire(map, ChannelExporter.kWriteOffset)-position;
+    }
+
+    /**
+     * Get the channel index of the first sample returned by the last
+     * read(), -1 before anything was read
+     */
+    public synchronized long getIndex() {
+        return lastIndex;
+    }
+
+    /**
+     * Get the number of samples that were overwritten before they could
+     * be read
+     */
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    /**
+     * Read the samples written since the last read.  The samples returned
+     * by one call have consecutive channel indexes starting at getIndex();
+     * a call stops at the end of a stream, so the next call starts the new
+     * stream.
+     *
+     * @param dst   destination array
+     * @param off   offset in dst of the first sample
+     * @param len   maximum number of samples to read
+     * @return number of samples read, 0 if there were no new samples
+     */
+    public synchronized int read(double[] dst, int off, int len) {
+        if(map == null)
+            return 0;
+
+        if(!snapshot())
+            return 0;
+        long oldest=snapWrite-capacity;
+        if(position < oldest)
+        {
+            lost+=oldest-position;
+            position=oldest;
+        }
+
+        if(position >= snapWrite)
+            return 0;
+
+        // find the stream of the sample at position, the newest one that
+        // starts at or before it
+        long firstKnown=Math.max(0, snapStreams-ChannelExporter.kStreamTableSize);
+        long stream=snapStreams-1;
+        while(stream > firstKnown && snapStreamPosition[entry(stream)] > position)
+            stream--;
+        long start=snapStreamPosition[entry(stream)];
+        if(start > position)
+        {
+            // the streams that held these samples have left the table, so
+            // their indexes are unknown
+            lost+=start-position;
+            position=start;
+        }
+        long end=stream+1 < snapStreams ? snapStreamPosition[entry(stream+1)] : snapWrite;
+        int n=(int)Math.min(len, end-position);
+
+        int slot=(int)(position&(capacity-1));
+        int first=Math.min(n, capacity-slot);
+        ring.position(slot);
+        ring.get(dst, off, first);
+        if(first < n)
+        {
+            ring.position(0);
+            ring.get(dst, off+first, n-first);
+        }
+
+        // drop whatever the writer overwrote while we were copying
+        VarHandle.loadLoadFence();
+        long claim=(long)ChannelExporter.kLongView.getAcquire(map, ChannelExporter.kClaimOffset);
+        long overwritten=Math.min(n, claim-capacity-position);
+        if(overwritten > 0)
+        {
+            int k=(int)overwritten;
+            System.arraycopy(dst, off+k, dst, off, n-k);
+            lost+=k;
+            position+=k;
+            n-=k;
+        }
+
+        lastIndex=snapStreamIndex[entry(stream)]+(position-start);
+        position+=n;
+        return n;
+    }
+
+    /**
+     * Release the mapped ring
+     */
+    public synchronized void close() {
+        map=null;
+        ring=null;
+    }
+
+    /**
+     * Get the table entry of a stream
+     */
+    private static int entry(long stream) {
+        return (int)(stream%ChannelExporter.kStreamTableSize);
+    }
+
+    /**
+     * Take a consistent copy of the write position and the stream fields
+     * under the seqlock
+     *
+     * @return false if the writer never finished its update
+     */
+    private boolean snapshot() {
+        for(int i=0; i<kMaxSnapshotTries; i++)
+        {
+            long seq=(long)ChannelExporter.kLongView.getAcquire(map, ChannelExporter.kSequenceOffset);
+            if((seq&1) != 0)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+            snapWrite=(long)ChannelExporter.kLongView.getAcquire(map, ChannelExporter.kWriteOffset);
+            snapStreams=(long)ChannelExporter.kLongView.getAcquire(map, ChannelExporter.kStreamCountOffset);
+            for(int k=0; k<ChannelExporter.kStreamTableSize; k++)
+            {
+                int at=ChannelExporter.kStreamTableOffset+k*16;
+                snapStreamPosition[k]=(long)ChannelExporter.kLongView.getAcquire(map, at);
+                snapStreamIndex[k]=(long)ChannelExporter.kLongView.getAcquire(map, at+8);
+            }
+            VarHandle.loadLoadFence();
+            if((long)ChannelExporter.kLongView.getAcquire(map, ChannelExporter.kSequenceOffset) == seq)
+                return true;
+        }
+        return false;
+    }
+}
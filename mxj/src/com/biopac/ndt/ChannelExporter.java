@@ -0,0 +1,278 @@
+/*
+ * ChannelExporter.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Shares the live samples of a channel with other processes on the same
+ * machine through a memory mapped ring.  The exporter is a SampleListener;
+ * added to a ChannelDataSocket or UDPChannelDataSocket it copies every
+ * received sample, before decimation, into the ring on the receive thread.
+ * Readers map the same file and take samples straight out of it, without
+ * a connection of their own to the server.
+ *
+ * The file is a 256 byte header followed by the ring, capacity doubles.
+ * All values are in the native byte order of the writing machine:
+ *
+ * <pre>
+ *   0  byte[8]  magic "ACQSHM01"
+ *   8  byte[8]  channel type, one of the k*ChannelType constants, ASCII,
+ *               NUL padded
+ *  16  int      0 based channel index
+ *  20  int      sampling rate divider of the channel
+ *  24  double   acquisition sampling rate in Hertz (before the divider)
+ *  32  long     export start time, milliseconds since the epoch
+ *  40  int      ring capacity in samples, a power of two
+ *  44  int      byte order mark, reads 1 in the writer's byte order
+ *  48  int      1 while the exporter is open, 0 once it is closed
+ *  52  int      header size, the offset of ring slot 0
+ *  64  long     sequence, odd while the writer is updating the ring
+ *  72  long     claim position, one past the last sample being written
+ *  80  long     write position, one past the last complete sample
+ *  88  long     number of streams started
+ * 128  long[16] stream table, 8 entries of two longs: the position and
+ *               the channel index of the first sample of a stream
+ * </pre>
+ *
+ * Positions count the samples written to the ring since it was created
+ * and never go back.  The sample at position p is in slot p mod capacity.
+ * A stream is a run of samples with consecutive channel indexes.  A new
+ * acquisition, or a gap left by lost UDP datagrams, starts a new stream.
+ * Stream k is described by table entry k mod 8, so the table holds the
+ * last 8 streams; the sample at position p of a stream that starts at
+ * position s with index i has channel index i+(p-s).
+ *
+ * The fields from 64 on form a seqlock.  The writer makes the sequence
+ * odd, adds any new stream and updates the claim position, writes the
+ * samples, publishes the write position and makes the sequence even
+ * again.  A reader
+ *
+ * <ol>
+ * <li>reads the sequence, retrying while it is odd,
+ * <li>reads the write position, the stream count and the stream table,
+ * <li>rereads the sequence and starts over if it changed,
+ * <li>copies any samples from max(write-capacity, its position) up to
+ *     write out of the ring, with no lock and no further retries,
+ * <li>reads the claim position and discards the copied samples below
+ *     claim-capacity, which the writer overwrote during the copy.
+ * </ol>
+ *
+ * Loads must not be reordered across those steps: Java readers use
+ * acquire loads and VarHandle.loadLoadFence(), C and C++ readers
+ * atomic_thread_fence(memory_order_acquire).  The exporter never waits
+ * for readers, so a reader that falls more than capacity samples behind
+ * loses the oldest ones.  ChannelExport is a reader for Java clients.
+ *
+ * @see ChannelExport
+ */
+public class ChannelExporter implements SampleListener, AutoCloseable {
+    /** File name suffix of exported rings */
+    public static final String kExportSuffix=".acqshm";
+
+    /** Default ring capacity, 8 MB of samples */
+    public static final int kDefaultCapacity=1<<20;
+
+    static final byte[] kMagic={'A','C','Q','S','H','M','0','1'};
+    static final int kHeaderSize=256;
+    static final int kChannelTypeOffset=8;
+    static final int kChannelIndexOffset=16;
+    static final int kDividerOffset=20;
+    static final int kSamplingRateOffset=24;
+    static final int kStartTimeOffset=32;
+    static final int kCapacityOffset=40;
+    static final int kByteOrderOffset=44;
+    static final int kOpenOffset=48;
+    static final int kHeaderSizeOffset=52;
+    static final int kSequenceOffset=64;
+    static final int kClaimOffset=72;
+    static final int kWriteOffset=80;
+    static final int kStreamCountOffset=88;
+    static final int kStreamTableOffset=128;
+    static final int kStreamTableSize=8;
+
+    static final VarHandle kLongView=MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    static final VarHandle kIntView=MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+    private final int capacity;
+    private MappedByteBuffer map;
+    private DoubleBuffer ring;
+    private long sequence=0;
+    private long position=0;
+    private long streams=0;
+    private long nextIndex=-1;  // channel index that continues the stream
+
+    /**
+     * Create the ring file of a channel and map it.  An existing file of
+     * that name is replaced; readers that still have it mapped keep the old
+     * copy.
+     *
+     * @param f             ring file
+     * @param chanType      channel type, one of the ACQServer k*ChannelType
+     *                      constants
+     * @param index         0 based channel index
+     * @param rate          acquisition sampling rate, from
+     *                      ACQServer.getSamplingRate()
+     * @param rateDivider   channel divider, from
+     *                      ACQServer.getSamplingRateDivider()
+     * @param ringCapacity  number of samples kept, a power of two
+     * @throws IOException if the file could not be created or mapped
+     */
+    public ChannelExporter(File f, String chanType, short index, double rate, int rateDivider, int ringCapacity) throws IOException {
+        if(chanType.length() > 8)
+            throw new IllegalArgumentException("Channel type too long");
+        if(ringCapacity < 1 || (ringCapacity & (ringCapacity-1)) != 0)
+            throw new IllegalArgumentException("Ring capacity must be a power of two");
+        file=f;
+        capacity=ringCapacity;
+
+        // a new inode rather than truncating the old one, which would fault
+        // readers that still have it mapped
+        Files.deleteIfExists(f.toPath());
+        FileChannel channel=FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            map=channel.map(FileChannel.MapMode.READ_WRITE, 0, kHeaderSize+(long)capacity*8);
+        }
+        finally
+        {
+            // the mapping stays valid after the channel is closed
+            channel.close();
+        }
+        map.order(ByteOrder.nativeOrder());
+
+        byte[] type=new byte[8];
+        for(int i=0; i<chanType.length(); i++)
+            type[i]=(byte)chanType.charAt(i);
+        map.putInt(kChannelIndexOffset, index);
+        map.putInt(kDividerOffset, rateDivider);
+        map.putDouble(kSamplingRateOffset, rate);
+        map.putLong(kStartTimeOffset, System.currentTimeMillis());
+        map.putInt(kCapacityOffset, capacity);
+        map.putInt(kByteOrderOffset, 1);
+        map.putInt(kHeaderSizeOffset, kHeaderSize);
+        map.position(kChannelTypeOffset);
+        map.put(type);
+
+        map.position(kHeaderSize);
+        ring=map.slice().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        map.position(0);
+
+        // the magic goes last, so a reader that sees it sees a whole header
+        map.putInt(kOpenOffset, 1);
+        VarHandle.storeStoreFence();
+        map.put(kMagic);
+    }
+
+    /**
+     * Create the ring file of a channel with the default capacity
+     *
+     * @see ChannelExporter(File, String, short, double, int, int)
+     */
+    public ChannelExporter(File f, String chanType, short index, double rate, int rateDivider) throws IOException {
+        this(f, chanType, index, rate, rateDivider, kDefaultCapacity);
+    }
+
+    /**
+     * Get the ring file of a channel in an export folder
+     *
+     * @param dir       export folder
+     * @param chanType  channel type
+     * @param index     0 based channel index
+     * @return ring file
+     */
+    public static File exportFile(File dir, String chanType, int index) {
+        return new File(dir, chanType+index+kExportSuffix);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of samples written to the ring so far
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Copy received samples into the ring.  This is called on the receive
+     * thread.
+     */
+    public synchronized void onSamples(double[] buf, int off, int len, long firstIndex) {
+        if(map == null)
+            return;
+
+        long end=position+len;
+        kLongView.setOpaque(map, kSequenceOffset, sequence+1);
+        // the odd sequence must be visible before any field it guards
+        VarHandle.storeStoreFence();
+        if(firstIndex != nextIndex)
+        {
+            int entry=kStreamTableOffset+(int)(streams%kStreamTableSize)*16;
+            kLongView.setOpaque(map, entry, position);
+            kLongView.setOpaque(map, entry+8, firstIndex);
+            streams++;
+            kLongView.setOpaque(map, kStreamCountOffset, streams);
+        }
+        kLongView.setOpaque(map, kClaimOffset, end);
+        VarHandle.storeStoreFence();
+
+        // only the newest capacity samples of a long batch survive
+        long at=position;
+        if(len > capacity)
+        {
+            at+=len-capacity;
+            off+=len-capacity;
+            len=capacity;
+        }
+        int slot=(int)(at&(capacity-1));
+        int first=Math.min(len, capacity-slot);
+        ring.position(slot);
+        ring.put(buf, off, first);
+        if(first < len)
+        {
+            ring.position(0);
+            ring.put(buf, off+first, len-first);
+        }
+
+        kLongView.setRelease(map, kWriteOffset, end);
+        sequence+=2;
+        kLongView.setRelease(map, kSequenceOffset, sequence);
+        nextIndex=firstIndex+(end-position);
+        position=end;
+    }
+
+    /**
+     * Mark the ring closed and release it.  The file is left in place for
+     * readers, which see the closed flag.  Further samples are ignored.
+     */
+    public synchronized void close() {
+        if(map == null)
+            return;
+        kIntView.setRelease(map, kOpenOffset, 0);
+        map=null;
+        ring=null;
+    }
+}
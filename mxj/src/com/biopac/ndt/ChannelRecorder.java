@@ -0,0 +1,262 @@
+/*
+ * ChannelRecorder.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Archives the samples of a single channel to a sequence of memory mapped
+ * segment files as they are received.  A recorder is attached to a
+ * ChannelDataSocket with setRecorder() and is then fed from the socket's
+ * receive thread, so recording never runs on the client's thread.
+ *
+ * Each segment is named &lt;base&gt;.NNNN.acqrec and is preallocated to
+ * hold a fixed number of samples.  A segment starts with a 64 byte header,
+ * all values big endian:
+ *
+ * <pre>
+ *  0  byte[8]  magic "ACQREC01"
+ *  8  byte[8]  channel type, one of the k*ChannelType constants, ASCII,
+ *              NUL padded
+ * 16  int      0 based channel index
+ * 20  int      sampling rate divider of the channel
+ * 24  double   acquisition sampling rate in Hertz (before the divider)
+ * 32  long     recording start time, milliseconds since the epoch
+ * 40  long     index of the first sample in this segment
+ * 48  int      segment number
+ * 52  int      segment capacity in samples
+ * 56  long     number of valid samples in this segment
+ * </pre>
+ *
+ * followed by the samples as big endian doubles.  The valid sample count
+ * is published with release semantics after the samples it covers have been
+ * written, so another thread or process mapping the file may read up to
+ * that count while the recording is still in progress.  A reader should
+ * move on to the next segment once the count reaches the capacity.
+ */
+public class ChannelRecorder implements AutoCloseable {
+    /** File name suffix of recorded segments */
+    public static final String kSegmentSuffix=".acqrec";
+
+    /** Default segment capacity, 8 MB of samples per file */
+    public static final int kDefaultSegmentSamples=1<<20;
+
+    static final byte[] kMagic={'A','C','Q','R','E','C','0','1'};
+    static final int kHeaderSize=64;
+    static final int kChannelTypeOffset=8;
+    static final int kChannelIndexOffset=16;
+    static final int kDividerOffset=20;
+    static final int kSamplingRateOffset=24;
+    static final int kStartTimeOffset=32;
+    static final int kFirstSampleOffset=40;
+    static final int kSegmentNumberOffset=48;
+    static final int kCapacityOffset=52;
+    static final int kCountOffset=56;
+
+    static final VarHandle kLongView=MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // forcing an 8 MB mapping to disk can take a while, so it is done here
+    // rather than on the receive thread or the client's thread
+    private static final WorkerPool kFlusher=new WorkerPool(1, "ChannelRecorder flusher");
+
+    private final String baseName;
+    private final String channelType;
+    private final short channelIndex;
+    private final double samplingRate;
+    private final int divider;
+    private final int segmentSamples;
+
+    private long startTime=0;
+    private int segmentNumber=-1;
+    private long segmentFirstSample=0;
+    private MappedByteBuffer segment=null;
+    private DoubleBuffer segmentData=null;
+    private int segmentCount=0;
+    private boolean closed=false;
+
+    /**
+     * Create a recorder for a channel.  No file is created until the first
+     * samples are appended.
+     *
+     * @param base          path and base name of the segment files
+     * @param chanType      channel type, one of the ACQServer k*ChannelType
+     *                      constants
+     * @param index         0 based channel index
+     * @param rate          acquisition sampling rate, from
+     *                      ACQServer.getSamplingRate()
+     * @param rateDivider   channel divider, from
+     *                      ACQServer.getSamplingRateDivider()
+     * @param capacity      number of samples stored in each segment
+     */
+    public ChannelRecorder(File base, String chanType, short index, double rate, int rateDivider, int capacity) {
+        if(chanType.length() > 8)
+            throw new IllegalArgumentException("Channel type too long");
+        if(capacity < 1)
+            throw new IllegalArgumentException("Segment capacity must be positive");
+        baseName=base.getPath();
+        channelType=chanType;
+        channelIndex=index;
+        samplingRate=rate;
+        divider=rateDivider;
+        segmentSamples=capacity;
+    }
+
+    /**
+     * Create a recorder using the default segment capacity
+     *
+     * @see ChannelRecorder(File, String, short, double, int, int)
+     */
+    public ChannelRecorder(File base, String chanType, short index, double rate, int rateDivider) {
+        this(base, chanType, index, rate, rateDivider, kDefaultSegmentSamples);
+    }
+
+    /**
+     * Get the file holding a given segment of a recording
+     *
+     * @param base      path and base name of the recording
+     * @param segment   segment number
+     * @return segment file
+     */
+    public static File segmentFile(File base, int segment) {
+        return new File(base.getPath()+"."+String.format("%04d", segment)+kSegmentSuffix);
+    }
+
+    /**
+     * Get the total number of samples appended to the recording
+     *
+     * @return number of recorded samples
+     */
+    public synchronized long numSamples() {
+        return segmentFirstSample+segmentCount;
+    }
+
+    /**
+     * Append samples to the recording, rolling over to a new segment file
+     * when the current one is full.
+     *
+     * @param buf   sample buffer
+     * @param off   offset of the first sample in buf
+     * @param len   number of samples to append
+     * @throws IOException if a segment file could not be created
+     */
+    public synchronized void append(double[] buf, int off, int len) throws IOException {
+        if(closed)
+            return;
+
+        while(len > 0)
+        {
+            if(segment == null || segmentCount == segmentSamples)
+                nextSegment();
+
+            int n=Math.min(len, segmentSamples-segmentCount);
+            segmentData.put(buf, off, n);
+            segmentCount+=n;
+            kLongView.setRelease(segment, kCountOffset, (long)segmentCount);
+            off+=n;
+            len-=n;
+        }
+    }
+
+    /**
+     * Have the current segment written to the storage device by a
+     * background thread.  This does not wait for the write; the operating
+     * system writes the mapped pages back in any case, a flush only bounds
+     * how long that may take.
+     */
+    public synchronized void flush() {
+        if(segment != null)
+            forceLater(segment);
+    }
+
+    /**
+     * Flush and release the current segment without waiting for the write.
+     * Further appends are ignored.
+     */
+    public synchronized void close() {
+        flush();
+        segment=null;
+        segmentData=null;
+        closed=true;
+    }
+
+    /**
+     * Write a segment to the storage device on the flusher thread
+     */
+    private static void forceLater(final MappedByteBuffer buf) {
+        try
+        {
+            kFlusher.execute(new Runnable() {
+                public void run() {
+                    buf.force();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the pages are still written back by the operating system
+        }
+    }
+
+    /**
+     * Map a fresh segment file and write its header
+     */
+    private void nextSegment() throws IOException {
+        if(segment != null)
+        {
+            forceLater(segment);
+            segmentFirstSample+=segmentCount;
+        }
+        else
+        {
+            startTime=System.currentTimeMillis();
+        }
+
+        segmentNumber++;
+        segmentCount=0;
+
+        File f=segmentFile(new File(baseName), segmentNumber);
+        FileChannel channel=FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            segment=channel.map(FileChannel.MapMode.READ_WRITE, 0, kHeaderSize+(long)segmentSamples*8);
+        }
+        finally
+        {
+            // the mapping stays valid after the channel is closed
+            channel.close();
+        }
+
+        segment.put(kMagic);
+        byte[] type=new byte[8];
+        for(int i=0; i<channelType.length(); i++)
+            type[i]=(byte)channelType.charAt(i);
+        segment.put(type);
+        segment.putInt(kChannelIndexOffset, channelIndex);
+        segment.putInt(kDividerOffset, divider);
+        segment.putDouble(kSamplingRateOffset, samplingRate);
+        segment.putLong(kStartTimeOffset, startTime);
+        segment.putLong(kFirstSampleOffset, segmentFirstSample);
+        segment.putInt(kSegmentNumberOffset, segmentNumber);
+        segment.putInt(kCapacityOffset, segmentSamples);
+        kLongView.setRelease(segment, kCountOffset, 0L);
+
+        segment.position(kHeaderSize);
+        segmentData=segment.slice().asDoubleBuffer();
+        segment.position(0);
+    }
+}
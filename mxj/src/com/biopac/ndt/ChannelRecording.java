@@ -0,0 +1,195 @@
+/*
+ * ChannelRecording.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read access to a channel recording written by ChannelRecorder.  Segment
+ * files are memory mapped as they are needed.  A recording that is still
+ * being written may be read; numSamples() and read() only ever see the
+ * samples the recorder has published.
+ *
+ * @see ChannelRecorder
+ */
+public class ChannelRecording implements AutoCloseable {
+    private final File base;
+    private final String channelType;
+    private final short channelIndex;
+    private final double samplingRate;
+    private final int divider;
+    private final long startTime;
+    private final int capacity;
+
+    private final List<MappedByteBuffer> segments=new ArrayList<MappedByteBuffer>();
+    private final List<DoubleBuffer> segmentData=new ArrayList<DoubleBuffer>();
+
+    /**
+     * Open a recording and read its channel information from the header
+     * of the first segment
+     *
+     * @param recordingBase path and base name the recording was written with
+     * @throws IOException if the first segment is missing or is not a
+     *  recording
+     */
+    public ChannelRecording(File recordingBase) throws IOException {
+        base=recordingBase;
+        MappedByteBuffer first=mapSegment(0);
+        if(first == null)
+            throw new IOException("No recording at "+base);
+
+        byte[] magic=new byte[ChannelRecorder.kMagic.length];
+        first.get(magic);
+        for(int i=0; i<magic.length; i++)
+            if(magic[i] != ChannelRecorder.kMagic[i])
+                throw new IOException(base+" is not a channel recording");
+
+        StringBuilder type=new StringBuilder();
+        for(int i=0; i<8; i++)
+        {
+            byte b=first.get(ChannelRecorder.kChannelTypeOffset+i);
+            if(b == 0)
+                break;
+            type.append((char)b);
+        }
+        channelType=type.toString();
+        channelIndex=(short)first.getInt(ChannelRecorder.kChannelIndexOffset);
+        divider=first.getInt(ChannelRecorder.kDividerOffset);
+        samplingRate=first.getDouble(ChannelRecorder.kSamplingRateOffset);
+        startTime=first.getLong(ChannelRecorder.kStartTimeOffset);
+        capacity=first.getInt(ChannelRecorder.kCapacityOffset);
+    }
+
+    /** Channel type, one of the ACQServer k*ChannelType constants */
+    public String getChannelType() { return channelType; }
+
+    /** 0 based index of the recorded channel */
+    public short getChannelIndex() { return channelIndex; }
+
+    /** Acquisition sampling rate in Hertz, before the channel divider */
+    public double getSamplingRate() { return samplingRate; }
+
+    /** Sampling rate divider of the recorded channel */
+    public int getSamplingRateDivider() { return divider; }
+
+    /** Rate at which the channel's samples were delivered, in Hertz */
+    public double getChannelRate() { return samplingRate/Math.max(divider, 1); }
+
+    /** Recording start time in milliseconds since the epoch */
+    public long getStartTime() { return startTime; }
+
+    /**
+     * Get the number of samples published to the recording so far
+     *
+     * @return number of readable samples
+     */
+    public synchronized long numSamples() throws IOException {
+        int last=0;
+        while(mapSegment(last+1) != null)
+            last++;
+        return (long)last*capacity+publishedCount(last);
+    }
+
+    /**
+     * Read samples from the recording
+     *
+     * @param index first sample to read
+     * @param dst   destination array
+     * @param off   offset in dst of the first sample
+     * @param len   maximum number of samples to read
+     * @return number of samples read, less than len when the end of the
+     *  published samples is reached
+     * @throws IOException if a segment could not be mapped
+     */
+    public synchronized int read(long index, double[] dst, int off, int len) throws IOException {
+        int total=0;
+        while(len > 0)
+        {
+            int segment=(int)(index/capacity);
+            int position=(int)(index%capacity);
+            if(mapSegment(segment) == null)
+                break;
+
+            int available=(int)publishedCount(segment)-position;
+            if(available <= 0)
+                break;
+
+            int n=Math.min(len, available);
+            DoubleBuffer view=segmentData.get(segment);
+            view.position(position);
+            view.get(dst, off, n);
+            index+=n;
+            off+=n;
+            len-=n;
+            total+=n;
+        }
+        return total;
+    }
+
+    /**
+     * Release the mapped segments
+     */
+    public synchronized void close() {
+        segments.clear();
+        segmentData.clear();
+    }
+
+    /**
+     * Get the sample count the recorder has published for a mapped segment
+     */
+    private long publishedCount(int segment) {
+        MappedByteBuffer buf=segments.get(segment);
+        return (long)ChannelRecorder.kLongView.getAcquire(buf, ChannelRecorder.kCountOffset);
+    }
+
+    /**
+     * Map a segment file if it has not been mapped yet
+     *
+     * @return mapped segment, or null if the segment does not exist yet
+     */
+    private MappedByteBuffer mapSegment(int segment) throws IOException {
+        if(segment < segments.size())
+            return segments.get(segment);
+
+        // segments are mapped in order, a later one may only be mapped once
+        // all earlier segments are
+        while(segments.size() <= segment)
+        {
+            File f=ChannelRecorder.segmentFile(base, segments.size());
+            if(!f.exists())
+                return null;
+
+            FileChannel channel=FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            MappedByteBuffer buf;
+            try
+            {
+                // the recorder sizes a segment when it maps it, before that
+                // it is not ready to be read
+                if(channel.size() < ChannelRecorder.kHeaderSize)
+                    return null;
+                buf=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally
+            {
+                channel.close();
+            }
+            segments.add(buf);
+            buf.position(ChannelRecorder.kHeaderSize);
+            segmentData.add(buf.slice().asDoubleBuffer());
+            buf.position(0);
+        }
+        return segments.get(segment);
+    }
+}
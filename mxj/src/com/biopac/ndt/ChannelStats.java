@@ -0,0 +1,207 @@
+/*
+ * ChannelStats.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Throughput and latency figures of a single channel.  The receive thread
+ * counts bytes and samples as they arrive, the consumer records how long
+ * samples waited between arrival and output, and buffer depth figures are
+ * read from the channel's SampleBuffer.  Counters are lock-free so that
+ * updating them does not slow down either thread.
+ *
+ * The figures can also be published as a JMX MBean with register().
+ */
+public class ChannelStats implements ChannelStatsMBean {
+    // getSamplesPerSecond() keeps its last value for calls closer than this
+    private static final long kMinRateIntervalNanos=500000000L;
+
+    private final SampleBuffer buffer;
+    private final LongAdder bytesRead=new LongAdder();
+    private final LongAdder samplesReceived=new LongAdder();
+    private final LongAdder droppedSamples=new LongAdder();
+    private final LatencyHistogram outputLatency=new LatencyHistogram();
+
+    private long rateSamples=0;
+    private long rateNanos=System.nanoTime();
+    private double rate=0;
+    private ObjectName registeredName=null;
+
+    /**
+     * Create the statistics of a channel
+     *
+     * @param buf   buffer the channel's samples are stored in
+     */
+    public ChannelStats(SampleBuffer buf) {
+        buffer=buf;
+    }
+
+    /**
+     * Count data received from the server
+     *
+     * @param bytes     number of bytes read from the data connection
+     * @param samples   number of samples decoded from them
+     */
+    public void recordReceived(int bytes, int samples) {
+        bytesRead.add(bytes);
+        samplesReceived.add(samples);
+    }
+
+    /**
+     * Count samples that were lost before they could be buffered
+     */
+    public void recordDropped(long samples) {
+        droppedSamples.add(samples);
+    }
+
+    /**
+     * Record how long a sample waited between arriving and being output
+     *
+     * @param nanos delay in nanoseconds
+     */
+    public void recordOutputLatency(long nanos) {
+        outputLatency.record(nanos);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getSamplesReceived() {
+        return samplesReceived.sum();
+    }
+
+    /**
+     * Get the rate at which samples have been received since the previous
+     * call
+     *
+     * @return samples per second
+     */
+    public synchronized double getSamplesPerSecond() {
+        long now=System.nanoTime();
+        if(now-rateNanos >= kMinRateIntervalNanos)
+        {
+            long samples=samplesReceived.sum();
+            rate=(samples-rateSamples)*1e9/(now-rateNanos);
+            rateSamples=samples;
+            rateNanos=now;
+        }
+        return rate;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples.sum();
+    }
+
+    public int getBufferDepth() {
+        return buffer.numSamples();
+    }
+
+    public int getBufferHighWater() {
+        return buffer.getHighWater();
+    }
+
+    public long getOverflowCount() {
+        return buffer.getOverflowCount();
+    }
+
+    public long getOverflowDroppedSamples() {
+        return buffer.getOverflowDropped();
+    }
+
+    public long getSpilledSamples() {
+        return buffer.getSpilledSamples();
+    }
+
+    public boolean isPaused() {
+        return buffer.isPaused();
+    }
+
+    /**
+     * Get how long ago the oldest buffered sample arrived
+     *
+     * @return age in milliseconds, 0 if the buffer is empty
+     */
+    public double getOldestSampleAgeMillis() {
+        long arrived=buffer.getOldestArrivalNanos();
+        return arrived == 0 ? 0 : (System.nanoTime()-arrived)/1e6;
+    }
+
+    public LatencyHistogram getOutputLatency() {
+        return outputLatency;
+    }
+
+    public long getOutputCount() {
+        return outputLatency.getCount();
+    }
+
+    public double getOutputLatencyP50Millis() {
+        return outputLatency.getPercentileNanos(50)/1e6;
+    }
+
+    public double getOutputLatencyP99Millis() {
+        return outputLatency.getPercentileNanos(99)/1e6;
+    }
+
+    public double getOutputLatencyMaxMillis() {
+        return outputLatency.getMaxNanos()/1e6;
+    }
+
+    /**
+     * Zero all counters, the latency histogram and the buffer high-water mark
+     */
+    public synchronized void reset() {
+        bytesRead.reset();
+        samplesReceived.reset();
+        droppedSamples.reset();
+        outputLatency.reset();
+        buffer.resetHighWater();
+        rateSamples=0;
+        rateNanos=System.nanoTime();
+        rate=0;
+    }
+
+    /**
+     * Publish the statistics on the platform MBean server
+     *
+     * @param name  value of the name key of the MBean's object name, which
+     *              is com.biopac.ndt:type=ChannelStats,name=&lt;name&gt;
+     * @throws JMException if the MBean could not be registered
+     */
+    public synchronized void register(String name) throws JMException {
+        unregister();
+        ObjectName objectName=new ObjectName("com.biopac.ndt:type=ChannelStats,name="+ObjectName.quote(name));
+        MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+        if(server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+        server.registerMBean(this, objectName);
+        registeredName=objectName;
+    }
+
+    /**
+     * Remove the MBean published with register(), if any
+     */
+    public synchronized void unregister() {
+        if(registeredName == null)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        }
+        catch (JMException e)
+        {
+            // already gone
+        }
+        registeredName=null;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * ChannelStatsMBean.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * JMX management interface of ChannelStats
+ *
+ * @see ChannelStats
+ */
+public interface ChannelStatsMBean {
+    public long getBytesRead();
+    public long getSamplesReceived();
+    public double getSamplesPerSecond();
+    public long getDroppedSamples();
+    public int getBufferDepth();
+    public int getBufferHighWater();
+    public long getOverflowCount();
+    public long getOverflowDroppedSamples();
+    public long getSpilledSamples();
+    public boolean isPaused();
+    public double getOldestSampleAgeMillis();
+    public long getOutputCount();
+    public double getOutputLatencyP50Millis();
+    public double getOutputLatencyP99Millis();
+    public double getOutputLatencyMaxMillis();
+    public void reset();
+}
@@ -0,0 +1,90 @@
+/*
+ * ChannelTask.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processing of a single channel that is run on a shared pool whenever
+ * there may be work for it.  Scheduling a task that is already queued does
+ * nothing, and scheduling it while it runs makes it run once more when it
+ * finishes, so the work never runs on two threads at once and requests made
+ * while it runs are never lost.
+ */
+public class ChannelTask implements Runnable {
+    private static final int kIdle=0;
+    private static final int kQueued=1;
+    private static final int kRunning=2;
+    private static final int kRerun=3;  // running, and scheduled again
+
+    private final Runnable work;
+    private final AtomicInteger state=new AtomicInteger(kIdle);
+
+    /**
+     * Wrap the processing of a channel
+     *
+     * @param channelWork   work to run; it should process everything that
+     *                      is pending when it is called
+     */
+    public ChannelTask(Runnable channelWork) {
+        work=channelWork;
+    }
+
+    /**
+     * Make sure the work runs on an executor soon
+     *
+     * @param executor  pool to run on
+     * @throws RejectedExecutionException if the executor refused the task
+     */
+    public void schedule(Executor executor) throws RejectedExecutionException {
+        while(true)
+        {
+            int s=state.get();
+            if(s == kQueued || s == kRerun)
+                return;
+            if(s == kRunning)
+            {
+                if(state.compareAndSet(kRunning, kRerun))
+                    return;
+                continue;
+            }
+            if(state.compareAndSet(kIdle, kQueued))
+                break;
+        }
+
+        try
+        {
+            executor.execute(this);
+        }
+        catch (RejectedExecutionException e)
+        {
+            state.set(kIdle);
+            throw e;
+        }
+    }
+
+    public void run() {
+        state.set(kRunning);
+        while(true)
+        {
+            try
+            {
+                work.run();
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Error in channel processing: "+e);
+            }
+            if(state.compareAndSet(kRunning, kIdle))
+                return;
+            state.set(kRunning);
+        }
+    }
+}
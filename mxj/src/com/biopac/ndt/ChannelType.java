@@ -0,0 +1,61 @@
+/*
+ * ChannelType.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * Channel types of the server, for the typed ACQServer calls.  Each type
+ * wraps one of the ACQServer k*ChannelType identifiers sent on the wire,
+ * and its ordinal is its row in a MostRecentSnapshot.
+ */
+public enum ChannelType {
+    ANALOG(ACQServer.kAnalogChannelType),
+    DIGITAL(ACQServer.kDigitalChannelType),
+    CALC(ACQServer.kCalcChannelType);
+
+    private static final ChannelType[] kTypes=values();
+
+    private final String name;
+
+    private ChannelType(String typeName) {
+        name=typeName;
+    }
+
+    /**
+     * Get the identifier sent to the server, one of the ACQServer
+     * k*ChannelType constants
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Look up a type by its identifier
+     *
+     * @param typeName  one of the ACQServer k*ChannelType constants
+     * @return the type, null if the identifier is unknown
+     */
+    public static ChannelType forName(String typeName) {
+        for(int i=0; i<kTypes.length; i++)
+        {
+            if(kTypes[i].name.equals(typeName))
+                return kTypes[i];
+        }
+        return null;
+    }
+
+    /**
+     * Get a type by its ordinal
+     */
+    public static ChannelType get(int ordinal) {
+        return kTypes[ordinal];
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Decimator.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate reduction for a single channel.  A decimator is
+ * attached to a ChannelDataSocket with setDecimator() and then runs on the
+ * receive thread, so only the reduced stream is buffered for the client.
+ *
+ * Three modes are offered:
+ *
+ * <ul>
+ * <li>fir - a windowed-sinc low pass filter evaluated only at the kept
+ *     output samples, one output per factor inputs.  The filter removes
+ *     content above the new Nyquist frequency before it can alias.</li>
+ * <li>boxcar - the mean of each block of factor inputs.  Much cheaper than
+ *     fir but with a poor stop band.</li>
+ * <li>minmax - the minimum and maximum of each block of factor inputs, in
+ *     that order.  Two outputs per block; meant for envelope displays where
+ *     short peaks must stay visible.</li>
+ * </ul>
+ *
+ * process() writes into an output array owned by the decimator, which is
+ * only reallocated when a larger batch than any before is processed.  A
+ * decimator keeps filter state between batches and must only be fed by one
+ * thread.
+ */
+public class Decimator {
+    /** Low pass filter and keep every factor'th sample */
+    public static final String kFIRMode="fir";
+
+    /** Mean of each block */
+    public static final String kBoxcarMode="boxcar";
+
+    /** Minimum and maximum of each block */
+    public static final String kMinMaxMode="minmax";
+
+    // filter taps per output phase of the fir mode
+    private static final int kTapsPerPhase=8;
+
+    // fraction of the new Nyquist frequency the fir pass band extends to
+    private static final double kPassBand=0.8;
+
+    private final int factor;
+    private final String mode;
+    private final double[] taps;
+    private final double[] history;   // last taps.length inputs, stored twice
+    private int historyPos=0;
+    private int phase=0;
+    private double blockSum=0;
+    private double blockMin=Double.POSITIVE_INFINITY;
+    private double blockMax=Double.NEGATIVE_INFINITY;
+    private double[] output=new double[0];
+
+    /**
+     * Create a decimator
+     *
+     * @param decimation    number of input samples per output sample (per
+     *                      output pair in minmax mode), at least 1
+     * @param decimationMode one of the k*Mode constants
+     */
+    public Decimator(int decimation, String decimationMode) {
+        if(decimation < 1)
+            throw new IllegalArgumentException("Invalid decimation factor "+decimation);
+        if(!decimationMode.equals(kFIRMode) && !decimationMode.equals(kBoxcarMode) && !decimationMode.equals(kMinMaxMode))
+            throw new IllegalArgumentException("Unknown decimation mode "+decimationMode);
+        factor=decimation;
+        mode=decimationMode;
+
+        if(mode.equals(kFIRMode) && factor > 1)
+        {
+            taps=designLowPass(kTapsPerPhase*factor+1, kPassBand*0.5/factor);
+            history=new double[taps.length*2];
+        }
+        else
+        {
+            taps=null;
+            history=null;
+        }
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the number of output samples produced per input sample
+     *
+     * @return 1/factor, or 2/factor in minmax mode
+     */
+    public double getOutputRatio() {
+        return (mode.equals(kMinMaxMode) ? 2.0 : 1.0)/factor;
+    }
+
+    /**
+     * Get the delay the decimator adds to the signal
+     *
+     * @return delay in input samples
+     */
+    public double getDelay() {
+        if(taps != null)
+            return (taps.length-1)/2.0;
+        return (factor-1)/2.0;
+    }
+
+    /**
+     * Get how far output indexes run ahead of the time the outputs stand
+     * for.  Output sample k stands for the input around input sample
+     * (k-offset)*factor, so channels decimated by different factors or modes
+     * line up again once each is shifted by its offset.
+     *
+     * @return offset in output samples, 0 in minmax mode, whose pairs do
+     *  not stand for a single time
+     */
+    public double getOutputOffset() {
+        if(factor == 1 || mode.equals(kMinMaxMode))
+            return 0;
+        return (getDelay()-(factor-1))/factor;
+    }
+
+    /**
+     * Decimate a batch of samples
+     *
+     * @param in    input samples
+     * @param off   offset of the first sample in in
+     * @param n     number of input samples
+     * @return number of samples written to getOutput()
+     */
+    public int process(double[] in, int off, int n) {
+        int maxOut=(n+factor-1)/factor*2;
+        if(output.length < maxOut)
+            output=new double[maxOut];
+
+        if(factor == 1)
+        {
+            System.arraycopy(in, off, output, 0, n);
+            return n;
+        }
+
+        int count=0;
+        if(taps != null)
+        {
+            int len=taps.length;
+            for(int i=0; i<n; i++)
+            {
+                double x=in[off+i];
+                history[historyPos]=x;
+                history[historyPos+len]=x;
+                historyPos=(historyPos+1)%len;
+                if(++phase == factor)
+                {
+                    // history[historyPos..historyPos+len) holds the inputs
+                    // oldest first
+                    double acc=0;
+                    for(int k=0; k<len; k++)
+                        acc+=taps[k]*history[historyPos+k];
+                    output[count++]=acc;
+                    phase=0;
+                }
+            }
+        }
+        else if(mode.equals(kBoxcarMode))
+        {
+            for(int i=0; i<n; i++)
+            {
+                blockSum+=in[off+i];
+                if(++phase == factor)
+                {
+                    output[count++]=blockSum/factor;
+                    blockSum=0;
+                    phase=0;
+                }
+            }
+        }
+        else
+        {
+            for(int i=0; i<n; i++)
+            {
+                double x=in[off+i];
+                if(x < blockMin)
+                    blockMin=x;
+                if(x > blockMax)
+                    blockMax=x;
+                if(++phase == factor)
+                {
+                    output[count++]=blockMin;
+                    output[count++]=blockMax;
+                    blockMin=Double.POSITIVE_INFINITY;
+                    blockMax=Double.NEGATIVE_INFINITY;
+                    phase=0;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the samples produced by the last call to process()
+     *
+     * @return output array, valid until the next call to process()
+     */
+    public double[] getOutput() {
+        return output;
+    }
+
+    /**
+     * Forget the filter history and any partial block
+     */
+    public void reset() {
+        if(history != null)
+            Arrays.fill(history, 0);
+        historyPos=0;
+        phase=0;
+        blockSum=0;
+        blockMin=Double.POSITIVE_INFINITY;
+        blockMax=Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Design a Blackman windowed-sinc low pass filter with unity DC gain
+     *
+     * @param length    number of taps, odd
+     * @param cutoff    cutoff frequency as a fraction of the input rate
+     * @return filter taps
+     */
+    private static double[] designLowPass(int length, double cutoff) {
+        double[] h=new double[length];
+        int m=length-1;
+        double sum=0;
+        for(int i=0; i<length; i++)
+        {
+            double t=i-m/2.0;
+            double sinc=t == 0 ? 2*cutoff : Math.sin(2*Math.PI*cutoff*t)/(Math.PI*t);
+            double window=0.42-0.5*Math.cos(2*Math.PI*i/m)+0.08*Math.cos(4*Math.PI*i/m);
+            h[i]=sinc*window;
+            sum+=h[i];
+        }
+        for(int i=0; i<length; i++)
+            h[i]/=sum;
+        return h;
+    }
+}
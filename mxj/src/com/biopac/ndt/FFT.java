@@ -0,0 +1,93 @@
+/*
+ * FFT.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * In place radix-2 fast Fourier transform of a fixed size.  The twiddle
+ * factors and the bit reversal permutation are computed once when the
+ * transform is created, so transforming does not allocate or evaluate any
+ * trigonometric functions.
+ */
+public class FFT {
+    private final int size;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reversed;
+
+    /**
+     * Prepare a transform
+     *
+     * @param n number of points, a power of two
+     */
+    public FFT(int n) {
+        if(n < 2 || (n&(n-1)) != 0)
+            throw new IllegalArgumentException("FFT size must be a power of two: "+n);
+        size=n;
+        cos=new double[n/2];
+        sin=new double[n/2];
+        for(int i=0; i<n/2; i++)
+        {
+            cos[i]=Math.cos(2*Math.PI*i/n);
+            sin[i]=-Math.sin(2*Math.PI*i/n);
+        }
+
+        int bits=Integer.numberOfTrailingZeros(n);
+        reversed=new int[n];
+        for(int i=0; i<n; i++)
+            reversed[i]=Integer.reverse(i)>>>(32-bits);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Compute the forward transform
+     *
+     * @param re    real parts, replaced by the real parts of the result
+     * @param im    imaginary parts, replaced by the imaginary parts of the
+     *              result
+     */
+    public void transform(double[] re, double[] im) {
+        for(int i=0; i<size; i++)
+        {
+            int j=reversed[i];
+            if(j > i)
+            {
+                double t=re[i];
+                re[i]=re[j];
+                re[j]=t;
+                t=im[i];
+                im[i]=im[j];
+                im[j]=t;
+            }
+        }
+
+        for(int len=2; len<=size; len<<=1)
+        {
+            int half=len>>1;
+            int step=size/len;
+            for(int start=0; start<size; start+=len)
+            {
+                for(int k=0; k<half; k++)
+                {
+                    double wr=cos[k*step];
+                    double wi=sin[k*step];
+                    int a=start+k;
+                    int b=a+half;
+                    double tr=re[b]*wr-im[b]*wi;
+                    double ti=re[b]*wi+im[b]*wr;
+                    re[b]=re[a]-tr;
+                    im[b]=im[a]-ti;
+                    re[a]+=tr;
+                    im[a]+=ti;
+                }
+            }
+        }
+    }
+}
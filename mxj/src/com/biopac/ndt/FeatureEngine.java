@@ -0,0 +1,127 @@
+/*
+ * FeatureEngine.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of feature extractors fed from a channel's receive path.  The engine
+ * is attached to a ChannelDataSocket or UDPChannelDataSocket with
+ * setFeatureEngine() and passes every received sample, before decimation,
+ * to each of its extractors on the receive thread.  Clients read the
+ * current feature values from any thread at whatever rate they like
+ * instead of processing the raw samples themselves.
+ *
+ * Extractors may be added and removed while samples are flowing.
+ */
+public class FeatureEngine {
+    private final List<FeatureExtractor> extractors=new ArrayList<FeatureExtractor>();
+
+    /**
+     * Add a feature, replacing any feature with the same name
+     *
+     * @param f feature extractor, which starts from the next received sample
+     */
+    public synchronized void add(FeatureExtractor f) {
+        remove(f.getName());
+        extractors.add(f);
+    }
+
+    /**
+     * Remove a feature
+     *
+     * @param name  name of the feature
+     * @return true if the feature was found
+     */
+    public synchronized boolean remove(String name) {
+        for(int i=0; i<extractors.size(); i++)
+        {
+            if((extractors.get(i)).getName().equals(name))
+            {
+                extractors.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        extractors.clear();
+    }
+
+    public synchronized int numFeatures() {
+        return extractors.size();
+    }
+
+    public synchronized String getName(int feature) {
+        return (extractors.get(feature)).getName();
+    }
+
+    /**
+     * Get a feature extractor, for access to results that are not plain
+     * values
+     *
+     * @param feature   index of the feature, in the range [0, numFeatures())
+     * @return extractor of the feature
+     */
+    public synchronized FeatureExtractor get(int feature) {
+        return extractors.get(feature);
+    }
+
+    /**
+     * Find a feature by name
+     *
+     * @param name  name of the feature
+     * @return extractor of the feature, or null if there is none
+     */
+    public synchronized FeatureExtractor get(String name) {
+        for(int i=0; i<extractors.size(); i++)
+        {
+            FeatureExtractor f=extractors.get(i);
+            if(f.getName().equals(name))
+                return f;
+        }
+        return null;
+    }
+
+    /**
+     * Copy the current values of a feature
+     *
+     * @param feature   index of the feature, in the range [0, numFeatures())
+     * @param dst       destination, large enough for the feature's values
+     * @return number of values copied
+     */
+    public synchronized int getValues(int feature, double[] dst) {
+        FeatureExtractor f=extractors.get(feature);
+        int n=f.numValues();
+        for(int i=0; i<n; i++)
+            dst[i]=f.getValue(i);
+        return n;
+    }
+
+    /**
+     * Feed received samples to every feature
+     *
+     * @param samples   sample values
+     * @param off       offset of the first sample
+     * @param n         number of samples
+     */
+    public synchronized void process(double[] samples, int off, int n) {
+        for(int i=0; i<extractors.size(); i++)
+            (extractors.get(i)).process(samples, off, n);
+    }
+
+    /**
+     * Restart every feature, for use when a new acquisition starts
+     */
+    public synchronized void reset() {
+        for(int i=0; i<extractors.size(); i++)
+            (extractors.get(i)).reset();
+    }
+}
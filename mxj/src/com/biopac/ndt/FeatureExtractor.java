@@ -0,0 +1,54 @@
+/*
+ * FeatureExtractor.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * Incremental computation of a feature of a channel, such as heart rate or
+ * band power.  Extractors are added to a FeatureEngine and fed every
+ * received sample in order; they must do a bounded amount of work per
+ * sample and should not allocate while processing.
+ *
+ * An extractor is only ever called by one thread at a time; the engine
+ * takes care of handing values over to readers.
+ *
+ * @see FeatureEngine
+ */
+public interface FeatureExtractor {
+    /**
+     * Get a short identifier of the feature, used to address it and to
+     * label its values
+     */
+    public String getName();
+
+    /**
+     * Get the number of values the feature produces
+     */
+    public int numValues();
+
+    /**
+     * Feed samples to the extractor
+     *
+     * @param samples   sample values
+     * @param off       offset of the first sample
+     * @param n         number of samples
+     */
+    public void process(double[] samples, int off, int n);
+
+    /**
+     * Get the current value of the feature
+     *
+     * @param index value index, in the range [0, numValues())
+     * @return feature value, NaN until enough samples have been seen
+     */
+    public double getValue(int index);
+
+    /**
+     * Forget all samples seen so far
+     */
+    public void reset();
+}
@@ -0,0 +1,115 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of nanosecond durations with logarithmic buckets, in the style
+ * of HdrHistogram: each power of two range is split into 32 linear
+ * sub-buckets, so recorded values are kept to within about 3% over the
+ * whole range from nanoseconds to hours.  Recording is lock-free and does
+ * not allocate, so it can be done on latency sensitive threads while
+ * another thread reads percentiles.
+ */
+public class LatencyHistogram {
+    private static final int kSubBucketBits=5;
+    private static final int kSubBucketCount=1<<kSubBucketBits;
+    private static final int kBucketCount=(64-kSubBucketBits)*kSubBucketCount;
+
+    private final AtomicLongArray counts=new AtomicLongArray(kBucketCount);
+    private final AtomicLong totalCount=new AtomicLong();
+    private final AtomicLong totalNanos=new AtomicLong();
+    private final AtomicLong maxNanos=new AtomicLong();
+
+    /**
+     * Record a duration
+     *
+     * @param nanos duration in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        if(nanos < 0)
+            nanos=0;
+        counts.incrementAndGet(bucketIndex(nanos));
+        totalCount.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max=maxNanos.get();
+        while(nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max=maxNanos.get();
+    }
+
+    /** Number of recorded durations */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /** Longest recorded duration in nanoseconds */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /** Mean recorded duration in nanoseconds, 0 when nothing was recorded */
+    public double getMeanNanos() {
+        long n=totalCount.get();
+        return n == 0 ? 0 : (double)totalNanos.get()/n;
+    }
+
+    /**
+     * Get the duration below which a given fraction of the recorded
+     * durations fall
+     *
+     * @param percentile    percentile in the range [0, 100]
+     * @return upper bound of the bucket holding the percentile, in
+     *  nanoseconds, or 0 when nothing was recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long n=totalCount.get();
+        if(n == 0)
+            return 0;
+
+        long rank=(long)Math.ceil(Math.min(100, Math.max(0, percentile))/100*n);
+        rank=Math.max(rank, 1);
+        long seen=0;
+        for(int i=0; i<kBucketCount; i++)
+        {
+            seen+=counts.get(i);
+            if(seen >= rank)
+                return Math.min(bucketUpperBound(i), maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Discard all recorded durations
+     */
+    public void reset() {
+        for(int i=0; i<kBucketCount; i++)
+            counts.set(i, 0);
+        totalCount.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    private static int bucketIndex(long v) {
+        if(v < kSubBucketCount)
+            return (int)v;
+        int exponent=63-Long.numberOfLeadingZeros(v);
+        int sub=(int)(v>>>(exponent-kSubBucketBits))&(kSubBucketCount-1);
+        return (exponent-kSubBucketBits+1)*kSubBucketCount+sub;
+    }
+
+    private static long bucketUpperBound(int index) {
+        int bucket=index>>kSubBucketBits;
+        long sub=index&(kSubBucketCount-1);
+        if(bucket == 0)
+            return sub;
+        return ((kSubBucketCount+sub+1)<<(bucket-1))-1;
+    }
+}
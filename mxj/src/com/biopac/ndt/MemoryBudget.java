@@ -0,0 +1,65 @@
+/*
+ * MemoryBudget.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit on the number of samples held in memory by a group of sample
+ * buffers, for example all channels of a client.  Every buffer sharing the
+ * budget adds the samples it holds and applies its own overflow policy when
+ * the budget is used up.
+ *
+ * @see SampleBuffer#setMemoryBudget(MemoryBudget)
+ */
+public class MemoryBudget {
+    private volatile long limit;
+    private final AtomicLong used=new AtomicLong();
+
+    /**
+     * Create a budget
+     *
+     * @param maxSamples    number of samples all buffers may hold together
+     */
+    public MemoryBudget(long maxSamples) {
+        setLimit(maxSamples);
+    }
+
+    public void setLimit(long maxSamples) {
+        if(maxSamples < 0)
+            throw new IllegalArgumentException("Invalid budget "+maxSamples);
+        limit=maxSamples;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the number of samples held by all buffers sharing the budget
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Get the number of samples that may still be buffered, negative when
+     * the limit was lowered below what is held
+     */
+    public long getRemaining() {
+        return limit-used.get();
+    }
+
+    /**
+     * Account for samples added to (positive) or removed from (negative) a
+     * buffer
+     */
+    void add(long samples) {
+        used.addAndGet(samples);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * MostRecentPoller.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * Polls the most recent sample values of all tracked channels with one
+ * XML-RPC call per tick, for displays that only need the current value of
+ * many channels and not every sample.  No data connections are opened; the
+ * channels need most recent value tracking enabled on the server.
+ *
+ * The poll rate adapts to the server: when calls take longer than a
+ * quarter of the poll interval the interval is stretched so that polling
+ * never occupies the server more than that, and while calls fail, for
+ * example with no acquisition in progress, polling backs off to once per
+ * kMaxIntervalMillis.  Results are double buffered; readers copy the newest
+ * complete snapshot with getSnapshot().
+ */
+public class MostRecentPoller implements AutoCloseable {
+    public static final long kMaxIntervalMillis=1000;
+
+    // calls may take at most this fraction of the poll interval
+    private static final double kMaxLoad=0.25;
+
+    private final ACQServer server;
+    private volatile double rate;
+    private volatile double currentRate=0;
+    private volatile boolean bRunThread=false;
+    private Thread pollThread=null;
+
+    private MostRecentSnapshot back=new MostRecentSnapshot();
+    private MostRecentSnapshot front=new MostRecentSnapshot();
+    private long sequence=0;
+    private long failures=0;
+    private String lastError=null;
+    private final Object snapshotLock=new Object();
+
+    /**
+     * Thread issuing the polls
+     */
+    private class PollThread extends Thread {
+        public PollThread() {
+            super("MostRecentPoller");
+            setDaemon(true);
+        }
+
+        public void run() {
+            long intervalNanos=0;
+            long failedIntervalNanos=0;
+            while(bRunThread)
+            {
+                long start=System.nanoTime();
+                boolean ok=poll();
+                long callNanos=System.nanoTime()-start;
+
+                long target=(long)(1e9/rate);
+                if(ok)
+                {
+                    failedIntervalNanos=0;
+                    intervalNanos=Math.max(target, (long)(callNanos/kMaxLoad));
+                }
+                else
+                {
+                    // back off exponentially while the server has no values
+                    long maxNanos=Math.max(target, kMaxIntervalMillis*1000000L);
+                    failedIntervalNanos=failedIntervalNanos == 0 ? Math.max(target, callNanos) : Math.min(failedIntervalNanos*2, maxNanos);
+                    intervalNanos=failedIntervalNanos;
+                }
+                currentRate=1e9/intervalNanos;
+
+                long sleepNanos=intervalNanos-callNanos;
+                if(sleepNanos <= 0)
+                    continue;
+                try
+                {
+                    Thread.sleep(sleepNanos/1000000, (int)(sleepNanos%1000000));
+                }
+                catch (InterruptedException e)
+                {
+                    // stop() interrupts us while we sleep
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a poller, call start() to begin polling
+     *
+     * @param acq       server to poll
+     * @param rateHz    polls per second wanted
+     */
+    public MostRecentPoller(ACQServer acq, double rateHz) {
+        server=acq;
+        setRate(rateHz);
+    }
+
+    public void setRate(double rateHz) {
+        if(!(rateHz > 0))
+            throw new IllegalArgumentException("Invalid poll rate "+rateHz);
+        rate=rateHz;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Get the rate actually polled at after adapting to the server
+     */
+    public double getCurrentRate() {
+        return currentRate;
+    }
+
+    /**
+     * Start polling on a background thread
+     */
+    public synchronized void start() {
+        stop();
+        bRunThread=true;
+        pollThread=new PollThread();
+        pollThread.start();
+    }
+
+    /**
+     * Stop polling, blocking until the poll thread has exited
+     */
+    public synchronized void stop() {
+        if(pollThread == null)
+            return;
+        bRunThread=false;
+        pollThread.interrupt();
+        boolean interrupted=false;
+        while(pollThread.isAlive())
+        {
+            try
+            {
+                pollThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted=true;
+            }
+        }
+        pollThread=null;
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Copy the newest snapshot
+     *
+     * @param dst   snapshot to copy into
+     * @return number of successful polls so far, 0 if dst was not written
+     */
+    public long getSnapshot(MostRecentSnapshot dst) {
+        synchronized(snapshotLock)
+        {
+            if(sequence > 0)
+                dst.copyFrom(front);
+            return sequence;
+        }
+    }
+
+    public long getSequence() {
+        synchronized(snapshotLock)
+        {
+            return sequence;
+        }
+    }
+
+    /**
+     * Get the number of polls that failed
+     */
+    public long getFailures() {
+        synchronized(snapshotLock)
+        {
+            return failures;
+        }
+    }
+
+    /**
+     * Get the error of the last failed poll, null if none failed yet
+     */
+    public String getLastError() {
+        synchronized(snapshotLock)
+        {
+            return lastError;
+        }
+    }
+
+    /**
+     * Fetch one snapshot and publish it
+     *
+     * @return false if the call failed
+     */
+    private boolean poll() {
+        try
+        {
+            server.getMostRecentSampleValues(back);
+        }
+        catch (ProtocolException e)
+        {
+            synchronized(snapshotLock)
+            {
+                failures++;
+                lastError=e.getMessage();
+            }
+            return false;
+        }
+
+        synchronized(snapshotLock)
+        {
+            MostRecentSnapshot t=front;
+            front=back;
+            back=t;
+            sequence++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * MostRecentSnapshot.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.Arrays;
+
+/**
+ * Most recent sample values of every channel tracked by the server, as
+ * returned by a single ACQServer.getMostRecentSampleValues() call.  Values
+ * are held in one primitive array with a row per channel type, in the order
+ * of kChannelTypes, and a column per channel index.  Channels the server did
+ * not report read NaN.  The number of columns grows to the highest index
+ * reported.
+ */
+public class MostRecentSnapshot {
+    /** Row order of the channel types */
+    public static final String[] kChannelTypes={
+        ACQServer.kAnalogChannelType,
+        ACQServer.kDigitalChannelType,
+        ACQServer.kCalcChannelType
+    };
+
+    private static final int kInitialChannels=16;
+
+    private int numChannels=kInitialChannels;
+    private double[] values=new double[kChannelTypes.length*kInitialChannels];
+    private long nanos=0;
+
+    public MostRecentSnapshot() {
+        clear();
+    }
+
+    public int numTypes() {
+        return kChannelTypes.length;
+    }
+
+    /**
+     * Get the number of channel indexes per type
+     */
+    public int numChannels() {
+        return numChannels;
+    }
+
+    /**
+     * Get the row of a channel type
+     *
+     * @return row index, -1 for an unknown type
+     */
+    public static int typeRow(String chanType) {
+        ChannelType type=ChannelType.forName(chanType);
+        return type == null ? -1 : type.ordinal();
+    }
+
+    /**
+     * Get a channel's value
+     *
+     * @return value, NaN if the channel was not reported
+     */
+    public double getValue(String chanType, int index) {
+        int row=typeRow(chanType);
+        if(row < 0 || index < 0 || index >= numChannels)
+            return Double.NaN;
+        return values[row*numChannels+index];
+    }
+
+    public double getValue(ChannelType type, int index) {
+        if(index < 0 || index >= numChannels)
+            return Double.NaN;
+        return values[type.ordinal()*numChannels+index];
+    }
+
+    /**
+     * Copy the values of one channel type
+     *
+     * @param type  channel type
+     * @return values indexed by channel, up to the highest index reported,
+     *  NaN for channels not reported
+     */
+    public double[] getValues(ChannelType type) {
+        int offset=type.ordinal()*numChannels;
+        int n=numChannels;
+        while(n > 0 && Double.isNaN(values[offset+n-1]))
+            n--;
+        return Arrays.copyOfRange(values, offset, offset+n);
+    }
+
+    /**
+     * Get all values, row by row; the array is numTypes()*numChannels()
+     * long and is reused by the snapshot
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * Get the System.nanoTime() at which the values were fetched
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Mark every channel as not reported
+     */
+    public void clear() {
+        Arrays.fill(values, Double.NaN);
+    }
+
+    /**
+     * Copy another snapshot, growing to its size
+     */
+    public void copyFrom(MostRecentSnapshot other) {
+        if(values.length != other.values.length)
+            values=new double[other.values.length];
+        numChannels=other.numChannels;
+        System.arraycopy(other.values, 0, values, 0, values.length);
+        nanos=other.nanos;
+    }
+
+    void setNanos(long t) {
+        nanos=t;
+    }
+
+    /**
+     * Store a channel's value, growing the snapshot for a new index
+     */
+    void setValue(int row, int index, double value) {
+        if(index >= numChannels)
+        {
+            int n=numChannels;
+            while(n <= index)
+                n*=2;
+            double[] grown=new double[kChannelTypes.length*n];
+            Arrays.fill(grown, Double.NaN);
+            for(int r=0; r<kChannelTypes.length; r++)
+                System.arraycopy(values, r*numChannels, grown, r*n, numChannels);
+            values=grown;
+            numChannels=n;
+        }
+        values[row*numChannels+index]=value;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * OutputChannelWriter.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes output channel values to the server from a background thread so
+ * that a client driving outputs at a high rate never blocks on XML-RPC
+ * round trips.  Only the latest value set for each output channel is kept;
+ * a value replaced before it was written is never sent.  Pending values are
+ * written together, through ACQServer.setOutputChannels(), at most
+ * getMaxRate() times per second, so a slow server makes the writer skip
+ * values rather than fall further behind.
+ *
+ * The write latency histogram measures the time from set() of each written
+ * value until the server acknowledged it.
+ */
+public class OutputChannelWriter implements AutoCloseable {
+    /**
+     * A value waiting to be written
+     */
+    private static class Pending {
+        String chanType;
+        short index;
+        double value;
+        long setNanos;
+    }
+
+    private final ACQServer server;
+    private volatile double maxRate;
+    private final Map<String, Pending> pending=new LinkedHashMap<String, Pending>();    // by type+index
+    private final LatencyHistogram latency=new LatencyHistogram();
+    private long sets=0;
+    private long writes=0;
+    private long coalesced=0;
+    private long failures=0;
+    private String lastError=null;
+    private boolean bRunThread=false;
+    private Thread writeThread=null;
+
+    /**
+     * Thread flushing the pending values
+     */
+    private class WriteThread extends Thread {
+        public WriteThread() {
+            super("OutputChannelWriter");
+            setDaemon(true);
+        }
+
+        public void run() {
+            String[] types=new String[0];
+            short[] indexes=new short[0];
+            double[] values=new double[0];
+            long[] setNanos=new long[0];
+            long lastFlush=0;
+            try
+            {
+                while(true)
+                {
+                    int n;
+                    synchronized(OutputChannelWriter.this)
+                    {
+                        while(bRunThread && pending.isEmpty())
+                            OutputChannelWriter.this.wait();
+                        if(!bRunThread)
+                            return;
+
+                        // keep to the maximum rate; values set meanwhile
+                        // replace the pending ones
+                        long due=lastFlush+(long)(1e9/maxRate);
+                        long now=System.nanoTime();
+                        if(now < due)
+                        {
+                            long wait=due-now;
+                            OutputChannelWriter.this.wait(wait/1000000, (int)(wait%1000000));
+                            continue;
+                        }
+
+                        n=pending.size();
+                        if(types.length < n)
+                        {
+                            types=new String[n];
+                            indexes=new short[n];
+                            values=new double[n];
+                            setNanos=new long[n];
+                        }
+                        int i=0;
+                        for(Iterator<Pending> it=pending.values().iterator(); it.hasNext(); i++)
+                        {
+                            Pending p=it.next();
+                            types[i]=p.chanType;
+                            indexes[i]=p.index;
+                            values[i]=p.value;
+                            setNanos[i]=p.setNanos;
+                        }
+                        pending.clear();
+                    }
+
+                    lastFlush=System.nanoTime();
+                    String error=null;
+                    try
+                    {
+                        server.setOutputChannels(types, indexes, values, n);
+                    }
+                    catch (ProtocolException e)
+                    {
+                        error=e.getMessage();
+                    }
+                    long done=System.nanoTime();
+                    for(int i=0; i<n; i++)
+                        latency.record(done-setNanos[i]);
+                    synchronized(OutputChannelWriter.this)
+                    {
+                        writes+=n;
+                        if(error != null)
+                        {
+                            failures++;
+                            lastError=error;
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // stop() interrupts us while we wait
+            }
+        }
+    }
+
+    /**
+     * Create a writer, call start() to begin writing
+     *
+     * @param acq       server whose output channels are driven
+     * @param rateHz    most writes per second
+     */
+    public OutputChannelWriter(ACQServer acq, double rateHz) {
+        server=acq;
+        setMaxRate(rateHz);
+    }
+
+    public ACQServer getServer() {
+        return server;
+    }
+
+    public void setMaxRate(double rateHz) {
+        if(!(rateHz > 0))
+            throw new IllegalArgumentException("Invalid write rate "+rateHz);
+        maxRate=rateHz;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * Queue a new value for an output channel without waiting for it to be
+     * written
+     *
+     * @param chanType  channel type, analog or digital
+     * @param index     0 based index of the channel
+     * @param value     new voltage value
+     */
+    public synchronized void set(String chanType, short index, double value) {
+        String key=chanType+index;
+        Pending p=pending.get(key);
+        if(p == null)
+        {
+            p=new Pending();
+            p.chanType=chanType;
+            p.index=index;
+            pending.put(key, p);
+        }
+        else
+        {
+            coalesced++;
+        }
+        p.value=value;
+        p.setNanos=System.nanoTime();
+        sets++;
+        notifyAll();
+    }
+
+    /**
+     * Start writing on a background thread
+     */
+    public synchronized void start() {
+        if(writeThread != null)
+            return;
+        bRunThread=true;
+        writeThread=new WriteThread();
+        writeThread.start();
+    }
+
+    /**
+     * Stop writing, blocking until the write thread has exited.  Values not
+     * yet written are discarded.
+     */
+    public void stop() {
+        Thread t;
+        synchronized(this)
+        {
+            if(writeThread == null)
+                return;
+            bRunThread=false;
+            pending.clear();
+            notifyAll();
+            t=writeThread;
+            writeThread=null;
+        }
+        t.interrupt();
+        boolean interrupted=false;
+        while(t.isAlive())
+        {
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted=true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Get the number of values set so far
+     */
+    public synchronized long getSetCount() {
+        return sets;
+    }
+
+    /**
+     * Get the number of values written so far
+     */
+    public synchronized long getWriteCount() {
+        return writes;
+    }
+
+    /**
+     * Get the number of values replaced before they were written
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * Get the number of flushes that failed
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public synchronized void resetStats() {
+        sets=0;
+        writes=0;
+        coalesced=0;
+        failures=0;
+        latency.reset();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * RPeakDetector.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.Arrays;
+
+/**
+ * Heart rate from an ECG channel.  QRS complexes are found in the manner of
+ * Pan and Tompkins: the signal is differentiated and squared, integrated
+ * over a 150 ms window, and a QRS complex is found where the result rises
+ * above a fraction of its recent peak level.  The beat is placed at the
+ * steepest slope within the complex, which does not depend on the signal's
+ * polarity.  A refractory period keeps T waves from being counted as beats.
+ *
+ * The rate is averaged over the last few RR intervals.  Detection starts
+ * after a short learning period and the rate reads NaN when no beat has
+ * been seen for a while.
+ *
+ * Values: 0 heart rate in beats per minute, 1 last RR interval in seconds.
+ */
+public class RPeakDetector implements FeatureExtractor {
+    private static final double kIntegrationSec=0.15;
+    private static final double kRefractorySec=0.25;
+    private static final double kMaxRRSec=2.5;
+    private static final double kLearningSec=2;
+    private static final double kPeakHalfLifeSec=2;
+    private static final double kThreshold=0.35;
+    private static final int kAveragedBeats=8;
+
+    private final double rate;
+    private final double[] integration;
+    private final double peakDecay;
+    private final double[] rr=new double[kAveragedBeats];
+    private int integrationPos=0;
+    private double integrationSum=0;
+    private final double[] history=new double[4];  // previous inputs, newest first
+    private double peakLevel=0;
+    private boolean above=false;
+    private double peakSlope=0;
+    private long peakSample=0;
+    private long sample=0;
+    private long lastBeat=-1;
+    private int rrCount=0;
+    private int rrPos=0;
+
+    /**
+     * Create a detector
+     *
+     * @param channelRate   rate of the fed ECG samples in Hertz
+     */
+    public RPeakDetector(double channelRate) {
+        if(!(channelRate > 0))
+            throw new IllegalArgumentException("Invalid channel rate "+channelRate);
+        rate=channelRate;
+        integration=new double[Math.max(1, (int)Math.round(kIntegrationSec*rate))];
+        peakDecay=Math.pow(0.5, 1/(kPeakHalfLifeSec*rate));
+    }
+
+    public String getName() {
+        return "bpm";
+    }
+
+    public int numValues() {
+        return 2;
+    }
+
+    public void process(double[] samples, int off, int n) {
+        long learning=(long)(kLearningSec*rate);
+        long refractory=(long)(kRefractorySec*rate);
+        for(int i=0; i<n; i++, sample++)
+        {
+            double x=samples[off+i];
+
+            // five point derivative, less sensitive to noise than a first
+            // difference
+            double d=sample < 4 ? 0 : (2*x+history[0]-history[2]-2*history[3])/8;
+            history[3]=history[2];
+            history[2]=history[1];
+            history[1]=history[0];
+            history[0]=x;
+            double slope=d*d;
+
+            integrationSum+=slope-integration[integrationPos];
+            integration[integrationPos]=slope;
+            integrationPos=(integrationPos+1)%integration.length;
+            double level=integrationSum/integration.length;
+
+            peakLevel=Math.max(peakLevel*peakDecay, level);
+            if(sample < learning)
+                continue;
+
+            double threshold=kThreshold*peakLevel;
+            if(!above)
+            {
+                if(level > threshold && (lastBeat < 0 || sample-lastBeat >= refractory))
+                {
+                    above=true;
+                    peakSlope=slope;
+                    peakSample=sample;
+                }
+            }
+            else
+            {
+                if(slope > peakSlope)
+                {
+                    peakSlope=slope;
+                    peakSample=sample;
+                }
+                if(level <= threshold)
+                {
+                    above=false;
+                    beat(peakSample);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count a detected beat
+     */
+    private void beat(long at) {
+        if(lastBeat >= 0 && at-lastBeat <= kMaxRRSec*rate)
+        {
+            rr[rrPos]=(at-lastBeat)/rate;
+            rrPos=(rrPos+1)%kAveragedBeats;
+            if(rrCount < kAveragedBeats)
+                rrCount++;
+        }
+        lastBeat=at;
+    }
+
+    public double getValue(int index) {
+        if(rrCount == 0 || sample-lastBeat > kMaxRRSec*rate)
+            return Double.NaN;
+        if(index == 1)
+            return rr[(rrPos+kAveragedBeats-1)%kAveragedBeats];
+
+        double sum=0;
+        for(int i=0; i<rrCount; i++)
+            sum+=rr[i];
+        return 60*rrCount/sum;
+    }
+
+    public void reset() {
+        Arrays.fill(integration, 0);
+        integrationPos=0;
+        integrationSum=0;
+        Arrays.fill(history, 0);
+        peakLevel=0;
+        above=false;
+        peakSlope=0;
+        peakSample=0;
+        sample=0;
+        lastBeat=-1;
+        rrCount=0;
+        rrPos=0;
+    }
+}
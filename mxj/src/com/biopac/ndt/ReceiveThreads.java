@@ -0,0 +1,141 @@
+/*
+ * ReceiveThreads.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads that run the blocking receive loops of the data
+ * sockets.  These are daemon platform threads unless virtual threads are
+ * asked for and the runtime has them (Java 21 and later), in which case a
+ * patch streaming hundreds of channels parks that many virtual threads on
+ * a few carrier threads instead of holding a platform thread and its stack
+ * per connection.
+ *
+ * The library is built for older runtimes, so virtual threads are looked
+ * up reflectively; where they are missing, asking for them quietly falls
+ * back to platform threads.
+ *
+ * A receive loop paused by the SampleBuffer.kPause policy waits on the
+ * buffer's monitor, which keeps its carrier thread busy on Java 21, so
+ * budgets that pause many channels at once suit platform threads better.
+ */
+public final class ReceiveThreads {
+    private static final Method kOfVirtual;     // Thread.ofVirtual()
+    private static final Method kName;          // Thread.Builder.name(String)
+    private static final Method kUnstarted;     // Thread.Builder.unstarted(Runnable)
+    private static final Method kIsVirtual;     // Thread.isVirtual()
+
+    private static volatile boolean virtualDefault=false;
+
+    static
+    {
+        Method ofVirtual=null;
+        Method name=null;
+        Method unstarted=null;
+        Method isVirtual=null;
+        try
+        {
+            Class<?> builder=Class.forName("java.lang.Thread$Builder");
+            ofVirtual=Thread.class.getMethod("ofVirtual");
+            name=builder.getMethod("name", String.class);
+            unstarted=builder.getMethod("unstarted", Runnable.class);
+            isVirtual=Thread.class.getMethod("isVirtual");
+
+            // preview builds have the API but refuse to use it
+            unstarted.invoke(name.invoke(ofVirtual.invoke(null), "probe"), new Runnable() {
+                public void run() {
+                }
+            });
+        }
+        catch (ReflectiveOperationException e)
+        {
+            ofVirtual=null;
+        }
+        catch (RuntimeException e)
+        {
+            ofVirtual=null;
+        }
+        catch (LinkageError e)
+        {
+            ofVirtual=null;
+        }
+        kOfVirtual=ofVirtual;
+        kName=name;
+        kUnstarted=unstarted;
+        kIsVirtual=isVirtual;
+    }
+
+    private ReceiveThreads() {
+    }
+
+    /**
+     * Determine whether the runtime supports virtual threads
+     */
+    public static boolean isVirtualAvailable() {
+        return kOfVirtual != null;
+    }
+
+    /**
+     * Choose whether sockets created from now on receive on virtual
+     * threads.  Off by default.
+     */
+    public static void setVirtualDefault(boolean virtual) {
+        virtualDefault=virtual;
+    }
+
+    public static boolean isVirtualDefault() {
+        return virtualDefault;
+    }
+
+    /**
+     * Determine whether a thread is a virtual thread
+     */
+    public static boolean isVirtual(Thread t) {
+        if(kIsVirtual == null)
+            return false;
+        try
+        {
+            return ((Boolean)kIsVirtual.invoke(t)).booleanValue();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Create an unstarted receive thread
+     *
+     * @param task      receive loop
+     * @param name      thread name
+     * @param virtual   true for a virtual thread if the runtime has them
+     * @return the thread, always a daemon thread
+     */
+    static Thread newThread(Runnable task, String name, boolean virtual) {
+        if(virtual && kOfVirtual != null)
+        {
+            try
+            {
+                return (Thread)kUnstarted.invoke(kName.invoke(kOfVirtual.invoke(null), name), task);
+            }
+            catch (InvocationTargetException e)
+            {
+                // fall back to a platform thread
+            }
+            catch (IllegalAccessException e)
+            {
+                // fall back to a platform thread
+            }
+        }
+        Thread t=new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * ReplaySource.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.IOException;
+
+/**
+ * Plays a channel recording back into a ChannelDataSocket as if the samples
+ * were arriving from an AcqKnowledge server.  Samples go through the
+ * socket's normal receive path, so clients reading the socket cannot tell a
+ * replay from a live acquisition.  The socket does not need to be
+ * processing.
+ *
+ * Playback runs on its own thread at a configurable pace: a speed of 1
+ * plays in real time at the recorded channel rate, larger values play
+ * accelerated and a speed of 0 plays as fast as the consumer drains the
+ * socket's buffer.
+ *
+ * @see ChannelRecording
+ */
+public class ReplaySource implements AutoCloseable {
+    /** Speed value selecting as-fast-as-possible playback */
+    public static final double kUnpaced=0;
+
+    // samples delivered per batch when unpaced
+    private static final int kUnpacedBatch=4096;
+
+    // unpaced playback waits while the socket holds this many samples
+    private static final int kUnpacedBacklog=1<<20;
+
+    // paced playback delivers a batch roughly this often
+    private static final long kPacedIntervalNanos=2000000;
+
+    private final ChannelRecording recording;
+    private final ChannelDataSocket target;
+    private volatile double speed=1;
+    private volatile boolean loop=false;
+    private volatile boolean bRunThread=false;
+    private volatile boolean finished=false;
+    private Thread playbackThread=null;
+
+    /**
+     * Thread reading the recording and feeding the target socket
+     */
+    private class PlaybackThread extends Thread {
+        public PlaybackThread() {
+            super("ReplaySource "+recording.getChannelType()+recording.getChannelIndex());
+            setDaemon(true);
+        }
+
+        public void run() {
+            try
+            {
+                play();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error replaying recording: "+e);
+            }
+            catch (InterruptedException e)
+            {
+                // stop() interrupts us while we are pacing
+            }
+            finished=true;
+        }
+    }
+
+    /**
+     * Create a replay of a recording into a socket
+     *
+     * @param rec       recording to play
+     * @param socket    socket whose receive path the samples are fed into
+     */
+    public ReplaySource(ChannelRecording rec, ChannelDataSocket socket) {
+        recording=rec;
+        target=socket;
+    }
+
+    public ChannelRecording getRecording() {
+        return recording;
+    }
+
+    /**
+     * Change the playback pace
+     *
+     * @param s multiple of real time to play at, or kUnpaced to play as
+     *          fast as possible
+     */
+    public void setSpeed(double s) {
+        if(s < 0 || Double.isNaN(s))
+            throw new IllegalArgumentException("Invalid replay speed "+s);
+        speed=s;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Choose whether playback restarts at the beginning of the recording
+     * when it reaches the end
+     */
+    public void setLoop(boolean l) {
+        loop=l;
+    }
+
+    /**
+     * Determine whether playback ran to the end of the recording
+     *
+     * @return true once the playback thread has exited
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Start playback from the beginning of the recording
+     */
+    public synchronized void start() {
+        stop();
+        bRunThread=true;
+        finished=false;
+        playbackThread=new PlaybackThread();
+        playbackThread.start();
+    }
+
+    /**
+     * Stop playback and wait for the playback thread to exit
+     */
+    public synchronized void stop() {
+        if(playbackThread == null)
+            return;
+
+        bRunThread=false;
+        playbackThread.interrupt();
+        boolean interrupted=false;
+        while(playbackThread.isAlive())
+        {
+            try
+            {
+                playbackThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted=true;
+            }
+        }
+        playbackThread=null;
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stop playback and release the recording
+     */
+    public synchronized void close() {
+        stop();
+        recording.close();
+    }
+
+    /**
+     * Deliver the recording to the target socket, pacing against the
+     * recorded channel rate
+     */
+    private void play() throws IOException, InterruptedException {
+        double channelRate=recording.getChannelRate();
+        int pacedBatch=(int)Math.max(1, Math.ceil(channelRate*kPacedIntervalNanos/1e9*Math.max(speed, 1)));
+        double[] batch=new double[Math.max(kUnpacedBatch, pacedBatch)];
+
+        long position=0;
+        long startNanos=System.nanoTime();
+        double startSpeed=speed;
+        long startPosition=0;
+        while(bRunThread)
+        {
+            double s=speed;
+            if(s != startSpeed)
+            {
+                // re-anchor the clock so a speed change takes effect from now
+                startNanos=System.nanoTime();
+                startPosition=position;
+                startSpeed=s;
+            }
+
+            int n;
+            if(s == kUnpaced)
+            {
+                while(bRunThread && target.numSamples() > kUnpacedBacklog)
+                    Thread.sleep(1);
+                n=kUnpacedBatch;
+            }
+            else
+            {
+                // number of samples that are due by now at the current pace
+                double elapsed=(System.nanoTime()-startNanos)/1e9;
+                long due=startPosition+(long)(elapsed*channelRate*s);
+                if(due <= position)
+                {
+                    Thread.sleep(kPacedIntervalNanos/1000000);
+                    continue;
+                }
+                n=(int)Math.min(batch.length, due-position);
+            }
+
+            n=recording.read(position, batch, 0, n);
+            if(n == 0)
+            {
+                if(!loop)
+                    break;
+                position=0;
+                startNanos=System.nanoTime();
+                startPosition=0;
+                continue;
+            }
+            target.injectSamples(batch, n);
+            position+=n;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * RunningStatistics.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * Mean and variance of the newest samples of a channel, kept with Welford's
+ * method so that they stay accurate over long acquisitions.  Once the
+ * window is full each new sample replaces the oldest one in constant time.
+ *
+ * Values: 0 mean, 1 sample variance.
+ */
+public class RunningStatistics implements FeatureExtractor {
+    private final double[] window;
+    private int pos=0;
+    private int count=0;
+    private double mean=0;
+    private double m2=0;    // sum of squared deviations from the mean
+
+    /**
+     * Create running statistics over a fixed number of samples
+     *
+     * @param length    number of samples in the window
+     */
+    public RunningStatistics(int length) {
+        if(length < 2)
+            throw new IllegalArgumentException("Window must hold at least 2 samples");
+        window=new double[length];
+    }
+
+    public String getName() {
+        return "stats";
+    }
+
+    public int numValues() {
+        return 2;
+    }
+
+    public void process(double[] samples, int off, int n) {
+        for(int i=0; i<n; i++)
+        {
+            double x=samples[off+i];
+            if(count < window.length)
+            {
+                count++;
+                double delta=x-mean;
+                mean+=delta/count;
+                m2+=delta*(x-mean);
+            }
+            else
+            {
+                double old=window[pos];
+                double oldMean=mean;
+                mean+=(x-old)/count;
+                m2+=(x-old)*(x-mean+old-oldMean);
+                if(m2 < 0)
+                    m2=0;
+            }
+            window[pos]=x;
+            pos=(pos+1)%window.length;
+        }
+    }
+
+    public double getValue(int index) {
+        if(count == 0)
+            return Double.NaN;
+        if(index == 0)
+            return mean;
+        return count < 2 ? Double.NaN : m2/(count-1);
+    }
+
+    public void reset() {
+        pos=0;
+        count=0;
+        mean=0;
+        m2=0;
+    }
+}
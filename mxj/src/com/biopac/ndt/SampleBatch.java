@@ -0,0 +1,71 @@
+/*
+ * SampleBatch.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * Run of consecutive samples of one channel as emitted by a SamplePublisher.
+ * The first sample's index counts received channel samples from the start
+ * of the acquisition, before decimation, so a subscriber can tell from the
+ * indexes of consecutive batches whether batches were dropped or the
+ * stream restarted.
+ *
+ * A batch is delivered to every subscriber of the publisher, so its samples
+ * must be treated as read only.
+ */
+public final class SampleBatch {
+    private final long firstIndex;
+    private final double[] samples;
+
+    SampleBatch(long first, double[] values) {
+        firstIndex=first;
+        samples=values;
+    }
+
+    /**
+     * Get the channel index of the first sample
+     */
+    public long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * Get the index one past the last sample, which is the first index of
+     * the next batch unless batches were dropped in between
+     */
+    public long getEndIndex() {
+        return firstIndex+samples.length;
+    }
+
+    public int size() {
+        return samples.length;
+    }
+
+    public double getSample(int i) {
+        return samples[i];
+    }
+
+    /**
+     * Get the samples without copying them.  The array is shared with the
+     * other subscribers and must not be modified.
+     *
+     * @return sample values, size() long
+     */
+    public double[] getSamples() {
+        return samples;
+    }
+
+    /**
+     * Copy the samples into an array
+     *
+     * @param dst   destination array
+     * @param off   offset in dst of the first sample
+     */
+    public void copyTo(double[] dst, int off) {
+        System.arraycopy(samples, 0, dst, off, samples.length);
+    }
+}
@@ -0,0 +1,754 @@
+/*
+ * SampleBuffer.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * First in, first out store of channel samples.  Samples are kept as
+ * primitive doubles in a ring that grows as needed, so appending a batch
+ * and draining it again does not allocate once the ring has reached its
+ * working size.
+ *
+ * The buffer also notes when each appended batch arrived, so that the age
+ * of the oldest buffered sample is known, and the largest number of samples
+ * it has held.
+ *
+ * Every sample also has an absolute index, counted in channel samples from
+ * the start of the acquisition.  The index of the oldest buffered sample is
+ * getFirstIndex(); it advances as samples are removed and is set by the
+ * receive thread with restartAt() when a new acquisition starts or the
+ * server reports where a batch belongs.  A gap in a stream is marked with
+ * jumpTo() instead, which keeps the buffered samples: the samples appended
+ * after it form a new index run that starts at the later index.  The index
+ * methods address the oldest run; once its last sample is removed
+ * getFirstIndex() moves on to the next run.
+ *
+ * Memory use can be bounded with a budget per buffer, setBudget(), and one
+ * shared by many buffers, setMemoryBudget().  What happens to samples
+ * appended beyond the budget is the buffer's overflow policy:
+ *
+ *  kDropOldest discards the oldest samples to make room.
+ *  kSpill writes the samples to a temporary file, from which they move
+ *      back into memory as the reader removes samples.  Spilled samples are
+ *      not readable until then, and a full spill file drops the oldest.
+ *  kPause expects the appending thread to stop receiving with awaitRoom()
+ *      until there is room, which backpressures a TCP sender.  Samples
+ *      appended regardless are dropped as with kDropOldest.
+ *
+ * Each time a policy fires it is counted, see getOverflowCount(), along
+ * with the samples it dropped and spilled.
+ *
+ * A consumer that wants to react to new samples rather than poll for them
+ * can wait with awaitSamples(), which blocks, parks or spins according to
+ * the buffer's WaitStrategy.
+ *
+ * All methods are synchronized; one thread appends samples as they are
+ * received while another reads and removes them.
+ */
+public class SampleBuffer {
+    public static final String kDropOldest="drop";
+    public static final String kSpill="spill";
+    public static final String kPause="pause";
+
+    private static final int kInitialCapacity=8192;
+
+    // at most this many samples (1 GiB) are spilled to disk
+    private static final long kMaxSpillSamples=1L<<27;
+
+    // batches whose arrival time is remembered; when more batches than
+    // this are buffered the newest ones share an arrival time
+    private static final int kArrivalMarkers=256;
+
+    private double[] ring=new double[kInitialCapacity];
+    private int head=0;     // ring index of sample 0
+    private int count=0;    // number of buffered samples
+    private int highWater=0;
+    private long totalAppended=0;
+    private long totalRemoved=0;
+    private long firstIndex=0;  // absolute index of sample 0
+    private long restarts=0;    // calls to restartAt()
+
+    // index runs after the oldest one, oldest first: {number of samples
+    // appended before the run, absolute index of its first sample}
+    private final ArrayDeque<long[]> runs=new ArrayDeque<long[]>();
+
+    private int budget=Integer.MAX_VALUE;
+    private String policy=kDropOldest;
+    private MemoryBudget memoryBudget=null;
+    private SpillFile spill=null;   // samples following the ring's
+    private long overflowCount=0;
+    private long overflowDropped=0;
+    private long totalSpilled=0;
+    private boolean paused=false;
+
+    private volatile WaitStrategy waitStrategy=WaitStrategy.kBlock;
+    private volatile long readableSequence=0;   // bumped when samples become readable
+    private int sampleWaiters=0;                // threads blocked in awaitSamples
+
+    // arrival times of buffered batches, oldest first: markerEnd holds the
+    // total appended count just after the batch
+    private final long[] markerEnd=new long[kArrivalMarkers];
+    private final long[] markerNanos=new long[kArrivalMarkers];
+    private int markerHead=0;
+    private int markerCount=0;
+
+    /**
+     * Get the number of samples currently held in the buffer
+     *
+     * @return number of buffered samples
+     */
+    public synchronized int numSamples() {
+        return count;
+    }
+
+    /**
+     * Get the value of an individual buffered sample
+     *
+     * @param index sample index, should be in the range [0, numSamples())
+     * @return sample value
+     * @throws IndexOutOfBoundsException
+     */
+    public synchronized double getSample(int index) throws IndexOutOfBoundsException {
+        if(index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index: "+index+", Size: "+count);
+        return ring[(head+index)%ring.length];
+    }
+
+    /**
+     * Copy a range of buffered samples into an array
+     *
+     * @param index first sample to copy, in the range [0, numSamples())
+     * @param dst   destination array
+     * @param off   offset of the first sample in dst
+     * @param n     number of samples to copy
+     * @throws IndexOutOfBoundsException if the range is not buffered
+     */
+    public synchronized void getSamples(int index, double[] dst, int off, int n) throws IndexOutOfBoundsException {
+        if(index < 0 || n < 0 || index+n > count)
+            throw new IndexOutOfBoundsException();
+
+        int start=(head+index)%ring.length;
+        int first=Math.min(n, ring.length-start);
+        System.arraycopy(ring, start, dst, off, first);
+        System.arraycopy(ring, 0, dst, off+first, n-first);
+    }
+
+    /**
+     * Copy a range of buffered samples addressed by absolute index
+     *
+     * @param index absolute index of the first sample to copy, in the range
+     *              [getFirstIndex(), getEndIndex())
+     * @param dst   destination array
+     * @param off   offset of the first sample in dst
+     * @param n     number of samples to copy
+     * @throws IndexOutOfBoundsException if the range is not buffered in the
+     *  oldest index run
+     */
+    public synchronized void getSamplesAt(long index, double[] dst, int off, int n) throws IndexOutOfBoundsException {
+        long end=getEndIndex();
+        if(index < firstIndex || index+n > end)
+            throw new IndexOutOfBoundsException("Index: "+index+", Buffered: "+firstIndex+"-"+end);
+        getSamples((int)(index-firstIndex), dst, off, n);
+    }
+
+    /**
+     * Append samples to the end of the buffer, applying the overflow policy
+     * to the samples beyond the budget
+     *
+     * @param src   sample values
+     * @param off   offset of the first sample in src
+     * @param n     number of samples to append
+     */
+    public synchronized void append(double[] src, int off, int n) {
+        if(n == 0)
+            return;
+        if(numSpilled() > 0)
+            refill();
+
+        int room=room();
+        if(n <= room && numSpilled() == 0)
+        {
+            put(src, off, n);
+            return;
+        }
+
+        if(policy == kSpill)
+        {
+            if(numSpilled() == 0)
+                overflowCount++;
+            int direct=numSpilled() > 0 ? 0 : room;
+            put(src, off, direct);
+            spill(src, off+direct, n-direct);
+            return;
+        }
+
+        // drop the oldest buffered samples, then the oldest new ones
+        overflowCount++;
+        int excess=n-room;
+        overflowDropped+=excess;
+        int dropped=(int)dropOldest(excess);
+        if(dropped < excess)
+        {
+            int skipped=Math.min(n, excess-dropped);
+            mark(skipped);
+            discarded(skipped);
+            off+=skipped;
+            n-=skipped;
+        }
+        put(src, off, Math.min(n, room()));
+    }
+
+    /**
+     * Strip a fixed number of samples at the beginning of the buffer
+     *
+     * @param n number of samples to remove
+     * @throws IndexOutOfBoundsException if fewer samples are buffered
+     */
+    public synchronized void removeSamples(int n) throws IndexOutOfBoundsException {
+        if(n < 0 || n > count)
+            throw new IndexOutOfBoundsException();
+
+        head=(head+n)%ring.length;
+        count-=n;
+        if(memoryBudget != null)
+            memoryBudget.add(-n);
+        discarded(n);
+        if(numSpilled() > 0)
+            refill();
+        notifyAll();
+    }
+
+    /**
+     * Strip the buffered samples whose absolute index is below a given one.
+     * An index past the end of the oldest index run removes the whole run
+     * and continues in the next.
+     *
+     * @param index absolute index of the first sample to keep
+     */
+    public synchronized void removeSamplesBefore(long index) {
+        while(count > 0 && index > firstIndex)
+        {
+            long n=Math.min(index, getEndIndex())-firstIndex;
+            if(n <= 0)
+                break;
+            removeSamples((int)n);
+        }
+    }
+
+    /**
+     * Discard all buffered samples
+     */
+    public synchronized void clear() {
+        long spilled=numSpilled();
+        long next=getNextIndex();
+        if(spill != null)
+            spill.clear();
+        if(memoryBudget != null)
+            memoryBudget.add(-count);
+        head=0;
+        totalRemoved+=count+spilled;
+        firstIndex=next;
+        runs.clear();
+        count=0;
+        markerCount=0;
+        notifyAll();
+    }
+
+    /**
+     * Discard all buffered samples and number the next appended sample
+     *
+     * @param index absolute index of the next appended sample
+     */
+    public synchronized void restartAt(long index) {
+        clear();
+        firstIndex=index;
+        restarts++;
+    }
+
+    /**
+     * Get the number of times restartAt() has been called, so that readers
+     * holding on to an index can tell the indexes have been renumbered
+     */
+    public synchronized long getRestartCount() {
+        return restarts;
+    }
+
+    /**
+     * Number the next appended sample after a gap in the stream, keeping
+     * the buffered samples.  If samples are buffered the next appended
+     * sample starts a new index run.
+     *
+     * @param index absolute index of the next appended sample, at least
+     *              getNextIndex()
+     */
+    public synchronized void jumpTo(long index) {
+        long next=getNextIndex();
+        if(index < next)
+            throw new IllegalArgumentException("Index "+index+" is before the next index "+next);
+        if(index == next)
+            return;
+        if(count == 0 && numSpilled() == 0)
+        {
+            firstIndex=index;
+            return;
+        }
+        long[] last=runs.peekLast();
+        if(last != null && last[0] == totalAppended)
+            last[1]=index;     // nothing appended since the last jump
+        else
+            runs.addLast(new long[] {totalAppended, index});
+    }
+
+    /**
+     * Get the absolute index the next appended sample will have
+     */
+    public synchronized long getNextIndex() {
+        long[] last=runs.peekLast();
+        if(last == null)
+            return firstIndex+count+numSpilled();
+        return last[1]+(totalAppended-last[0]);
+    }
+
+    /**
+     * Check whether the oldest index run ends within the readable samples,
+     * followed by samples of a later run
+     */
+    public synchronized boolean hasNextRun() {
+        long[] next=runs.peekFirst();
+        return next != null && next[0]-totalRemoved <= count;
+    }
+
+    /**
+     * Get the absolute index of the oldest buffered sample, which is the
+     * index of the next appended sample when the buffer is empty
+     */
+    public synchronized long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * Get the absolute index just past the newest readable sample of the
+     * oldest index run, which is the index the next appended sample will
+     * have unless samples are spilled to disk or a later run follows
+     */
+    public synchronized long getEndIndex() {
+        long[] next=runs.peekFirst();
+        if(next == null)
+            return firstIndex+count;
+        return firstIndex+Math.min(count, next[0]-totalRemoved);
+    }
+
+    /**
+     * Get the time at which the oldest buffered sample was appended
+     *
+     * @return System.nanoTime() at arrival, or 0 if the buffer is empty
+     */
+    public synchronized long getOldestArrivalNanos() {
+        return markerCount == 0 ? 0 : markerNanos[markerHead];
+    }
+
+    /**
+     * Get the largest number of samples the buffer has held since it was
+     * created or resetHighWater() was called
+     */
+    public synchronized int getHighWater() {
+        return highWater;
+    }
+
+    public synchronized void resetHighWater() {
+        highWater=count;
+    }
+
+    /**
+     * Get the number of samples appended over the lifetime of the buffer
+     */
+    public synchronized long getTotalAppended() {
+        return totalAppended;
+    }
+
+    /**
+     * Limit the number of samples held in memory
+     *
+     * @param maxSamples    number of samples this buffer may hold
+     * @param overflow      kDropOldest, kSpill or kPause
+     */
+    public synchronized void setBudget(int maxSamples, String overflow) {
+        if(maxSamples < 1)
+            throw new IllegalArgumentException("Invalid budget "+maxSamples);
+        if(kDropOldest.equals(overflow))
+            policy=kDropOldest;
+        else if(kSpill.equals(overflow))
+            policy=kSpill;
+        else if(kPause.equals(overflow))
+            policy=kPause;
+        else
+            throw new IllegalArgumentException("Unknown overflow policy "+overflow);
+        budget=maxSamples;
+        notifyAll();
+    }
+
+    public synchronized int getBudget() {
+        return budget;
+    }
+
+    public synchronized String getOverflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * Share a memory budget with other buffers
+     *
+     * @param b budget to take samples from, or null for none
+     */
+    public synchronized void setMemoryBudget(MemoryBudget b) {
+        if(memoryBudget != null)
+            memoryBudget.add(-count);
+        memoryBudget=b;
+        if(memoryBudget != null)
+            memoryBudget.add(count);
+        notifyAll();
+    }
+
+    public synchronized MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Wait until n samples can be appended within the budgets.  Used by a
+     * receive thread under the kPause policy to stop reading; waiting more
+     * than once in a row counts as a single overflow.
+     *
+     * @param n             number of samples about to be appended
+     * @param timeoutMillis longest time to wait
+     * @return true if there is room, false if the wait timed out
+     */
+    public synchronized boolean awaitRoom(int n, long timeoutMillis) throws InterruptedException {
+        if(room() >= n)
+        {
+            paused=false;
+            return true;
+        }
+        if(!paused)
+        {
+            paused=true;
+            overflowCount++;
+        }
+        wait(timeoutMillis);
+        if(room() < n)
+            return false;
+        paused=false;
+        return true;
+    }
+
+    /**
+     * Wait until at least n samples are buffered, in the manner of the
+     * buffer's wait strategy
+     *
+     * @param n             number of samples to wait for
+     * @param timeoutMillis longest time to wait
+     * @return true if n samples are buffered, false if the wait timed out
+     */
+    public boolean awaitSamples(int n, long timeoutMillis) throws InterruptedException {
+        return waitStrategy.await(this, n, System.nanoTime()+timeoutMillis*1000000);
+    }
+
+    /**
+     * Choose how awaitSamples() waits
+     *
+     * @param strategy  WaitStrategy.kBlock (the default), kPark or kSpin
+     */
+    public void setWaitStrategy(WaitStrategy strategy) {
+        if(strategy == null)
+            throw new IllegalArgumentException("No wait strategy");
+        waitStrategy=strategy;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Get a counter that changes whenever samples become readable, read
+     * without taking the buffer's lock
+     */
+    long getReadableSequence() {
+        return readableSequence;
+    }
+
+    /**
+     * Wait on the buffer's monitor for n samples, woken by appends
+     *
+     * @param deadline  System.nanoTime() at which to give up
+     */
+    synchronized boolean awaitSamplesBlocking(int n, long deadline) throws InterruptedException {
+        sampleWaiters++;
+        try
+        {
+            while(count < n)
+            {
+                long left=deadline-System.nanoTime();
+                if(left <= 0)
+                    return false;
+                wait(left/1000000, (int)(left%1000000));
+            }
+            return true;
+        }
+        finally
+        {
+            sampleWaiters--;
+        }
+    }
+
+    /**
+     * Tell waiting consumers that samples became readable
+     */
+    private void readable() {
+        readableSequence++;
+        if(sampleWaiters > 0)
+            notifyAll();
+    }
+
+    /**
+     * Get the number of times an overflow policy fired
+     */
+    public synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Get the number of samples dropped to stay within the budgets
+     */
+    public synchronized long getOverflowDropped() {
+        return overflowDropped;
+    }
+
+    /**
+     * Get the number of samples written to the spill file so far
+     */
+    public synchronized long getTotalSpilled() {
+        return totalSpilled;
+    }
+
+    /**
+     * Get the number of samples currently spilled to disk
+     */
+    public synchronized long getSpilledSamples() {
+        return numSpilled();
+    }
+
+    /**
+     * Get whether the appending thread is waiting for room
+     */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Close the spill file, if any.  Spilled samples are discarded.
+     */
+    public synchronized void releaseSpill() {
+        if(spill == null)
+            return;
+        clear();
+        spill.close();
+        spill=null;
+    }
+
+    private long numSpilled() {
+        return spill == null ? 0 : spill.numSamples();
+    }
+
+    /**
+     * Get the number of samples that fit within the budgets
+     */
+    private int room() {
+        long r=(long)budget-count;
+        if(memoryBudget != null)
+            r=Math.min(r, memoryBudget.getRemaining());
+        return (int)Math.max(0, r);
+    }
+
+    /**
+     * Copy samples into the ring
+     */
+    private void put(double[] src, int off, int n) {
+        if(n <= 0)
+            return;
+        if(count+n > ring.length)
+            grow(count+n);
+
+        int tail=(head+count)%ring.length;
+        int first=Math.min(n, ring.length-tail);
+        System.arraycopy(src, off, ring, tail, first);
+        System.arraycopy(src, off+first, ring, 0, n-first);
+        count+=n;
+        if(memoryBudget != null)
+            memoryBudget.add(n);
+        if(count > highWater)
+            highWater=count;
+        mark(n);
+        readable();
+    }
+
+    /**
+     * Count appended samples and note when they arrived
+     */
+    private void mark(int n) {
+        totalAppended+=n;
+        if(markerCount == kArrivalMarkers)
+        {
+            // extend the newest batch rather than forget the oldest one
+            markerEnd[(markerHead+markerCount-1)%kArrivalMarkers]=totalAppended;
+        }
+        else
+        {
+            int m=(markerHead+markerCount)%kArrivalMarkers;
+            markerEnd[m]=totalAppended;
+            markerNanos[m]=System.nanoTime();
+            markerCount++;
+        }
+    }
+
+    /**
+     * Count samples leaving the front of the buffer
+     */
+    private void discarded(long n) {
+        totalRemoved+=n;
+        firstIndex+=n;
+        while(!runs.isEmpty() && runs.peekFirst()[0] <= totalRemoved)
+        {
+            long[] run=runs.pollFirst();
+            firstIndex=run[1]+(totalRemoved-run[0]);
+        }
+        while(markerCount > 0 && markerEnd[markerHead] <= totalRemoved)
+        {
+            markerHead=(markerHead+1)%kArrivalMarkers;
+            markerCount--;
+        }
+    }
+
+    /**
+     * Drop up to n of the oldest samples, in memory first and then spilled
+     *
+     * @return number of samples dropped
+     */
+    private long dropOldest(long n) {
+        long total=0;
+        while(total < n && (count > 0 || numSpilled() > 0))
+        {
+            if(count == 0)
+            {
+                long k=spill.skip(n-total);
+                discarded(k);
+                total+=k;
+                continue;
+            }
+            // removing refills the ring from the spill file
+            int k=(int)Math.min(n-total, count);
+            removeSamples(k);
+            total+=k;
+        }
+        return total;
+    }
+
+    /**
+     * Write samples following the ring's to the spill file
+     */
+    private void spill(double[] src, int off, int n) {
+        if(n <= 0)
+            return;
+        long excess=numSpilled()+n-kMaxSpillSamples;
+        if(excess > 0)
+            overflowDropped+=dropOldest(excess);
+        try
+        {
+            if(spill == null)
+                spill=new SpillFile();
+            spill.write(src, off, n);
+            totalSpilled+=n;
+            mark(n);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not spill samples, dropping them: "+e);
+            dropSpilled();
+            overflowDropped+=n;
+        }
+    }
+
+    /**
+     * Move spilled samples back into the ring as far as the budgets allow
+     */
+    private void refill() {
+        int n=(int)Math.min(room(), numSpilled());
+        if(n <= 0)
+            return;
+        if(count+n > ring.length)
+            grow(count+n);
+
+        try
+        {
+            int tail=(head+count)%ring.length;
+            int first=Math.min(n, ring.length-tail);
+            spill.read(ring, tail, first);
+            spill.read(ring, 0, n-first);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not read spilled samples, dropping them: "+e);
+            dropSpilled();
+            return;
+        }
+        count+=n;
+        if(memoryBudget != null)
+            memoryBudget.add(n);
+        if(count > highWater)
+            highWater=count;
+        readable();
+    }
+
+    /**
+     * Give up on the spill file after an I/O error.  The spilled samples
+     * are forgotten as if they had never been appended, so later samples
+     * take their indexes.
+     */
+    private void dropSpilled() {
+        if(spill == null)
+            return;
+        long n=spill.numSamples();
+        overflowDropped+=n;
+        totalAppended-=n;
+        while(!runs.isEmpty() && runs.peekLast()[0] >= totalAppended)
+            runs.pollLast();
+        for(int i=0; i<markerCount; i++)
+        {
+            int m=(markerHead+i)%kArrivalMarkers;
+            if(markerEnd[m] > totalAppended)
+                markerEnd[m]=totalAppended;
+        }
+        spill.close();
+        spill=null;
+    }
+
+    /**
+     * Reallocate the ring so it can hold at least the given number of
+     * samples, unwrapping the buffered samples to the start of the new ring
+     */
+    private void grow(int minCapacity) {
+        int capacity=ring.length;
+        while(capacity < minCapacity)
+            capacity*=2;
+
+        double[] newRing=new double[capacity];
+        getSamples(0, newRing, 0, count);
+        ring=newRing;
+        head=0;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * SampleListener.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * Callback for samples as they are decoded.  Listeners are added to a
+ * ChannelDataSocket or UDPChannelDataSocket with addSampleListener() and
+ * are called on the receive thread with every received sample, before
+ * decimation and before the samples are buffered, so a consumer such as a
+ * trigger detector sees them without waiting on the sample buffer.
+ *
+ * The array is the socket's decode buffer and is overwritten by the next
+ * read, so a listener must copy any samples it keeps and must not modify
+ * them.  The receive thread waits for the listener; one that blocks or
+ * does slow work stalls the channel.  A listener that throws is removed.
+ */
+public interface SampleListener {
+    /**
+     * Handle received samples
+     *
+     * @param buf           decode buffer holding the samples
+     * @param off           offset in buf of the first sample
+     * @param len           number of samples, at least 1
+     * @param firstIndex    channel index of the first sample, counting
+     *                      received samples before decimation from the
+     *                      start of the acquisition
+     */
+    void onSamples(double[] buf, int off, int len, long firstIndex);
+}
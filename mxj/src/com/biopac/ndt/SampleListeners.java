@@ -0,0 +1,67 @@
+/*
+ * SampleListeners.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+/**
+ * Listeners of a data socket.  The set is copy on write so that calling
+ * the listeners from the receive thread takes no lock and allocates
+ * nothing.
+ */
+final class SampleListeners {
+    private static final SampleListener[] kNone=new SampleListener[0];
+
+    private volatile SampleListener[] listeners=kNone;
+
+    synchronized void add(SampleListener l) {
+        if(l == null)
+            throw new NullPointerException("listener");
+        SampleListener[] old=listeners;
+        SampleListener[] grown=new SampleListener[old.length+1];
+        System.arraycopy(old, 0, grown, 0, old.length);
+        grown[old.length]=l;
+        listeners=grown;
+    }
+
+    synchronized boolean remove(SampleListener l) {
+        SampleListener[] old=listeners;
+        for(int i=0; i<old.length; i++)
+        {
+            if(old[i] == l)
+            {
+                SampleListener[] shrunk=new SampleListener[old.length-1];
+                System.arraycopy(old, 0, shrunk, 0, i);
+                System.arraycopy(old, i+1, shrunk, i, old.length-i-1);
+                listeners=shrunk.length == 0 ? kNone : shrunk;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Call every listener.  A listener that throws is reported and removed
+     * so that it can't take the receive thread down with it.
+     *
+     * @param port  port of the socket, for the report
+     */
+    void onSamples(double[] buf, int off, int len, long firstIndex, int port) {
+        SampleListener[] ls=listeners;
+        for(int i=0; i<ls.length; i++)
+        {
+            try
+            {
+                ls[i].onSamples(buf, off, len, firstIndex);
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Sample listener removed on port "+port+": "+e);
+                remove(ls[i]);
+            }
+        }
+    }
+}
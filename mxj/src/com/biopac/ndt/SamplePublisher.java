@@ -0,0 +1,114 @@
+/*
+ * SamplePublisher.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+/**
+ * Reactive stream of a channel's samples.  The publisher is attached to a
+ * ChannelDataSocket or UDPChannelDataSocket with setPublisher(), or added
+ * as a SampleListener, and publishes every received sample, before
+ * decimation, as SampleBatch items.  Any number of subscribers share the
+ * one data connection; each batch is copied out of the receive path once
+ * and handed to all of them.
+ *
+ * Delivery honors each subscriber's request(n) demand and runs on the
+ * publisher's executor, never on the receive thread.  The network stream
+ * cannot be held back for a slow subscriber, so batches it has not
+ * requested are buffered for it up to the buffer capacity and dropped
+ * beyond that, for that subscriber only.  Drops are counted and show as a
+ * gap in the batch indexes.
+ *
+ * While nobody is subscribed the receive path pays for a single check.
+ * close() completes every subscription; a closed publisher cannot be
+ * reused.
+ */
+public class SamplePublisher implements Flow.Publisher<SampleBatch>, SampleListener, AutoCloseable {
+    private final SubmissionPublisher<SampleBatch> publisher;
+    private final AtomicLong dropped=new AtomicLong();
+    private final BiPredicate<Flow.Subscriber<? super SampleBatch>, SampleBatch> onDrop=
+        new BiPredicate<Flow.Subscriber<? super SampleBatch>, SampleBatch>() {
+            public boolean test(Flow.Subscriber<? super SampleBatch> s, SampleBatch b) {
+                dropped.incrementAndGet();
+                return false;   // don't retry, the receive thread can't wait
+            }
+        };
+
+    /**
+     * Create a publisher that delivers on the common fork join pool with
+     * the default buffer capacity
+     */
+    public SamplePublisher() {
+        this(ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    /**
+     * Create a publisher
+     *
+     * @param executor    runs deliveries to subscribers, for example a
+     *                    WorkerPool
+     * @param maxBuffered batches held per subscriber beyond its demand
+     *                    before batches are dropped for it
+     */
+    public SamplePublisher(Executor executor, int maxBuffered) {
+        publisher=new SubmissionPublisher<SampleBatch>(executor, maxBuffered);
+    }
+
+    public void subscribe(Flow.Subscriber<? super SampleBatch> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    public int getNumberOfSubscribers() {
+        return publisher.getNumberOfSubscribers();
+    }
+
+    /**
+     * Get the number of batches dropped for subscribers whose buffer was
+     * full, counted once per subscriber that missed the batch
+     */
+    public long getDroppedBatches() {
+        return dropped.get();
+    }
+
+    /**
+     * Complete every subscription.  Subscribers receive the batches that
+     * are still buffered for them first.
+     */
+    public void close() {
+        publisher.close();
+    }
+
+    public boolean isClosed() {
+        return publisher.isClosed();
+    }
+
+    /**
+     * Publish received samples.  This is called on the receive thread and
+     * does not block.
+     */
+    public void onSamples(double[] buf, int off, int len, long firstIndex) {
+        if(!publisher.hasSubscribers())
+            return;
+
+        double[] copy=new double[len];
+        System.arraycopy(buf, off, copy, 0, len);
+        try
+        {
+            publisher.offer(new SampleBatch(firstIndex, copy), onDrop);
+        }
+        catch (IllegalStateException e)
+        {
+            // closed by the client while samples were arriving
+        }
+    }
+}
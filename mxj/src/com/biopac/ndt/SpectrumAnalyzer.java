@@ -0,0 +1,307 @@
+/*
+ * SpectrumAnalyzer.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sliding window spectrum of a channel.  The analyzer is a FeatureExtractor
+ * so it is fed from a socket's receive path through a FeatureEngine.  It
+ * keeps the newest size samples and, every hop samples, transforms a Hann
+ * windowed copy of them.
+ *
+ * The result is either the magnitude spectrum, size/2+1 bins from 0 Hz to
+ * the Nyquist frequency scaled so that a sine of amplitude A reads A in its
+ * bin, or, when bands are set, the mean square content of each band.
+ *
+ * Transforms run on the feeding thread unless an Executor is set, in which
+ * case they are handed to it, for example a pool shared by all channels.
+ * At most one transform per analyzer is pending; hops that arrive while it
+ * is still running are skipped and counted.  Results are double buffered,
+ * so readers always see a complete spectrum.
+ */
+public class SpectrumAnalyzer implements FeatureExtractor {
+    private final FFT fft;
+    private final int size;
+    private final int hop;
+    private final double rate;
+    private final double[] window;      // Hann coefficients
+    private final double windowSum;
+    private final double windowSquareSum;
+    private final double[] ring;
+    private final double[] frame;       // copy handed to the transform
+    private final double[] re;
+    private final double[] im;
+    private int pos=0;
+    private int count=0;
+    private int sinceHop=0;
+
+    private double[] bandLow=null;
+    private double[] bandHigh=null;
+    private double[] back;
+    private double[] front;
+    private long sequence=0;
+    private long skipped=0;
+    private final Object resultLock=new Object();
+
+    private volatile Executor executor=null;
+    private final AtomicBoolean pending=new AtomicBoolean(false);
+    private final Runnable task=new Runnable() {
+        public void run() {
+            try
+            {
+                compute();
+            }
+            finally
+            {
+                pending.set(false);
+            }
+        }
+    };
+
+    /**
+     * Create an analyzer
+     *
+     * @param fftSize       window length in samples, a power of two
+     * @param hopSize       number of new samples between transforms
+     * @param channelRate   rate of the fed samples in Hertz
+     */
+    public SpectrumAnalyzer(int fftSize, int hopSize, double channelRate) {
+        if(hopSize < 1)
+            throw new IllegalArgumentException("Invalid hop "+hopSize);
+        fft=new FFT(fftSize);
+        size=fftSize;
+        hop=hopSize;
+        rate=channelRate;
+
+        window=new double[size];
+        double sum=0;
+        double squares=0;
+        for(int i=0; i<size; i++)
+        {
+            window[i]=0.5-0.5*Math.cos(2*Math.PI*i/size);
+            sum+=window[i];
+            squares+=window[i]*window[i];
+        }
+        windowSum=sum;
+        windowSquareSum=squares;
+
+        ring=new double[size];
+        frame=new double[size];
+        re=new double[size];
+        im=new double[size];
+        back=new double[size/2+1];
+        front=new double[size/2+1];
+    }
+
+    public String getName() {
+        return "spectrum";
+    }
+
+    /**
+     * Report band power instead of magnitudes
+     *
+     * @param low   lower band edges in Hertz
+     * @param high  upper band edges in Hertz, one per lower edge
+     */
+    public void setBands(double[] low, double[] high) {
+        if(low.length != high.length || low.length == 0)
+            throw new IllegalArgumentException("Need one upper edge per lower edge");
+        synchronized(resultLock)
+        {
+            bandLow=low.clone();
+            bandHigh=high.clone();
+            back=new double[low.length];
+            front=new double[low.length];
+        }
+    }
+
+    /**
+     * Run transforms on an executor instead of the feeding thread
+     *
+     * @param e executor, or null to transform on the feeding thread
+     */
+    public void setExecutor(Executor e) {
+        executor=e;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    /**
+     * Get the center frequency of a magnitude bin
+     *
+     * @param bin   bin index
+     * @return frequency in Hertz
+     */
+    public double getBinFrequency(int bin) {
+        return bin*rate/size;
+    }
+
+    public int numValues() {
+        synchronized(resultLock)
+        {
+            return front.length;
+        }
+    }
+
+    public void process(double[] samples, int off, int n) {
+        for(int i=0; i<n; i++)
+        {
+            ring[pos]=samples[off+i];
+            pos=(pos+1)%size;
+            if(count < size)
+                count++;
+            if(++sinceHop >= hop && count == size)
+            {
+                sinceHop=0;
+                transformWindow();
+            }
+        }
+    }
+
+    public double getValue(int index) {
+        synchronized(resultLock)
+        {
+            return sequence == 0 ? Double.NaN : front[index];
+        }
+    }
+
+    /**
+     * Copy the newest spectrum
+     *
+     * @param dst   destination holding at least numValues() values
+     * @return number of spectra computed so far, 0 if dst was not written
+     */
+    public long getSpectrum(double[] dst) {
+        synchronized(resultLock)
+        {
+            if(sequence > 0)
+                System.arraycopy(front, 0, dst, 0, front.length);
+            return sequence;
+        }
+    }
+
+    /**
+     * Get the number of spectra computed so far
+     */
+    public long getSequence() {
+        synchronized(resultLock)
+        {
+            return sequence;
+        }
+    }
+
+    /**
+     * Get the number of hops skipped because the previous transform was
+     * still running on the executor
+     */
+    public long getSkipped() {
+        synchronized(resultLock)
+        {
+            return skipped;
+        }
+    }
+
+    public void reset() {
+        pos=0;
+        count=0;
+        sinceHop=0;
+    }
+
+    /**
+     * Hand the current window to the transform, on the executor if set
+     */
+    private void transformWindow() {
+        if(!pending.compareAndSet(false, true))
+        {
+            synchronized(resultLock)
+            {
+                skipped++;
+            }
+            return;
+        }
+
+        // unwrap the ring, oldest sample first
+        System.arraycopy(ring, pos, frame, 0, size-pos);
+        System.arraycopy(ring, 0, frame, size-pos, pos);
+
+        Executor e=executor;
+        if(e != null)
+        {
+            try
+            {
+                e.execute(task);
+                return;
+            }
+            catch (RejectedExecutionException ex)
+            {
+                // pool shut down, transform here
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Transform the frame and publish the result
+     */
+    private void compute() {
+        for(int i=0; i<size; i++)
+        {
+            re[i]=frame[i]*window[i];
+            im[i]=0;
+        }
+        fft.transform(re, im);
+
+        double[] lows;
+        double[] highs;
+        double[] out;
+        synchronized(resultLock)
+        {
+            lows=bandLow;
+            highs=bandHigh;
+            out=back;
+        }
+
+        if(lows == null)
+        {
+            for(int k=0; k<=size/2; k++)
+                out[k]=(k == 0 || k == size/2 ? 1 : 2)*Math.sqrt(re[k]*re[k]+im[k]*im[k])/windowSum;
+        }
+        else
+        {
+            for(int b=0; b<lows.length; b++)
+            {
+                int first=Math.max(1, (int)Math.ceil(lows[b]*size/rate));
+                int last=Math.min(size/2, (int)Math.floor(highs[b]*size/rate));
+                double power=0;
+                for(int k=first; k<=last; k++)
+                    power+=re[k]*re[k]+im[k]*im[k];
+                out[b]=2*power/(size*windowSquareSum);
+            }
+        }
+
+        synchronized(resultLock)
+        {
+            // bands may have changed while we were computing
+            if(out.length == back.length)
+            {
+                back=front;
+                front=out;
+                sequence++;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * SpillFile.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * First in, first out store of samples in a temporary file, used by a
+ * SampleBuffer to hold samples beyond its memory budget.  Samples are
+ * written at the end and read from the front; the file is emptied whenever
+ * all written samples have been read, so it only grows while the reader
+ * stays behind.  The file is deleted when the store is closed or the JVM
+ * exits.
+ *
+ * Not synchronized; the owning SampleBuffer serializes access.
+ */
+public class SpillFile implements AutoCloseable {
+    private static final int kChunkSamples=4096;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteBuffer chunk=ByteBuffer.allocateDirect(kChunkSamples*8);
+    private long readPos=0;     // in samples
+    private long writePos=0;
+
+    /**
+     * Create an empty store in the default temporary directory
+     *
+     * @throws IOException if the file cannot be created
+     */
+    public SpillFile() throws IOException {
+        file=File.createTempFile("ndt-spill", ".f64");
+        file.deleteOnExit();
+        raf=new RandomAccessFile(file, "rw");
+        channel=raf.getChannel();
+    }
+
+    /**
+     * Get the number of samples written and not yet read
+     */
+    public long numSamples() {
+        return writePos-readPos;
+    }
+
+    /**
+     * Append samples
+     */
+    public void write(double[] src, int off, int n) throws IOException {
+        while(n > 0)
+        {
+            int k=Math.min(n, kChunkSamples);
+            chunk.clear();
+            chunk.asDoubleBuffer().put(src, off, k);
+            chunk.limit(k*8);
+            long pos=writePos*8;
+            while(chunk.hasRemaining())
+                pos+=channel.write(chunk, pos);
+            writePos+=k;
+            off+=k;
+            n-=k;
+        }
+    }
+
+    /**
+     * Read the oldest samples
+     *
+     * @return number of samples read, less than n if fewer are stored
+     */
+    public int read(double[] dst, int off, int n) throws IOException {
+        n=(int)Math.min(n, numSamples());
+        int total=n;
+        while(n > 0)
+        {
+            int k=Math.min(n, kChunkSamples);
+            chunk.clear();
+            chunk.limit(k*8);
+            long pos=readPos*8;
+            while(chunk.hasRemaining())
+            {
+                int r=channel.read(chunk, pos);
+                if(r < 0)
+                    throw new IOException("Spill file truncated");
+                pos+=r;
+            }
+            chunk.flip();
+            chunk.asDoubleBuffer().get(dst, off, k);
+            readPos+=k;
+            off+=k;
+            n-=k;
+        }
+        if(readPos == writePos)
+            clear();
+        return total;
+    }
+
+    /**
+     * Discard the oldest samples without reading them
+     *
+     * @return number of samples discarded
+     */
+    public long skip(long n) {
+        n=Math.min(n, numSamples());
+        readPos+=n;
+        if(readPos == writePos)
+            clear();
+        return n;
+    }
+
+    /**
+     * Discard all stored samples and shrink the file
+     */
+    public void clear() {
+        readPos=0;
+        writePos=0;
+        try
+        {
+            channel.truncate(0);
+        }
+        catch (IOException e)
+        {
+            // the space is reused by the next write anyway
+        }
+    }
+
+    /**
+     * Close and delete the file
+     */
+    public void close() {
+        try
+        {
+            raf.close();
+        }
+        catch (IOException e)
+        {
+            // nothing more to do, the file is deleted either way
+        }
+        file.delete();
+    }
+}
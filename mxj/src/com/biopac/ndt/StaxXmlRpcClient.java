@@ -0,0 +1,385 @@
+/*
+ * StaxXmlRpcClient.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Minimal XML-RPC client for the calls ACQServer makes often.  Requests
+ * are written directly and responses are pulled from a StAX stream by a
+ * ResultDecoder that reads the result into primitives or its own typed
+ * result, so no Object[]/Map tree is built and no values are boxed.
+ *
+ * Parameters may be String, Integer, Short, Double, Boolean, Map (struct)
+ * and Object[] or List (array) values.  A fault response is thrown as an
+ * XmlRpcException carrying the fault code and string, as the generic
+ * client does.  Instances are thread safe.
+ *
+ * The generic client's HTTP transport has no timeouts of its own and waits
+ * as long as the JVM's sun.net.client.defaultConnectTimeout and
+ * defaultReadTimeout properties allow, forever when they are not set.
+ * This client honors the same properties but falls back to
+ * kDefaultConnectionTimeoutMillis and kDefaultReplyTimeoutMillis so a
+ * server that stops answering can't hang the frequent calls.
+ */
+public class StaxXmlRpcClient {
+    /**
+     * Reads the result value of a response
+     */
+    public interface ResultDecoder {
+        /**
+         * Decode the result, starting with in.beginValue() and consuming
+         * the whole value
+         */
+        void decode(XmlRpcValueReader in) throws XMLStreamException, XmlRpcException;
+    }
+
+    // the JDK's stream reader allocates large buffers when created; with
+    // a factory per thread it may hand back its previous reader instead
+    private static final String kReuseInstance="reuse-instance";
+    private static final ThreadLocal<XMLInputFactory> kInputFactory=new ThreadLocal<XMLInputFactory>() {
+        protected XMLInputFactory initialValue() {
+            return createInputFactory();
+        }
+    };
+
+    /** Connect timeout used when sun.net.client.defaultConnectTimeout is not set */
+    public static final int kDefaultConnectionTimeoutMillis=5000;
+    /** Read timeout used when sun.net.client.defaultReadTimeout is not set */
+    public static final int kDefaultReplyTimeoutMillis=10000;
+
+    private final URL url;
+    private volatile int connectionTimeout=defaultTimeout("sun.net.client.defaultConnectTimeout", kDefaultConnectionTimeoutMillis);
+    private volatile int replyTimeout=defaultTimeout("sun.net.client.defaultReadTimeout", kDefaultReplyTimeoutMillis);
+
+    /**
+     * Create a client
+     *
+     * @param serverURL XML-RPC endpoint, e.g. http://host:port/RPC2
+     */
+    public StaxXmlRpcClient(URL serverURL) {
+        url=serverURL;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * Set how long to wait for the connection to the server
+     *
+     * @param millis timeout in milliseconds, 0 to wait forever
+     */
+    public void setConnectionTimeout(int millis) {
+        if(millis < 0)
+            throw new IllegalArgumentException("Negative timeout "+millis);
+        connectionTimeout=millis;
+    }
+
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Set how long to wait for the server's response once connected
+     *
+     * @param millis timeout in milliseconds, 0 to wait forever
+     */
+    public void setReplyTimeout(int millis) {
+        if(millis < 0)
+            throw new IllegalArgumentException("Negative timeout "+millis);
+        replyTimeout=millis;
+    }
+
+    public int getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    /**
+     * Read a timeout property the JDK's HTTP client honors
+     */
+    private static int defaultTimeout(String property, int fallback) {
+        Integer millis=Integer.getInteger(property);
+        return millis != null && millis.intValue() > 0 ? millis.intValue() : fallback;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory f=XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        if(f.isPropertySupported(kReuseInstance))
+            f.setProperty(kReuseInstance, Boolean.TRUE);
+        return f;
+    }
+
+    /**
+     * Invoke a method
+     *
+     * @param method    method name
+     * @param params    parameters
+     * @param decoder   reads the result
+     * @return number of response bytes read
+     * @throws XmlRpcException on a fault, an HTTP or I/O error or a
+     *  malformed response
+     */
+    public long call(String method, Object[] params, ResultDecoder decoder) throws XmlRpcException {
+        return send(method, encodeRequest(method, params), decoder);
+    }
+
+    /**
+     * Send a request encoded by encodeRequest(), for callers that count
+     * the request bytes
+     *
+     * @param method    method name, for error messages
+     * @param request   encoded methodCall document
+     * @param decoder   reads the result
+     * @return number of response bytes read
+     * @throws XmlRpcException on a fault, an HTTP or I/O error or a
+     *  malformed response
+     */
+    long send(String method, byte[] request, ResultDecoder decoder) throws XmlRpcException {
+        HttpURLConnection conn=null;
+        try
+        {
+            conn=(HttpURLConnection)url.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(connectionTimeout);
+            conn.setReadTimeout(replyTimeout);
+            conn.setRequestProperty("Content-Type", "text/xml");
+            conn.setFixedLengthStreamingMode(request.length);
+            OutputStream out=conn.getOutputStream();
+            out.write(request);
+            out.close();
+
+            int status=conn.getResponseCode();
+            if(status != HttpURLConnection.HTTP_OK)
+                throw new XmlRpcException("HTTP server returned "+status+" "+conn.getResponseMessage());
+
+            CountingInputStream in=new CountingInputStream(conn.getInputStream());
+            try
+            {
+                parseResponse(in, decoder);
+                // drain so the connection can be kept alive
+                byte[] rest=new byte[256];
+                while(in.read(rest, 0, rest.length) >= 0)
+                    ;
+            }
+            finally
+            {
+                in.close();
+            }
+            return in.count;
+        }
+        catch (IOException e)
+        {
+            if(conn != null)
+                conn.disconnect();
+            throw new XmlRpcException("Failed to call "+method+": "+e, e);
+        }
+    }
+
+    /**
+     * Decode a methodResponse document
+     *
+     * @param in        response body
+     * @param decoder   reads the result
+     * @throws XmlRpcException on a fault or a malformed response
+     */
+    public static void parseResponse(InputStream in, ResultDecoder decoder) throws XmlRpcException {
+        XMLStreamReader r=null;
+        try
+        {
+            r=kInputFactory.get().createXMLStreamReader(in);
+            XmlRpcValueReader values=new XmlRpcValueReader(r);
+            values.requireStart("methodResponse");
+            r.nextTag();
+            if(r.getLocalName().equals("fault"))
+                throw decodeFault(values);
+            if(!r.getLocalName().equals("params"))
+                throw new XmlRpcException("Expected <params> in response");
+            values.requireStart("param");
+            decoder.decode(values);
+        }
+        catch (XMLStreamException e)
+        {
+            throw new XmlRpcException("Malformed response: "+e.getMessage(), e);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new XmlRpcException("Malformed number in response: "+e.getMessage(), e);
+        }
+        finally
+        {
+            if(r != null)
+            {
+                try
+                {
+                    r.close();
+                }
+                catch (XMLStreamException e)
+                {
+                    // the stream is closed by the caller
+                }
+            }
+        }
+    }
+
+    private static XmlRpcException decodeFault(XmlRpcValueReader in) throws XMLStreamException {
+        int code=0;
+        String message="";
+        if(!XmlRpcValueReader.kStruct.equals(in.beginValue()))
+            return new XmlRpcException("Malformed fault");
+        String name;
+        while((name=in.nextMember()) != null)
+        {
+            String type=in.beginValue();
+            if(name.equals("faultCode") && (type.equals(XmlRpcValueReader.kInt) || type.equals(XmlRpcValueReader.kI4)))
+                code=in.readInt();
+            else if(name.equals("faultString") && type.equals(XmlRpcValueReader.kString))
+                message=in.readString();
+            else
+                in.skipValue();
+        }
+        return new XmlRpcException(code, message);
+    }
+
+    /**
+     * Encode a methodCall document
+     */
+    static byte[] encodeRequest(String method, Object[] params) throws XmlRpcException {
+        StringBuilder sb=new StringBuilder(256);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodCall><methodName>");
+        escape(sb, method);
+        sb.append("</methodName><params>");
+        for(int i=0; i<params.length; i++)
+        {
+            sb.append("<param>");
+            encodeValue(sb, params[i]);
+            sb.append("</param>");
+        }
+        sb.append("</params></methodCall>");
+        try
+        {
+            return sb.toString().getBytes("UTF-8");
+        }
+        catch (java.io.UnsupportedEncodingException e)
+        {
+            throw new XmlRpcException("UTF-8 not supported", e);
+        }
+    }
+
+    private static void encodeValue(StringBuilder sb, Object val) throws XmlRpcException {
+        sb.append("<value>");
+        if(val instanceof String)
+        {
+            sb.append("<string>");
+            escape(sb, (String)val);
+            sb.append("</string>");
+        }
+        else if(val instanceof Integer || val instanceof Short)
+        {
+            sb.append("<i4>").append(((Number)val).intValue()).append("</i4>");
+        }
+        else if(val instanceof Double)
+        {
+            // XML-RPC doubles have no exponent, which Double.toString()
+            // uses for small and large values
+            double d=((Double)val).doubleValue();
+            if(Double.isNaN(d) || Double.isInfinite(d))
+                throw new XmlRpcException("Can't encode "+d+" as an XML-RPC double");
+            sb.append("<double>").append(BigDecimal.valueOf(d).stripTrailingZeros().toPlainString()).append("</double>");
+        }
+        else if(val instanceof Boolean)
+        {
+            sb.append("<boolean>").append(((Boolean)val).booleanValue() ? '1' : '0').append("</boolean>");
+        }
+        else if(val instanceof Map)
+        {
+            sb.append("<struct>");
+            for(Iterator<? extends Map.Entry<?, ?>> i=((Map<?, ?>)val).entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry<?, ?> e=i.next();
+                sb.append("<member><name>");
+                escape(sb, String.valueOf(e.getKey()));
+                sb.append("</name>");
+                encodeValue(sb, e.getValue());
+                sb.append("</member>");
+            }
+            sb.append("</struct>");
+        }
+        else if(val instanceof Object[] || val instanceof List)
+        {
+            Object[] elements=val instanceof List ? ((List<?>)val).toArray() : (Object[])val;
+            sb.append("<array><data>");
+            for(int i=0; i<elements.length; i++)
+                encodeValue(sb, elements[i]);
+            sb.append("</data></array>");
+        }
+        else
+        {
+            throw new XmlRpcException("Unsupported parameter type "+(val == null ? "null" : val.getClass().getName()));
+        }
+        sb.append("</value>");
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for(int i=0; i<s.length(); i++)
+        {
+            char c=s.charAt(i);
+            if(c == '<')
+                sb.append("&lt;");
+            else if(c == '>')
+                sb.append("&gt;");
+            else if(c == '&')
+                sb.append("&amp;");
+            else
+                sb.append(c);
+        }
+    }
+
+    /**
+     * Counts the bytes of a response, for call statistics
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count=0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b=super.read();
+            if(b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n=super.read(b, off, len);
+            if(n > 0)
+                count+=n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * SummaryPyramid.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.Arrays;
+
+/**
+ * Multi-resolution summary of a channel for long window displays.  Samples
+ * are grouped into buckets at power-of-two scales: a level 0 bucket holds
+ * one sample, a level 1 bucket two, a level l bucket 2^l.  Each bucket keeps
+ * the minimum, maximum, sum and sum of squares of its samples, from which
+ * the mean and RMS follow.  Buckets are completed as samples are appended
+ * and merged into the next level up, so appending costs a constant amount
+ * of work per sample on average.
+ *
+ * Every level remembers its newest kBucketsPerLevel buckets.  A query for a
+ * window of W samples in n columns is answered from the level whose
+ * buckets hold about W/n samples, so it takes time proportional to n no
+ * matter how long the window is.
+ *
+ * Samples are numbered from 0 in the order they were appended.  All methods
+ * are synchronized; one thread appends while another queries.
+ */
+public class SummaryPyramid {
+    /** Number of buckets remembered at each level */
+    public static final int kBucketsPerLevel=1024;
+
+    /** Largest number of columns a query may ask for */
+    public static final int kMaxColumns=kBucketsPerLevel/2;
+
+    // level kLevels-1 has buckets of 2^(kLevels-1) samples
+    private static final int kLevels=20;
+
+    private final double[][] min=new double[kLevels][kBucketsPerLevel];
+    private final double[][] max=new double[kLevels][kBucketsPerLevel];
+    private final double[][] sum=new double[kLevels][kBucketsPerLevel];
+    private final double[][] sumSq=new double[kLevels][kBucketsPerLevel];
+    private final long[] completed=new long[kLevels];  // buckets completed per level
+
+    // partially filled bucket of each level above 0
+    private final double[] partMin=new double[kLevels];
+    private final double[] partMax=new double[kLevels];
+    private final double[] partSum=new double[kLevels];
+    private final double[] partSumSq=new double[kLevels];
+    private final boolean[] partHalf=new boolean[kLevels];
+
+    public SummaryPyramid() {
+        reset();
+    }
+
+    /**
+     * Get the number of samples appended since the pyramid was created or
+     * reset
+     */
+    public synchronized long numSamples() {
+        return completed[0];
+    }
+
+    /**
+     * Add samples to the summary
+     *
+     * @param src   sample values
+     * @param off   offset of the first sample in src
+     * @param n     number of samples
+     */
+    public synchronized void append(double[] src, int off, int n) {
+        for(int i=0; i<n; i++)
+        {
+            double x=src[off+i];
+            complete(0, x, x, x, x*x);
+        }
+    }
+
+    /**
+     * Summarize the newest samples
+     *
+     * @param window    number of samples to cover
+     * @param columns   number of columns to divide the window into, at most
+     *                  kMaxColumns
+     * @param dstMin    per column minimum
+     * @param dstMax    per column maximum
+     * @param dstMean   per column mean
+     * @param dstRMS    per column root mean square
+     * @see #query(long, long, int, double[], double[], double[], double[])
+     */
+    public synchronized void queryLatest(long window, int columns, double[] dstMin, double[] dstMax, double[] dstMean, double[] dstRMS) {
+        int level=levelFor(window, columns);
+        long end=completed[level]<<level;
+        query(end-window, end, columns, dstMin, dstMax, dstMean, dstRMS);
+    }
+
+    /**
+     * Summarize a range of samples.  Column boundaries are rounded to the
+     * buckets of the level used, which holds fewer samples than a column.
+     * Columns that fall outside the remembered history, or after the newest
+     * completed bucket of that level, are set to NaN.
+     *
+     * @param start     index of the first sample of the window
+     * @param end       index after the last sample of the window
+     * @param columns   number of columns to divide the window into, at most
+     *                  kMaxColumns
+     * @param dstMin    per column minimum
+     * @param dstMax    per column maximum
+     * @param dstMean   per column mean
+     * @param dstRMS    per column root mean square
+     */
+    public synchronized void query(long start, long end, int columns, double[] dstMin, double[] dstMax, double[] dstMean, double[] dstRMS) {
+        if(columns < 1 || columns > kMaxColumns)
+            throw new IllegalArgumentException("Invalid number of columns "+columns);
+        if(end < start)
+            throw new IllegalArgumentException("Empty window");
+
+        int level=levelFor(end-start, columns);
+        double first=(double)start/(1L<<level);
+        double perColumn=(double)(end-start)/(1L<<level)/columns;
+        long oldest=Math.max(0, completed[level]-kBucketsPerLevel);
+        for(int c=0; c<columns; c++)
+        {
+            long lo=(long)Math.floor(first+c*perColumn);
+            long hi=Math.max(lo+1, (long)Math.floor(first+(c+1)*perColumn));
+            if(lo < oldest || hi > completed[level])
+            {
+                dstMin[c]=dstMax[c]=dstMean[c]=dstRMS[c]=Double.NaN;
+                continue;
+            }
+
+            double mn=Double.POSITIVE_INFINITY;
+            double mx=Double.NEGATIVE_INFINITY;
+            double s=0;
+            double sq=0;
+            for(long b=lo; b<hi; b++)
+            {
+                int slot=(int)(b%kBucketsPerLevel);
+                mn=Math.min(mn, min[level][slot]);
+                mx=Math.max(mx, max[level][slot]);
+                s+=sum[level][slot];
+                sq+=sumSq[level][slot];
+            }
+            double count=(double)(hi-lo)*(1L<<level);
+            dstMin[c]=mn;
+            dstMax[c]=mx;
+            dstMean[c]=s/count;
+            dstRMS[c]=Math.sqrt(sq/count);
+        }
+    }
+
+    /**
+     * Forget all samples
+     */
+    public synchronized void reset() {
+        Arrays.fill(completed, 0);
+        Arrays.fill(partHalf, false);
+    }
+
+    /**
+     * Store a completed bucket and fold it into the level above
+     */
+    private void complete(int level, double mn, double mx, double s, double sq) {
+        while(true)
+        {
+            int slot=(int)(completed[level]%kBucketsPerLevel);
+            min[level][slot]=mn;
+            max[level][slot]=mx;
+            sum[level][slot]=s;
+            sumSq[level][slot]=sq;
+            completed[level]++;
+
+            int up=level+1;
+            if(up == kLevels)
+                return;
+            if(!partHalf[up])
+            {
+                partMin[up]=mn;
+                partMax[up]=mx;
+                partSum[up]=s;
+                partSumSq[up]=sq;
+                partHalf[up]=true;
+                return;
+            }
+
+            // the second half completes the bucket above
+            partHalf[up]=false;
+            mn=Math.min(mn, partMin[up]);
+            mx=Math.max(mx, partMax[up]);
+            s+=partSum[up];
+            sq+=partSumSq[up];
+            level=up;
+        }
+    }
+
+    /**
+     * Choose the coarsest level whose buckets are no larger than a column
+     */
+    private static int levelFor(long window, int columns) {
+        long perColumn=Math.max(1, window/Math.max(columns, 1));
+        int level=63-Long.numberOfLeadingZeros(perColumn);
+        return Math.min(level, kLevels-1);
+    }
+}
@@ -8,14 +8,11 @@
 package com.biopac.ndt;
 import java.net.DatagramSocket;
 import java.net.DatagramPacket;
-import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
 import java.io.InterruptedIOException;
-import java.io.InputStream;
 import java.io.IOException;
-import java.io.DataInputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -25,53 +22,57 @@ import java.util.List;
  * with big endian double valued data type transfer streams.
  *
  * All of the channel data will be retained in memory for the lifetime of
- * this object.
+ * this object unless the sample buffer is given a budget.  Datagrams cannot
+ * be held back, so the SampleBuffer.kPause policy drops the oldest samples
+ * on this socket.
+ *
+ * Each datagram carries the channel sample number of its first sample,
+ * which becomes the absolute index of the samples in the sample buffer.
+ * Late or duplicated datagrams are discarded.  A gap left by lost datagrams
+ * is counted as dropped samples in the channel statistics rather than made
+ * up: the samples after it start a new index run in the sample buffer at
+ * the index of the next datagram, see SampleBuffer.jumpTo().  Samples
+ * buffered before the gap stay readable.
+ *
+ * Clients must call close() (or stopProcessing()) when they are done with
+ * the socket so that the port is released and the receive thread is joined.
+ * With setVirtualThreads() it is a virtual thread where the runtime has
+ * them, see ReceiveThreads.
  *
  * @author  edwardp
  * @version 
  */
-public class UDPChannelDataSocket {
+public class UDPChannelDataSocket implements AutoCloseable {
     private int dataConnectionPort;
-    private boolean bRunThreads=true;
-    private List data;
-    
-    /**
-     * The listening thread will listen for incoming data connections and
-     * spawn off additional threads to handle incoming data.
-     */
-    private class ListeningThread extends Thread {
-        /**
-         * Listen for incoming data connections and dispatch additional
-         * handler threads as desired.
-         */
-        public void run() {
-            try
-            {
-                DatagramSocket theSock=new DatagramSocket(dataConnectionPort);
-		(new DataProcessingThread(theSock)).start();
-            }
-            catch (IOException e)
-            {
-                System.err.println("Error in listening thread: "+e);
-            }
-        }
-    }
+    private volatile boolean bRunThreads=false;
+    private final SampleBuffer data=new SampleBuffer();
+    private final ChannelStats stats=new ChannelStats(data);
+    private DatagramSocket dataSocket=null;
+    private Thread processingThread=null;
+    private volatile boolean virtualThreads=ReceiveThreads.isVirtualDefault();
+    private volatile Decimator decimator=null;
+    private Decimator activeDecimator=null;     // decimator the receive path uses
+    private volatile SummaryPyramid summary=null;
+    private volatile FeatureEngine features=null;
+    private volatile SamplePublisher publisher=null;
+    private final SampleListeners listeners=new SampleListeners();
+    private long nextSample=0;  // channel sample number of the next stored sample
     
     /**
      * Handle all incoming data on the connection while it is still alive
      * and copy it into our internal buffers
      */
-    private class DataProcessingThread extends Thread {
+    private class DataProcessor implements Runnable {
         private DatagramSocket s;
         
         /**
-         * Construct a new data processing thread to buffer data as it is
-         * received over a TCP data connection
+         * Construct a new data processor to buffer data as it is received
+         * on a UDP socket
          *
          * @param sock  the socket to which the AcqKnowledge server is
-         *              connected
+         *              sending
          */
-        public DataProcessingThread(DatagramSocket sock) {
+        public DataProcessor(DatagramSocket sock) {
             s=sock;
         }
         
@@ -85,28 +86,178 @@ public class UDPChannelDataSocket {
 		s.setSoTimeout(5000);	// use 2 seconds...if we receive no data after 5 seconds assume server stopped sending data
 		byte[] readBuf=new byte[512];
                 DatagramPacket dataBuf=new DatagramPacket(readBuf, 512);
+                ByteBuffer packet=ByteBuffer.wrap(readBuf);
+                double[] samples=new double[readBuf.length/8];
+                long expectedSample=-1;
                 while(bRunThreads)
                 {
+                    dataBuf.setLength(readBuf.length);
                     s.receive(dataBuf);
-                    ByteArrayInputStream byteStream=new ByteArrayInputStream(dataBuf.getData());
-                    DataInputStream dataStream=new DataInputStream(byteStream);
-                    int startSample=dataStream.readInt(); // skip over sample number at start of packet
-                    int numBytes=dataStream.readInt(); // get number of bytes in data section
-                    for(int i=0; i<numBytes/8; i++)
-                        data.add(new Double(dataStream.readDouble()));
+                    packet.limit(dataBuf.getLength());
+                    int numSamples=decodePacket(packet, samples);
+                    if(numSamples == 0)
+                    {
+                        stats.recordReceived(dataBuf.getLength(), 0);
+                        continue;
+                    }
+                    
+                    long startSample=packet.getInt(0)&0xffffffffL;
+                    if(expectedSample < 0)
+                    {
+                        restartAt(startSample);
+                    }
+                    else if(startSample < expectedSample)
+                    {
+                        // arrived after a later datagram, its place in the
+                        // buffer is already taken
+                        stats.recordReceived(dataBuf.getLength(), 0);
+                        continue;
+                    }
+                    else if(startSample > expectedSample)
+                    {
+                        // a jump in the packet sample number means
+                        // datagrams were lost on the way
+                        stats.recordDropped(startSample-expectedSample);
+                        jumpTo(startSample);
+                    }
+                    
+                    store(samples, numSamples);
+                    stats.recordReceived(dataBuf.getLength(), numSamples);
+                    expectedSample=startSample+numSamples;
                 }
-                s.close();
             }
             catch (InterruptedIOException ioe)
             {
                 // server closed the stream.  This is normal at end of
                 // acquisition, so no need to perform special handling.
             }
+            catch (SocketException e)
+            {
+                // the socket was closed by stopProcessing() to unblock
+                // receive, this is the normal way out
+                if(bRunThreads)
+                    System.err.println("Exception in data processing thread (UDP): "+e);
+            }
             catch (IOException e)
             {
                 System.err.println("Exception in data processing thread (UDP): "+e);
             }
+            
+            s.close();
+        }
+    }
+    
+    /**
+     * Restart the sample buffer so that the next stored sample has a given
+     * channel sample number
+     */
+    private void restartAt(long sample) {
+        SummaryPyramid p=summary;
+        if(p != null)
+            p.reset();
+        FeatureEngine engine=features;
+        if(engine != null)
+            engine.reset();
+        nextSample=sample;
+        Decimator d=decimator;
+        activeDecimator=d;
+        if(d == null)
+        {
+            data.restartAt(sample);
+            return;
+        }
+        d.reset();
+        data.restartAt((long)(sample*d.getOutputRatio()));
+    }
+    
+    /**
+     * Continue the stream after a gap so that the next stored sample has a
+     * given channel sample number, keeping the buffered samples
+     */
+    private void jumpTo(long sample) {
+        nextSample=sample;
+        Decimator d=activeDecimator;
+        if(d == null)
+        {
+            data.jumpTo(sample);
+            return;
+        }
+        // a block must not average across the gap
+        d.reset();
+        data.jumpTo(Math.max(data.getNextIndex(), (long)(sample*d.getOutputRatio())));
+    }
+    
+    /**
+     * Switch the receive path over to a decimator attached while streaming
+     * and restart the sample buffer and summary at the rate it delivers, so
+     * that one buffer never mixes indexes of two rates
+     */
+    private void changeDecimator(Decimator d) {
+        activeDecimator=d;
+        SummaryPyramid p=summary;
+        if(p != null)
+            p.reset();
+        if(d == null)
+        {
+            data.restartAt(nextSample);
+            return;
+        }
+        d.reset();
+        data.restartAt((long)(nextSample*d.getOutputRatio()));
+    }
+    
+    /**
+     * Hand received samples to the listeners, extract features from,
+     * publish, buffer and summarize them, decimating them before buffering
+     * if a decimator is attached
+     */
+    private void store(double[] samples, int n) {
+        Decimator d=decimator;
+        if(d != activeDecimator)
+            changeDecimator(d);
+        
+        long first=nextSample;
+        nextSample+=n;
+        listeners.onSamples(samples, 0, n, first, dataConnectionPort);
+        
+        FeatureEngine engine=features;
+        if(engine != null)
+            engine.process(samples, 0, n);
+        SamplePublisher pub=publisher;
+        if(pub != null)
+            pub.onSamples(samples, 0, n, first);
+        
+        if(d != null)
+        {
+            n=d.process(samples, 0, n);
+            samples=d.getOutput();
         }
+        data.append(samples, 0, n);
+        SummaryPyramid p=summary;
+        if(p != null)
+            p.append(samples, 0, n);
+    }
+    
+    /**
+     * Decode the samples of a data packet.  A packet starts with the big
+     * endian sample number of its first sample and the number of data bytes
+     * that follow, then holds big endian doubles.
+     *
+     * @param packet    packet contents between position 0 and the limit
+     * @param samples   destination for the decoded samples, large enough to
+     *                  hold every sample that fits in the packet
+     * @return number of decoded samples
+     */
+    static int decodePacket(ByteBuffer packet, double[] samples) {
+        if(packet.limit() < 8)
+            return 0;
+        
+        // the sample number at the start of the packet is skipped over
+        int numBytes=Math.min(packet.getInt(4), packet.limit()-8); // get number of bytes in data section
+        int numSamples=numBytes/8;
+        for(int i=0; i<numSamples; i++)
+            samples[i]=packet.getDouble(8+i*8);
+        return numSamples;
     }
     
     /**
@@ -118,22 +269,201 @@ public class UDPChannelDataSocket {
         dataConnectionPort=port;   
     }
     
+    public int getPort() {
+        return dataConnectionPort;
+    }
+    
+    /**
+     * Choose whether the receive loop runs on a virtual thread, starting
+     * with the next startProcessing().  Runtimes without virtual threads use
+     * a platform thread either way.
+     */
+    public void setVirtualThreads(boolean virtual) {
+        virtualThreads=virtual;
+    }
+    
+    public boolean usesVirtualThreads() {
+        return virtualThreads && ReceiveThreads.isVirtualAvailable();
+    }
+    
+    /**
+     * Get the throughput figures of this socket's channel, including the
+     * number of samples lost in dropped datagrams
+     *
+     * @return channel statistics
+     */
+    public ChannelStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Get the store that received samples are buffered into
+     *
+     * @return sample buffer of this socket
+     */
+    public SampleBuffer getSampleBuffer() {
+        return data;
+    }
+    
+    /**
+     * Reduce the sample rate of the channel before samples are buffered.
+     * The decimator runs on the receive thread.  Sample indexes then count
+     * decimated samples.  On a live stream the decimator takes over with the
+     * next datagram: the sample buffer restarts at the index of that
+     * datagram at the new rate, dropping the samples buffered at the old
+     * one, and the summary restarts with it.
+     *
+     * @param d decimator to attach, or null to buffer every sample
+     */
+    public void setDecimator(Decimator d) {
+        decimator=d;
+    }
+    
+    public Decimator getDecimator() {
+        return decimator;
+    }
+    
+    /**
+     * Keep a min/max/mean/RMS summary of the buffered samples for long
+     * window displays.  The summary is fed from the receive thread after
+     * decimation and restarts with the sample buffer.
+     *
+     * @param p summary to feed, or null to stop
+     */
+    public void setSummary(SummaryPyramid p) {
+        summary=p;
+    }
+    
+    public SummaryPyramid getSummary() {
+        return summary;
+    }
+    
+    /**
+     * Compute features of the channel on the receive thread.  The engine is
+     * fed every received sample, before decimation, and restarts with the
+     * sample buffer.
+     *
+     * @param e feature engine to feed, or null to stop
+     */
+    public void setFeatureEngine(FeatureEngine e) {
+        features=e;
+    }
+    
+    public FeatureEngine getFeatureEngine() {
+        return features;
+    }
+    
+    /**
+     * Publish every received sample, before decimation, to reactive
+     * subscribers.  Batches are numbered by channel sample number.
+     *
+     * @param p publisher to feed, or null to stop.  The previous publisher,
+     *          if any, is not closed.
+     */
+    public void setPublisher(SamplePublisher p) {
+        publisher=p;
+    }
+    
+    public SamplePublisher getPublisher() {
+        return publisher;
+    }
+    
+    /**
+     * Add a callback for samples as they are decoded.  Listeners run on the
+     * receive thread before the samples are decimated and buffered.
+     *
+     * @param l listener to add
+     * @see SampleListener
+     */
+    public void addSampleListener(SampleListener l) {
+        listeners.add(l);
+    }
+    
+    /**
+     * Remove a listener added with addSampleListener()
+     *
+     * @param l listener to remove
+     * @return true if the listener was found
+     */
+    public boolean removeSampleListener(SampleListener l) {
+        return listeners.remove(l);
+    }
+    
+    public synchronized boolean isProcessing() {
+        return bRunThreads;
+    }
+    
     /**
      * Start listening for data connections from the AcqKnowledge server and
-     * spawn the threads used for data processing.
+     * spawn the threads used for data processing.  The port is bound before
+     * this returns.
+     *
+     * @throws IOException if the port could not be bound
      */
-    public void startProcessing() {
+    public synchronized void startProcessing() throws IOException {
+        if(bRunThreads)
+            stopProcessing();
+        
+        DatagramSocket sock=new DatagramSocket(null);
+        sock.setReuseAddress(true);
+        try
+        {
+            sock.bind(new InetSocketAddress(dataConnectionPort));
+        }
+        catch (IOException e)
+        {
+            sock.close();
+            throw e;
+        }
+        
         bRunThreads=true;
-        data=Collections.synchronizedList(new ArrayList(8196));
-        (new ListeningThread()).start();
+        data.clear();
+        dataSocket=sock;
+        processingThread=ReceiveThreads.newThread(new DataProcessor(sock), "UDPChannelDataSocket data "+dataConnectionPort, virtualThreads);
+        processingThread.start();
     }
     
     /**
      * Stop processing any incoming data or connections.  Data that was
-     * buffered prior to this call may still be accessed.
+     * buffered prior to this call may still be accessed.  Blocks until the
+     * receive thread has exited and the port is unbound.
      */
-    public void stopProcessing() {
+    public synchronized void stopProcessing() {
+        if(!bRunThreads)
+            return;
+        
         bRunThreads=false;
+        
+        // closing the socket unblocks receive() in the processing thread
+        
+        dataSocket.close();
+        dataSocket=null;
+        
+        boolean interrupted=false;
+        while(processingThread.isAlive())
+        {
+            try
+            {
+                processingThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted=true;
+            }
+        }
+        processingThread=null;
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * Stop our thread and unbind our port.  Data that was buffered prior to
+     * this call is released.
+     */
+    public synchronized void close() {
+        stopProcessing();
+        data.releaseSpill();
+        data.clear();
     }
     
     /**
@@ -143,7 +473,7 @@ public class UDPChannelDataSocket {
      * @return number of buffered samples
      */
     public long numSamples() {
-        return(data.size());
+        return(data.numSamples());
     }
     
     /**
@@ -154,6 +484,6 @@ public class UDPChannelDataSocket {
      * @throws IndexOutOfBoundsException
      */
     public double getSample(int index) throws IndexOutOfBoundsException {
-        return(((Double)data.get(index)).doubleValue());
+        return(data.getSample(index));
     }
 }
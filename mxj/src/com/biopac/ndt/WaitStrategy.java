@@ -0,0 +1,136 @@
+/*
+ * WaitStrategy.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a consumer waits in SampleBuffer.awaitSamples() for the receive
+ * thread to append samples, trading wake up latency against CPU use:
+ *
+ *  kBlock waits on the buffer's monitor and is woken by the append.  It
+ *      uses no CPU while waiting but pays for a thread wake up.
+ *  kPark spins briefly, then parks with LockSupport.parkNanos() for
+ *      doubling intervals up to kMaxParkNanos.  The appending thread does
+ *      nothing for it; samples are seen within the park interval, which
+ *      the OS rounds up (to about 50 microseconds on Linux).
+ *  kSpin checks continuously and sees samples almost at once, at the cost
+ *      of a whole core; only for consumers with a dedicated core.
+ *
+ * Strategies other than kBlock watch a counter the buffer bumps without
+ * its lock, so waiting does not contend with the appending thread.
+ */
+public abstract class WaitStrategy {
+    /** Longest park of kPark between checks */
+    public static final long kMaxParkNanos=1000000;
+
+    private static final int kParkSpins=100;
+
+    public static final WaitStrategy kBlock=new WaitStrategy("block") {
+        boolean await(SampleBuffer buffer, int n, long deadline) throws InterruptedException {
+            return buffer.awaitSamplesBlocking(n, deadline);
+        }
+    };
+
+    public static final WaitStrategy kPark=new WaitStrategy("park") {
+        boolean await(SampleBuffer buffer, int n, long deadline) throws InterruptedException {
+            long seen=buffer.getReadableSequence();
+            if(buffer.numSamples() >= n)
+                return true;
+            int spins=0;
+            long park=1000;
+            while(true)
+            {
+                long sequence=buffer.getReadableSequence();
+                if(sequence != seen)
+                {
+                    seen=sequence;
+                    if(buffer.numSamples() >= n)
+                        return true;
+                    spins=0;
+                    park=1000;
+                }
+                long left=deadline-System.nanoTime();
+                if(left <= 0)
+                    return false;
+                if(spins < kParkSpins)
+                {
+                    spins++;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                LockSupport.parkNanos(Math.min(park, left));
+                park=Math.min(2*park, kMaxParkNanos);
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+    };
+
+    public static final WaitStrategy kSpin=new WaitStrategy("spin") {
+        boolean await(SampleBuffer buffer, int n, long deadline) throws InterruptedException {
+            long seen=buffer.getReadableSequence();
+            if(buffer.numSamples() >= n)
+                return true;
+            while(true)
+            {
+                long sequence=buffer.getReadableSequence();
+                if(sequence != seen)
+                {
+                    seen=sequence;
+                    if(buffer.numSamples() >= n)
+                        return true;
+                }
+                if(System.nanoTime()-deadline >= 0)
+                    return false;
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+                Thread.onSpinWait();
+            }
+        }
+    };
+
+    private static final WaitStrategy[] kStrategies={kBlock, kPark, kSpin};
+
+    private final String name;
+
+    private WaitStrategy(String strategyName) {
+        name=strategyName;
+    }
+
+    /**
+     * Look up a strategy by name
+     *
+     * @param strategyName  "block", "park" or "spin"
+     * @return the strategy, null if the name is unknown
+     */
+    public static WaitStrategy forName(String strategyName) {
+        for(int i=0; i<kStrategies.length; i++)
+        {
+            if(kStrategies[i].name.equals(strategyName))
+                return kStrategies[i];
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Wait until the buffer holds at least n samples
+     *
+     * @param deadline  System.nanoTime() at which to give up
+     * @return true if the samples are there, false on timeout
+     */
+    abstract boolean await(SampleBuffer buffer, int n, long deadline) throws InterruptedException;
+}
@@ -0,0 +1,94 @@
+/*
+ * WorkerPool.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of daemon threads that run per-channel processing, such as
+ * frame staging and spectrum transforms, off the receive threads and off
+ * the client's thread.  Work for one channel is submitted through a
+ * ChannelTask, which keeps it serial, so the pool spreads channels across
+ * cores without any channel's work running twice at once.
+ *
+ * @see ChannelTask
+ */
+public class WorkerPool implements Executor, AutoCloseable {
+    // how long close() waits for running work to finish
+    private static final long kCloseTimeoutMillis=2000;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * Start a pool
+     *
+     * @param numThreads    number of worker threads, at least 1
+     * @param name          prefix of the worker thread names
+     */
+    public WorkerPool(int numThreads, final String name) {
+        if(numThreads < 1)
+            throw new IllegalArgumentException("Invalid number of threads "+numThreads);
+        threads=numThreads;
+        executor=Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger count=new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t=new Thread(r, name+" worker "+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start a pool with one thread per available processor
+     *
+     * @param name  prefix of the worker thread names
+     */
+    public WorkerPool(String name) {
+        this(Runtime.getRuntime().availableProcessors(), name);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Run a task on one of the workers
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the pool
+     *  has been closed
+     */
+    public void execute(Runnable r) {
+        executor.execute(r);
+    }
+
+    /**
+     * Stop accepting work and wait briefly for running work to finish
+     */
+    public void close() {
+        executor.shutdown();
+        boolean interrupted=false;
+        try
+        {
+            executor.awaitTermination(kCloseTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            interrupted=true;
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * XmlRpcValueReader.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull reader for XML-RPC values on a StAX stream.  Values are read in
+ * document order straight into primitives, so a decoder can fill its
+ * result without building the Object[]/Map tree of a generic client.
+ *
+ * Every value starts with beginValue(), which returns its type tag, and is
+ * then consumed with one of the read methods, or with nextElement() and
+ * nextMember() for arrays and structs, or skipped with skipValue():
+ *
+ * <pre>
+ * in.beginValue();                     // "array"
+ * while(in.nextElement())
+ * {
+ *     in.beginValue();                 // "struct"
+ *     String name;
+ *     while((name=in.nextMember()) != null)
+ *     {
+ *         if(name.equals("value") &amp;&amp; in.beginValue().equals("double"))
+ *             v=in.readDouble();
+ *         else
+ *             in.skipValue();
+ *     }
+ * }
+ * </pre>
+ */
+public class XmlRpcValueReader {
+    public static final String kString="string";
+    public static final String kDouble="double";
+    public static final String kInt="int";
+    public static final String kI4="i4";
+    public static final String kBoolean="boolean";
+    public static final String kArray="array";
+    public static final String kStruct="struct";
+
+    private static final long kNotAnInt=Long.MIN_VALUE;
+
+    private final XMLStreamReader reader;
+    private boolean atValue=false;  // positioned on a <value> start tag
+    private String type=null;       // type of the value begun
+    private String untyped=null;    // text of a value without type tag
+
+    public XmlRpcValueReader(XMLStreamReader r) {
+        reader=r;
+    }
+
+    /**
+     * Enter the next value
+     *
+     * @return its type tag, kString for a value without one
+     */
+    public String beginValue() throws XMLStreamException {
+        if(!atValue)
+            requireStart("value");
+        atValue=false;
+        untyped=null;
+
+        StringBuilder text=null;
+        while(true)
+        {
+            int e=reader.next();
+            if(e == XMLStreamConstants.START_ELEMENT)
+            {
+                type=reader.getLocalName();
+                return type;
+            }
+            if(e == XMLStreamConstants.END_ELEMENT)
+            {
+                untyped=text == null ? "" : text.toString();
+                type=kString;
+                return type;
+            }
+            if(e == XMLStreamConstants.CHARACTERS || e == XMLStreamConstants.CDATA || e == XMLStreamConstants.SPACE)
+            {
+                if(text == null)
+                    text=new StringBuilder();
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+    }
+
+    public double readDouble() throws XMLStreamException {
+        return Double.parseDouble(readScalar().trim());
+    }
+
+    /**
+     * Read an int or i4 value
+     */
+    public int readInt() throws XMLStreamException {
+        if(untyped != null || kArray.equals(type) || kStruct.equals(type))
+            return Integer.parseInt(readScalar().trim());
+
+        // parse straight from the parser's buffer, which holds the whole
+        // text when the reader is coalescing
+        int e=reader.next();
+        String text;
+        if(e == XMLStreamConstants.CHARACTERS)
+        {
+            long value=parseInt(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            text=value == kNotAnInt ? reader.getText() : Long.toString(value);
+            e=reader.next();
+            if(e == XMLStreamConstants.END_ELEMENT && value != kNotAnInt)
+            {
+                requireEnd("value");
+                return (int)value;
+            }
+        }
+        else
+        {
+            text="";
+        }
+        text=e == XMLStreamConstants.END_ELEMENT ? text : finishText(e, text);
+        requireEnd("value");
+        return Integer.parseInt(text.trim());
+    }
+
+    /**
+     * Parse a decimal int surrounded by optional white space
+     *
+     * @return the value, or kNotAnInt if the text is anything else
+     */
+    private static long parseInt(char[] chars, int off, int len) {
+        int end=off+len;
+        int i=off;
+        while(i < end && Character.isWhitespace(chars[i]))
+            i++;
+        boolean negative=false;
+        if(i < end && (chars[i] == '-' || chars[i] == '+'))
+            negative=chars[i++] == '-';
+        int first=i;
+        long value=0;
+        for(; i < end && chars[i] >= '0' && chars[i] <= '9' && i-first < 11; i++)
+            value=value*10+(chars[i]-'0');
+        if(i == first)
+            return kNotAnInt;
+        while(i < end && Character.isWhitespace(chars[i]))
+            i++;
+        if(negative)
+            value=-value;
+        if(i < end || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            return kNotAnInt;
+        return value;
+    }
+
+    public boolean readBoolean() throws XMLStreamException {
+        return readScalar().trim().equals("1");
+    }
+
+    public String readString() throws XMLStreamException {
+        return readScalar();
+    }
+
+    /**
+     * Move to the next element of the array value begun
+     *
+     * @return false, having consumed the end of the array, if there are no
+     *  more elements
+     */
+    public boolean nextElement() throws XMLStreamException {
+        if(kArray.equals(type))
+        {
+            // first element: step into <data>
+            requireStart("data");
+            type=null;
+        }
+        int e=reader.nextTag();
+        if(e == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("value"))
+        {
+            atValue=true;
+            return true;
+        }
+        requireEndHere("data");
+        requireEnd("array");
+        requireEnd("value");
+        return false;
+    }
+
+    /**
+     * Move to the next member of the struct value begun
+     *
+     * @return the member's name, positioned before its value, or null,
+     *  having consumed the end of the struct, if there are no more members
+     */
+    public String nextMember() throws XMLStreamException {
+        int e=reader.nextTag();
+        if(e == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("member"))
+            e=reader.nextTag();
+        if(e == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("member"))
+        {
+            requireStart("name");
+            String name=elementText().trim();
+            requireStart("value");
+            atValue=true;
+            return name;
+        }
+        requireEndHere("struct");
+        requireEnd("value");
+        return null;
+    }
+
+    /**
+     * Consume the value begun without decoding it
+     */
+    public void skipValue() throws XMLStreamException {
+        if(kArray.equals(type))
+        {
+            while(nextElement())
+            {
+                beginValue();
+                skipValue();
+            }
+        }
+        else if(kStruct.equals(type))
+        {
+            while(nextMember() != null)
+            {
+                beginValue();
+                skipValue();
+            }
+        }
+        else
+        {
+            readScalar();
+        }
+    }
+
+    /**
+     * Read the text of a scalar value and consume its end tags
+     */
+    private String readScalar() throws XMLStreamException {
+        if(untyped != null)
+        {
+            String s=untyped;
+            untyped=null;
+            return s;
+        }
+        if(kArray.equals(type) || kStruct.equals(type))
+            throw new XMLStreamException("Expected a scalar, got "+type, reader.getLocation());
+        String s=elementText();
+        requireEnd("value");
+        return s;
+    }
+
+    /**
+     * Read the text of the current text-only element and consume its end
+     * tag, like XMLStreamReader.getElementText() but without copying the
+     * usual single run of characters through a StringBuilder
+     */
+    private String elementText() throws XMLStreamException {
+        int e=reader.next();
+        if(e == XMLStreamConstants.END_ELEMENT)
+            return "";
+        if(e != XMLStreamConstants.CHARACTERS)
+            return finishText(e, null);
+        String s=reader.getText();
+        e=reader.next();
+        return e == XMLStreamConstants.END_ELEMENT ? s : finishText(e, s);
+    }
+
+    /**
+     * Collect the rest of an element's text, starting at event e
+     */
+    private String finishText(int e, String head) throws XMLStreamException {
+        StringBuilder text=new StringBuilder(head == null ? "" : head);
+        while(e != XMLStreamConstants.END_ELEMENT)
+        {
+            if(e == XMLStreamConstants.CHARACTERS || e == XMLStreamConstants.CDATA || e == XMLStreamConstants.SPACE || e == XMLStreamConstants.ENTITY_REFERENCE)
+                text.append(reader.getText());
+            else if(e != XMLStreamConstants.COMMENT && e != XMLStreamConstants.PROCESSING_INSTRUCTION)
+                throw new XMLStreamException("Expected text in "+reader.getLocalName(), reader.getLocation());
+            e=reader.next();
+        }
+        return text.toString();
+    }
+
+    /**
+     * Advance to a start tag
+     */
+    void requireStart(String name) throws XMLStreamException {
+        int e=reader.nextTag();
+        if(e != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals(name))
+            throw new XMLStreamException("Expected <"+name+">", reader.getLocation());
+    }
+
+    /**
+     * Advance to an end tag
+     */
+    void requireEnd(String name) throws XMLStreamException {
+        reader.nextTag();
+        requireEndHere(name);
+    }
+
+    private void requireEndHere(String name) throws XMLStreamException {
+        if(reader.getEventType() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals(name))
+            throw new XMLStreamException("Expected </"+name+">", reader.getLocation());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * ZeroCrossingRate.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt;
+
+import java.util.Arrays;
+
+/**
+ * Rate at which a channel crosses a level, counted over a sliding window.
+ * A hysteresis band around the level keeps noise from being counted as
+ * crossings.  Half the crossing rate of a respiration signal around its
+ * resting level is the breathing rate.
+ *
+ * Values: 0 crossings per second.
+ */
+public class ZeroCrossingRate implements FeatureExtractor {
+    private final double rate;
+    private final double level;
+    private final double hysteresis;
+    private final boolean[] crossed;    // whether each windowed sample crossed
+    private int pos=0;
+    private int count=0;
+    private int crossings=0;
+    private int side=0;                 // -1 below the band, 1 above, 0 unknown
+
+    /**
+     * Create a crossing counter
+     *
+     * @param channelRate   rate of the fed samples in Hertz
+     * @param windowSec     length of the counting window in seconds
+     * @param crossLevel    level whose crossings are counted
+     * @param band          half width of the hysteresis band around the
+     *                      level, 0 for none
+     */
+    public ZeroCrossingRate(double channelRate, double windowSec, double crossLevel, double band) {
+        int length=(int)Math.round(channelRate*windowSec);
+        if(length < 1)
+            throw new IllegalArgumentException("Window too short");
+        rate=channelRate;
+        level=crossLevel;
+        hysteresis=Math.abs(band);
+        crossed=new boolean[length];
+    }
+
+    public String getName() {
+        return "zcr";
+    }
+
+    public int numValues() {
+        return 1;
+    }
+
+    public void process(double[] samples, int off, int n) {
+        for(int i=0; i<n; i++)
+        {
+            double x=samples[off+i]-level;
+            boolean c=false;
+            if(x > hysteresis)
+            {
+                c=side < 0;
+                side=1;
+            }
+            else if(x < -hysteresis)
+            {
+                c=side > 0;
+                side=-1;
+            }
+
+            if(count == crossed.length)
+            {
+                if(crossed[pos])
+                    crossings--;
+            }
+            else
+            {
+                count++;
+            }
+            crossed[pos]=c;
+            if(c)
+                crossings++;
+            pos=(pos+1)%crossed.length;
+        }
+    }
+
+    public double getValue(int index) {
+        return count == 0 ? Double.NaN : crossings*rate/count;
+    }
+
+    public void reset() {
+        Arrays.fill(crossed, false);
+        pos=0;
+        count=0;
+        crossings=0;
+        side=0;
+    }
+}
@@ -0,0 +1,815 @@
+/*
+ * ACQServerSimulator.java
+ *
+ * Copyright 2006-2010, BIOPAC Systems, Inc.
+ * All rights reserved
+ */
+
+package com.biopac.ndt.sim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcHandler;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.server.XmlRpcHandlerMapping;
+import org.apache.xmlrpc.server.XmlRpcNoSuchHandlerException;
+import org.apache.xmlrpc.webserver.WebServer;
+
+import com.biopac.ndt.ACQServer;
+
+/**
+ * Stand-in for an AcqKnowledge server that can be run on any machine to
+ * exercise the com.biopac.ndt classes without hardware.  The simulator
+ *
+ * <ul>
+ * <li>answers "AcqP Client" discovery broadcasts on UDP port 15012,</li>
+ * <li>serves the acq.* XML-RPC control methods used by ACQServer, also
+ *     batched through system.multicall, and</li>
+ * <li>opens TCP or UDP data connections while "acquiring" and pushes
+ *     synthetic signals at the configured rate in the requested binary type
+ *     and byte order, one connection per channel or interleaved over a
+ *     single connection.</li>
+ * </ul>
+ *
+ * Signals are a deterministic function of the sample index so that clients
+ * can verify what they receive: analog channel n is a unit sine at n+1 Hz,
+ * digital channel n is a 0/5 V square wave at n+1 Hz and calculation
+ * channel n is a 0..1 sawtooth with a period of n+1 seconds.
+ *
+ * Run from the command line with
+ * <pre>
+ * java com.biopac.ndt.sim.ACQServerSimulator [-port n] [-rate hz]
+ *      [-analog n] [-digital n] [-calc n] [-client host] [-nodiscovery]
+ * </pre>
+ */
+public class ACQServerSimulator implements AutoCloseable {
+    /** Control port the simulator listens on unless told otherwise */
+    public static final int kDefaultControlPort=15010;
+
+    private static final String kMulticallName="system.multicall";
+
+    private static final int kDiscoveryPort=15012;
+    private static final String kDiscoveryRequest="AcqP Client";
+    private static final String kDiscoveryResponse="AcqP Server Port";
+
+    // streams deliver whatever frames are due about this often
+    private static final long kStreamIntervalMillis=2;
+
+    // how long a data stream retries connecting to the client
+    private static final long kConnectTimeoutMillis=2000;
+
+    private final int controlPort;
+    private double samplingRate=1000;
+    private int[] channelCounts={16, 8, 4};
+    private InetAddress clientAddress=InetAddress.getLoopbackAddress();
+    private boolean discoveryEnabled=true;
+
+    private final List<SimChannel> channels=new ArrayList<SimChannel>();
+    private final List<DataStream> streams=new ArrayList<DataStream>();
+    private WebServer webServer=null;
+    private DatagramSocket discoverySocket=null;
+    private Thread discoveryThread=null;
+
+    private String connectionMethod=ACQServer.kMultipleConnectionDelivery;
+    private String transportType=ACQServer.kTCPTransportType;
+    private boolean udpBroadcast=false;
+    private int singleConnectionPort=15020;
+    private int udpPacketSize=512;
+    private String dataConnectionHostname="";
+    private int dataConnectionTimeoutSec=0;
+    private final Map<String, Double> outputValues=new Hashtable<String, Double>();
+    private volatile boolean acquiring=false;
+    private long acquisitionStartNanos=0;
+
+    private static final String[] kChannelTypes={
+        ACQServer.kAnalogChannelType, ACQServer.kDigitalChannelType, ACQServer.kCalcChannelType
+    };
+
+    /**
+     * Configuration and live state of a simulated channel
+     */
+    private static class SimChannel {
+        final String type;
+        final int index;
+        int divider=1;
+        boolean deliveryEnabled=false;
+        boolean mostRecentEnabled=false;
+        int port=0;
+        String dataType=ACQServer.kDoubleDataType;
+        String endian=ACQServer.kBigEndian;
+        final double scale=10.0/32768;
+        final double offset=0;
+
+        SimChannel(String t, int i) {
+            type=t;
+            index=i;
+        }
+
+        /**
+         * Signal value at a point in the acquisition
+         *
+         * @param t seconds since acquisition start
+         */
+        double value(double t) {
+            double hz=index+1;
+            if(type.equals(ACQServer.kAnalogChannelType))
+                return Math.sin(2*Math.PI*hz*t);
+            else if(type.equals(ACQServer.kDigitalChannelType))
+                return (t*hz)%1.0 < 0.5 ? 5.0 : 0.0;
+            else
+                return (t/hz)%1.0;
+        }
+
+        int sampleBytes() {
+            if(dataType.equals(ACQServer.kShortDataType))
+                return 2;
+            else if(dataType.equals(ACQServer.kFloatDataType))
+                return 4;
+            return 8;
+        }
+
+        ByteOrder byteOrder() {
+            return endian.equals(ACQServer.kLittleEndian) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        }
+
+        void encode(double v, ByteBuffer out) {
+            out.order(byteOrder());
+            if(dataType.equals(ACQServer.kShortDataType))
+                out.putShort((short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round((v-offset)/scale))));
+            else if(dataType.equals(ACQServer.kFloatDataType))
+                out.putFloat((float)v);
+            else
+                out.putDouble(v);
+        }
+
+        Hashtable<String, Object> indexStruct() {
+            Hashtable<String, Object> s=new Hashtable<String, Object>();
+            s.put("type", type);
+            s.put("index", Integer.valueOf(index));
+            return s;
+        }
+    }
+
+    /**
+     * Pushes the samples of one or more channels over a data connection.
+     * With several channels the samples are interleaved frame by frame, a
+     * channel taking part in every divider'th frame.
+     */
+    private class DataStream extends Thread {
+        private final SimChannel[] streamChannels;
+        private final int port;
+        private final boolean udp;
+        private final long startNanos;
+        private volatile boolean running=true;
+        private volatile Socket tcpSocket=null;
+        private volatile DatagramSocket udpSocket=null;
+
+        DataStream(SimChannel[] c, int p, boolean useUdp, long start) {
+            super("ACQServerSimulator stream "+p);
+            setDaemon(true);
+            streamChannels=c;
+            port=p;
+            udp=useUdp;
+            startNanos=start;
+        }
+
+        void shutdown() {
+            running=false;
+            interrupt();
+            if(tcpSocket != null)
+            {
+                try
+                {
+                    tcpSocket.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+            if(udpSocket != null)
+                udpSocket.close();
+        }
+
+        public void run() {
+            try
+            {
+                InetAddress host=dataConnectionHostname.length() > 0 ?
+                        InetAddress.getByName(dataConnectionHostname) : clientAddress;
+                if(udp)
+                    streamUdp(host);
+                else
+                    streamTcp(host);
+            }
+            catch (InterruptedException e)
+            {
+            }
+            catch (IOException e)
+            {
+                if(running)
+                    System.err.println("Simulator data stream on port "+port+": "+e);
+            }
+            finally
+            {
+                shutdown();
+            }
+        }
+
+        private void streamTcp(InetAddress host) throws IOException, InterruptedException {
+            long deadline=System.currentTimeMillis()+kConnectTimeoutMillis;
+            while(tcpSocket == null)
+            {
+                try
+                {
+                    tcpSocket=new Socket(host, port);
+                }
+                catch (IOException e)
+                {
+                    // the client may not be listening yet
+                    if(!running || System.currentTimeMillis() > deadline)
+                        throw e;
+                    Thread.sleep(50);
+                }
+            }
+            tcpSocket.setTcpNoDelay(true);
+            OutputStream out=tcpSocket.getOutputStream();
+            ByteBuffer buf=ByteBuffer.allocate(64*1024);
+            long frame=0;
+            while(running)
+            {
+                long due=dueFrames();
+                if(due <= frame)
+                {
+                    Thread.sleep(kStreamIntervalMillis);
+                    continue;
+                }
+                buf.clear();
+                frame=fill(buf, frame, due);
+                out.write(buf.array(), 0, buf.position());
+            }
+        }
+
+        private void streamUdp(InetAddress host) throws IOException, InterruptedException {
+            udpSocket=new DatagramSocket();
+            udpSocket.setBroadcast(udpBroadcast);
+            InetAddress target=udpBroadcast ? InetAddress.getByName("255.255.255.255") : host;
+            ByteBuffer buf=ByteBuffer.allocate(udpPacketSize);
+            DatagramPacket packet=new DatagramPacket(buf.array(), 0, target, port);
+            long frame=0;
+            while(running)
+            {
+                long due=dueFrames();
+                if(due <= frame)
+                {
+                    Thread.sleep(kStreamIntervalMillis);
+                    continue;
+                }
+                while(frame < due)
+                {
+                    // header: first sample number and data byte count, big endian
+                    buf.clear();
+                    buf.order(ByteOrder.BIG_ENDIAN);
+                    buf.putInt((int)(frame/streamChannels[0].divider));
+                    buf.putInt(0);
+                    frame=fill(buf, frame, due);
+                    buf.order(ByteOrder.BIG_ENDIAN);
+                    buf.putInt(4, buf.position()-8);
+                    packet.setLength(buf.position());
+                    udpSocket.send(packet);
+                }
+            }
+        }
+
+        private long dueFrames() {
+            return (long)((System.nanoTime()-startNanos)/1e9*samplingRate);
+        }
+
+        /**
+         * Encode frames [frame, due) into buf, stopping early when a whole
+         * frame no longer fits
+         *
+         * @return index of the first frame not encoded
+         */
+        private long fill(ByteBuffer buf, long frame, long due) {
+            int frameBytes=0;
+            for(int i=0; i<streamChannels.length; i++)
+                frameBytes+=streamChannels[i].sampleBytes();
+
+            while(frame < due && buf.remaining() >= frameBytes)
+            {
+                double t=frame/samplingRate;
+                for(int i=0; i<streamChannels.length; i++)
+                {
+                    SimChannel c=streamChannels[i];
+                    if(frame%c.divider == 0)
+                        c.encode(c.value(t), buf);
+                }
+                frame++;
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Dispatches acq.* XML-RPC requests to the simulator
+     */
+    private class ControlHandler implements XmlRpcHandlerMapping, XmlRpcHandler {
+        public XmlRpcHandler getHandler(String name) throws XmlRpcNoSuchHandlerException {
+            if(!name.startsWith("acq.") && !name.equals(kMulticallName))
+                throw new XmlRpcNoSuchHandlerException("No such handler: "+name);
+            return this;
+        }
+
+        public Object execute(XmlRpcRequest req) throws XmlRpcException {
+            synchronized(ACQServerSimulator.this)
+            {
+                if(req.getMethodName().equals(kMulticallName))
+                    return multicall(req.getParameter(0));
+                Object p0=req.getParameterCount() > 0 ? req.getParameter(0) : null;
+                Object p1=req.getParameterCount() > 1 ? req.getParameter(1) : null;
+                return handle(req.getMethodName().substring(4), p0, p1);
+            }
+        }
+
+        /**
+         * Run each call of a system.multicall, returning a one element
+         * array with the result of each call that succeeded and a fault
+         * struct for each call that failed
+         */
+        private Object multicall(Object calls) throws XmlRpcException {
+            if(!(calls instanceof Object[]))
+                throw new XmlRpcException("Expected an array of calls");
+            Object[] list=(Object[])calls;
+            Object[] results=new Object[list.length];
+            for(int i=0; i<list.length; i++)
+            {
+                try
+                {
+                    if(!(list[i] instanceof Map))
+                        throw new XmlRpcException("Expected a call struct");
+                    Map<?, ?> call=(Map<?, ?>)list[i];
+                    String name=String.valueOf(call.get("methodName"));
+                    if(!name.startsWith("acq."))
+                        throw new XmlRpcException("No such method: "+name);
+                    Object[] params=call.get("params") instanceof Object[] ? (Object[])call.get("params") : new Object[0];
+                    Object p0=params.length > 0 ? params[0] : null;
+                    Object p1=params.length > 1 ? params[1] : null;
+                    results[i]=new Object[] {handle(name.substring(4), p0, p1)};
+                }
+                catch (XmlRpcException e)
+                {
+                    Hashtable<String, Object> fault=new Hashtable<String, Object>();
+                    fault.put("faultCode", Integer.valueOf(e.code));
+                    fault.put("faultString", String.valueOf(e.getMessage()));
+                    results[i]=fault;
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Create a simulator listening for control connections on a port.  The
+     * simulator is configured with the set* methods and then started.
+     *
+     * @param port  XML-RPC control port
+     */
+    public ACQServerSimulator(int port) {
+        controlPort=port;
+    }
+
+    public int getControlPort() {
+        return controlPort;
+    }
+
+    /** Change the acquisition sampling rate, in Hertz */
+    public synchronized void setSamplingRate(double rate) {
+        samplingRate=rate;
+    }
+
+    /**
+     * Change the number of channels of a type that are enabled for
+     * acquisition.  Only has an effect before start().
+     *
+     * @param chanType  one of the ACQServer k*ChannelType constants
+     * @param count     number of channels, indexed from 0
+     */
+    public synchronized void setChannelCount(String chanType, int count) {
+        channelCounts[typeIndex(chanType)]=count;
+    }
+
+    /**
+     * Change the sampling rate divider of a channel.  Only has an effect
+     * after start().
+     */
+    public synchronized void setSamplingRateDivider(String chanType, int index, int divider) throws XmlRpcException {
+        channel(chanType, index).divider=Math.max(1, divider);
+    }
+
+    /**
+     * Change the address data connections are made to when the client has
+     * not set a data connection hostname.  Defaults to the loopback address.
+     */
+    public synchronized void setClientAddress(InetAddress addr) {
+        clientAddress=addr;
+    }
+
+    /** Choose whether discovery broadcasts are answered */
+    public synchronized void setDiscoveryEnabled(boolean enabled) {
+        discoveryEnabled=enabled;
+    }
+
+    /**
+     * Get the last value written to an output channel with
+     * acq.setOutputChannel
+     *
+     * @return output value, or NaN if the channel was never written
+     */
+    public synchronized double getOutputChannel(String chanType, int index) {
+        Double v=outputValues.get(chanType+index);
+        return v == null ? Double.NaN : v.doubleValue();
+    }
+
+    /**
+     * Create the channels and start serving control and discovery requests
+     *
+     * @throws IOException if a port could not be bound
+     */
+    public synchronized void start() throws IOException {
+        channels.clear();
+        for(int t=0; t<kChannelTypes.length; t++)
+            for(int i=0; i<channelCounts[t]; i++)
+                channels.add(new SimChannel(kChannelTypes[t], i));
+
+        webServer=new WebServer(controlPort);
+        webServer.getXmlRpcServer().setHandlerMapping(new ControlHandler());
+        webServer.start();
+
+        if(discoveryEnabled)
+        {
+            discoverySocket=new DatagramSocket(null);
+            discoverySocket.setReuseAddress(true);
+            discoverySocket.bind(new InetSocketAddress(kDiscoveryPort));
+            discoveryThread=new Thread("ACQServerSimulator discovery") {
+                public void run() {
+                    answerDiscovery();
+                }
+            };
+            discoveryThread.setDaemon(true);
+            discoveryThread.start();
+        }
+    }
+
+    /**
+     * Stop acquiring and release all ports
+     */
+    public void close() {
+        synchronized(this)
+        {
+            stopAcquisition();
+            if(webServer != null)
+                webServer.shutdown();
+            webServer=null;
+            if(discoverySocket != null)
+                discoverySocket.close();
+            discoverySocket=null;
+        }
+        if(discoveryThread != null)
+        {
+            try
+            {
+                discoveryThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            discoveryThread=null;
+        }
+    }
+
+    /**
+     * Reply to discovery broadcasts from the port they were sent to, which
+     * is how ServerDiscoveryHelper recognises a server
+     */
+    private void answerDiscovery() {
+        DatagramSocket sock=discoverySocket;
+        byte[] buf=new byte[512];
+        DatagramPacket request=new DatagramPacket(buf, buf.length);
+        byte[] reply=(kDiscoveryResponse+":"+controlPort).getBytes();
+        try
+        {
+            while(true)
+            {
+                request.setLength(buf.length);
+                sock.receive(request);
+                String text=new String(buf, 0, request.getLength());
+                if(text.equals(kDiscoveryRequest))
+                    sock.send(new DatagramPacket(reply, reply.length, request.getAddress(), request.getPort()));
+            }
+        }
+        catch (SocketException e)
+        {
+            // socket closed by close()
+        }
+        catch (IOException e)
+        {
+            System.err.println("Simulator discovery: "+e);
+        }
+    }
+
+    private void startAcquisition() {
+        acquiring=true;
+        acquisitionStartNanos=System.nanoTime();
+        boolean udp=transportType.equals(ACQServer.kUDPTransportType);
+
+        List<SimChannel> delivered=new ArrayList<SimChannel>();
+        for(int i=0; i<channels.size(); i++)
+        {
+            SimChannel c=channels.get(i);
+            if(c.deliveryEnabled)
+                delivered.add(c);
+        }
+
+        if(connectionMethod.equals(ACQServer.kSingleConnectionDelivery))
+        {
+            if(!delivered.isEmpty())
+                streams.add(new DataStream(delivered.toArray(new SimChannel[0]),
+                        singleConnectionPort, udp, acquisitionStartNanos));
+        }
+        else
+        {
+            for(int i=0; i<delivered.size(); i++)
+            {
+                SimChannel c=delivered.get(i);
+                streams.add(new DataStream(new SimChannel[] {c}, c.port, udp, acquisitionStartNanos));
+            }
+        }
+        for(int i=0; i<streams.size(); i++)
+            streams.get(i).start();
+    }
+
+    private void stopAcquisition() {
+        acquiring=false;
+        for(int i=0; i<streams.size(); i++)
+            streams.get(i).shutdown();
+        streams.clear();
+    }
+
+    private static int typeIndex(String chanType) {
+        for(int t=0; t<kChannelTypes.length; t++)
+            if(kChannelTypes[t].equals(chanType))
+                return t;
+        throw new IllegalArgumentException("Unrecognized channel type "+chanType);
+    }
+
+    private SimChannel channel(String chanType, int index) throws XmlRpcException {
+        for(int i=0; i<channels.size(); i++)
+        {
+            SimChannel c=channels.get(i);
+            if(c.type.equals(chanType) && c.index == index)
+                return c;
+        }
+        throw new XmlRpcException("No channel "+chanType+" "+index);
+    }
+
+    private SimChannel channel(Object indexStruct) throws XmlRpcException {
+        if(!(indexStruct instanceof Map))
+            throw new XmlRpcException("Expected channel structure");
+        Map<?, ?> m=(Map<?, ?>)indexStruct;
+        return channel((String)m.get("type"), ((Integer)m.get("index")).intValue());
+    }
+
+    private double currentValue(SimChannel c) {
+        if(!acquiring)
+            return 0;
+        long frame=(long)((System.nanoTime()-acquisitionStartNanos)/1e9*samplingRate);
+        frame-=frame%c.divider;
+        return c.value(frame/samplingRate);
+    }
+
+    /**
+     * Carry out a control request
+     *
+     * @param method    method name without the "acq." prefix
+     * @param p0        first parameter, or null
+     * @param p1        second parameter, or null
+     * @return XML-RPC result value
+     */
+    private Object handle(String method, Object p0, Object p1) throws XmlRpcException {
+
+        if(method.equals("getMPUnitType"))
+            return Integer.valueOf(150);
+        if(method.equals("getEnabledChannels"))
+        {
+            List<Integer> indexes=new ArrayList<Integer>();
+            for(int i=0; i<channels.size(); i++)
+            {
+                SimChannel c=channels.get(i);
+                if(c.type.equals(p0))
+                    indexes.add(Integer.valueOf(c.index));
+            }
+            return indexes.toArray();
+        }
+        if(method.equals("getChannelScaling"))
+        {
+            SimChannel c=channel(p0);
+            Hashtable<String, Object> s=new Hashtable<String, Object>();
+            s.put("scale", Double.valueOf(c.scale));
+            s.put("offset", Double.valueOf(c.offset));
+            return s;
+        }
+        if(method.equals("getSamplingRate"))
+            return Double.valueOf(samplingRate);
+        if(method.equals("getDownsamplingDivider"))
+            return Integer.valueOf(channel(p0).divider);
+        if(method.equals("getDataConnectionMethod"))
+            return connectionMethod;
+        if(method.equals("changeDataConnectionMethod"))
+        {
+            connectionMethod=(String)p0;
+            return Boolean.TRUE;
+        }
+        if(method.equals("getTransportType"))
+            return transportType;
+        if(method.equals("changeTransportType"))
+        {
+            transportType=(String)p0;
+            return Boolean.TRUE;
+        }
+        if(method.equals("getUDPBroadcastEnabled"))
+            return Boolean.valueOf(udpBroadcast);
+        if(method.equals("changeUDPBroadcastEnabled"))
+        {
+            udpBroadcast=((Boolean)p0).booleanValue();
+            return Boolean.TRUE;
+        }
+        if(method.equals("getSingleConnectionModePort"))
+            return Integer.valueOf(singleConnectionPort);
+        if(method.equals("changeSingleConnectionModePort"))
+        {
+            singleConnectionPort=((Integer)p0).intValue()&0xffff;
+            return Boolean.TRUE;
+        }
+        if(method.equals("getDataDeliveryEnabled"))
+            return Boolean.valueOf(channel(p0).deliveryEnabled);
+        if(method.equals("changeDataDeliveryEnabled"))
+        {
+            channel(p0).deliveryEnabled=((Boolean)p1).booleanValue();
+            return Boolean.TRUE;
+        }
+        if(method.equals("getMostRecentSampleValueDeliveryEnabled"))
+            return Boolean.valueOf(channel(p0).mostRecentEnabled);
+        if(method.equals("changeMostRecentSampleValueDeliveryEnabled"))
+        {
+            channel(p0).mostRecentEnabled=((Boolean)p1).booleanValue();
+            return Boolean.TRUE;
+        }
+        if(method.equals("getDataConnectionPort"))
+            return Integer.valueOf(channel(p0).port);
+        if(method.equals("changeDataConnectionPort"))
+        {
+            // ports above 32767 arrive sign extended from the client's short
+            channel(p0).port=((Integer)p1).intValue()&0xffff;
+            return Boolean.TRUE;
+        }
+        if(method.equals("getDataType"))
+        {
+            SimChannel c=channel(p0);
+            Hashtable<String, Object> s=new Hashtable<String, Object>();
+            s.put("type", c.dataType);
+            s.put("endian", c.endian);
+            return s;
+        }
+        if(method.equals("changeDataType"))
+        {
+            SimChannel c=channel(p0);
+            Map<?, ?> s=(Map<?, ?>)p1;
+            c.dataType=(String)s.get("type");
+            c.endian=(String)s.get("endian");
+            return Boolean.TRUE;
+        }
+        if(method.equals("getMostRecentSampleValue"))
+        {
+            SimChannel c=channel(p0);
+            if(!acquiring || !c.mostRecentEnabled)
+                throw new XmlRpcException("Most recent sample value not available");
+            return Double.valueOf(currentValue(c));
+        }
+        if(method.equals("getMostRecentSampleValueArray"))
+        {
+            if(!acquiring)
+                throw new XmlRpcException("No acquisition in progress");
+            List<Hashtable<String, Object>> values=new ArrayList<Hashtable<String, Object>>();
+            for(int i=0; i<channels.size(); i++)
+            {
+                SimChannel c=channels.get(i);
+                if(!c.mostRecentEnabled)
+                    continue;
+                Hashtable<String, Object> s=new Hashtable<String, Object>();
+                s.put("channel", c.indexStruct());
+                s.put("value", Double.valueOf(currentValue(c)));
+                values.add(s);
+            }
+            return values.toArray();
+        }
+        if(method.equals("getAcquisitionInProgress"))
+            return Boolean.valueOf(acquiring);
+        if(method.equals("toggleAcquisition"))
+        {
+            if(acquiring)
+                stopAcquisition();
+            else
+                startAcquisition();
+            return Boolean.TRUE;
+        }
+        if(method.equals("loadTemplate"))
+            return Boolean.TRUE;
+        if(method.equals("setUDPPacketSize"))
+        {
+            udpPacketSize=Math.max(16, ((Integer)p0).intValue());
+            return Boolean.TRUE;
+        }
+        if(method.equals("getUDPPacketSize"))
+            return Integer.valueOf(udpPacketSize);
+        if(method.equals("getDataConnectionHostname"))
+            return dataConnectionHostname;
+        if(method.equals("changeDataConnectionHostname"))
+        {
+            dataConnectionHostname=(String)p0;
+            return Boolean.TRUE;
+        }
+        if(method.equals("setOutputChannel"))
+        {
+            SimChannel c=channel(p0);
+            outputValues.put(c.type+c.index, (Double)p1);
+            return Boolean.TRUE;
+        }
+        if(method.equals("setDataConnectionTimeoutSec"))
+        {
+            dataConnectionTimeoutSec=((Integer)p0).intValue();
+            return Boolean.TRUE;
+        }
+
+        throw new XmlRpcNoSuchHandlerException("No such method: acq."+method);
+    }
+
+    /**
+     * Run a simulator until the process is killed
+     */
+    public static void main(String[] args) throws Exception {
+        int port=kDefaultControlPort;
+        List<String[]> settings=new ArrayList<String[]>();
+        for(int i=0; i<args.length; i++)
+        {
+            if(args[i].equals("-port"))
+                port=Integer.parseInt(args[++i]);
+            else if(args[i].equals("-nodiscovery"))
+                settings.add(new String[] {args[i]});
+            else if(i+1 < args.length)
+                settings.add(new String[] {args[i], args[++i]});
+            else
+            {
+                System.err.println("Usage: ACQServerSimulator [-port n] [-rate hz] [-analog n] [-digital n] [-calc n] [-client host] [-nodiscovery]");
+                System.exit(1);
+            }
+        }
+
+        ACQServerSimulator sim=new ACQServerSimulator(port);
+        for(int i=0; i<settings.size(); i++)
+        {
+            String[] s=settings.get(i);
+            if(s[0].equals("-nodiscovery"))
+                sim.setDiscoveryEnabled(false);
+            else if(s[0].equals("-rate"))
+                sim.setSamplingRate(Double.parseDouble(s[1]));
+            else if(s[0].equals("-analog"))
+                sim.setChannelCount(ACQServer.kAnalogChannelType, Integer.parseInt(s[1]));
+            else if(s[0].equals("-digital"))
+                sim.setChannelCount(ACQServer.kDigitalChannelType, Integer.parseInt(s[1]));
+            else if(s[0].equals("-calc"))
+                sim.setChannelCount(ACQServer.kCalcChannelType, Integer.parseInt(s[1]));
+            else if(s[0].equals("-client"))
+                sim.setClientAddress(InetAddress.getByName(s[1]));
+            else
+                throw new IllegalArgumentException("Unknown option "+s[0]);
+        }
+
+        sim.start();
+        System.out.println("AcqKnowledge simulator listening on port "+port);
+        while(true)
+            Thread.sleep(Long.MAX_VALUE);
+    }
+}